@@ -0,0 +1,78 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.codecentric.jenkins.appd.AppDynamicsProjectAction.BuildNumberLabel;
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.stats.ThresholdStatistic;
+
+/**
+ * Rendering the graphs served by the plugin to PNG, in the default size of
+ * 400x300: the graph of a single metric of a build, and the trend graph of a
+ * project.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ChartRenderingBenchmark {
+
+	private static final int WIDTH = 400;
+	private static final int HEIGHT = 300;
+
+	@State(Scope.Benchmark)
+	public static class SeriesState {
+		@Param({ "10", "1000", "100000" })
+		public int points;
+
+		MetricData metricData;
+
+		@Setup
+		public void setUp() {
+			metricData = SyntheticData.metricData(SyntheticData.THRESHOLD_METRIC, points, 0);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class TrendState {
+		@Param({ "1", "100", "10000" })
+		public int builds;
+
+		Map<BuildNumberLabel, Double> values;
+
+		@Setup
+		public void setUp() {
+			values = AppDynamicsProjectAction.collectValues(SyntheticData.trendEntries(builds),
+					SyntheticData.THRESHOLD_METRIC, ThresholdStatistic.MEAN);
+		}
+	}
+
+	@Benchmark
+	public byte[] renderSeriesGraph(final SeriesState state) throws IOException {
+		return AppDynamicsProjectAction.renderPng(BuildActionResultsDisplay.createSeriesChart(
+				SyntheticData.THRESHOLD_METRIC, state.metricData.getFrequency(), state.metricData.getMetricSeries()),
+				WIDTH, HEIGHT);
+	}
+
+	@Benchmark
+	public byte[] renderTrendGraph(final TrendState state) throws IOException {
+		return AppDynamicsProjectAction.renderPng(
+				AppDynamicsProjectAction.createTrendChart(SyntheticData.THRESHOLD_METRIC, ThresholdStatistic.MEAN,
+						state.values), WIDTH, HEIGHT);
+	}
+}
@@ -0,0 +1,70 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.rest.types.MetricValues;
+
+/**
+ * Deserialization of a metric-data response of nine metrics, into
+ * {@link MetricData} as done by the plugin, and into one
+ * {@link MetricValues} object per data point as done by older versions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricDataParsingBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int points;
+
+	private final ObjectMapper jsonMapper = new ObjectMapper();
+	private byte[] payload;
+
+	@Setup
+	public void setUp() {
+		jsonMapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		payload = SyntheticData.metricDataJson(SyntheticData.METRIC_PATHS.length, points);
+	}
+
+	@Benchmark
+	public MetricData[] parseIntoMetricSeries() throws IOException {
+		return jsonMapper.readValue(payload, MetricData[].class);
+	}
+
+	@Benchmark
+	public LegacyMetricData[] parseIntoMetricValues() throws IOException {
+		return jsonMapper.readValue(payload, LegacyMetricData[].class);
+	}
+
+	/**
+	 * The structure of {@link MetricData} before the data points were kept in
+	 * a series.
+	 */
+	public static class LegacyMetricData {
+		public String metricId;
+		public String metricName;
+		public String frequency;
+		public String metricPath;
+		public List<MetricValues> metricValues;
+	}
+}
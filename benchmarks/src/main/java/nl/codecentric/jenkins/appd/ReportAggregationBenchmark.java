@@ -0,0 +1,70 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeriesCodec;
+
+/**
+ * Building an {@link AppDynamicsReport} of nine metrics, which calculates the
+ * summary of every metric, and writing and reading its series file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportAggregationBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int points;
+
+	private List<MetricData> metrics;
+	private byte[] seriesFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		metrics = SyntheticData.reportMetrics(points);
+		seriesFile = encodeSeries();
+	}
+
+	@Benchmark
+	public double aggregateReport() {
+		final AppDynamicsReport report = new AppDynamicsReport(0L, 10);
+		for (MetricData metricData : metrics) {
+			report.addMetrics(metricData);
+		}
+		return report.getAverageForMetric(SyntheticData.THRESHOLD_METRIC);
+	}
+
+	@Benchmark
+	public byte[] encodeSeries() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MetricSeriesCodec.write(new DataOutputStream(bytes), metrics);
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public List<MetricData> decodeSeries() throws IOException {
+		return MetricSeriesCodec.read(new DataInputStream(new ByteArrayInputStream(seriesFile)));
+	}
+}
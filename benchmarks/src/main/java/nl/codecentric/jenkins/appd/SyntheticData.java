@@ -0,0 +1,145 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+import nl.codecentric.jenkins.appd.stats.MetricSummary;
+import nl.codecentric.jenkins.appd.stats.WeightedMoments;
+
+/**
+ * Synthetic data shaped like the responses of the AppDynamics REST interface,
+ * generated with a fixed seed so every run measures the same data.
+ */
+final class SyntheticData {
+
+	static final String[] METRIC_PATHS = AppDynamicsDataCollector.getAvailableMetricPaths();
+	static final String THRESHOLD_METRIC = METRIC_PATHS[0];
+
+	private static final long START_TIME = 1467673200000L;
+	private static final long ONE_MINUTE = 60000L;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private SyntheticData() {
+	}
+
+	/**
+	 * @return JSON array as returned by the metric-data resource, with the
+	 *         given number of metrics and data points per metric
+	 */
+	static byte[] metricDataJson(final int metrics, final int points) {
+		final Random random = new Random(42);
+		final StringBuilder json = new StringBuilder(metrics * (points * 190 + 200));
+		json.append('[');
+		for (int m = 0; m < metrics; m++) {
+			if (m > 0) {
+				json.append(',');
+			}
+			json.append("{\"metricId\":").append(1000 + m);
+			json.append(",\"metricName\":\"BTM|Application Summary|Metric ").append(m).append('"');
+			json.append(",\"metricPath\":\"").append(METRIC_PATHS[m % METRIC_PATHS.length]).append('"');
+			json.append(",\"frequency\":\"ONE_MIN\",\"metricValues\":[");
+			for (int i = 0; i < points; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				final int value = 50 + random.nextInt(200);
+				json.append("{\"startTimeInMillis\":").append(START_TIME + i * ONE_MINUTE);
+				json.append(",\"occurrences\":0,\"current\":").append(value + random.nextInt(20));
+				json.append(",\"min\":").append(random.nextInt(value));
+				json.append(",\"max\":").append(value + random.nextInt(5000));
+				json.append(",\"useRange\":true,\"count\":").append(1 + random.nextInt(1000));
+				json.append(",\"sum\":").append(value * 100);
+				json.append(",\"value\":").append(value);
+				json.append(",\"standardDeviation\":").append(random.nextDouble() * 50).append('}');
+			}
+			json.append("]}");
+		}
+		json.append(']');
+		return json.toString().getBytes(UTF8);
+	}
+
+	static MetricData metricData(final String metricPath, final int points, final long seed) {
+		final Random random = new Random(seed);
+		final MetricSeries series = new MetricSeries(points);
+		for (int i = 0; i < points; i++) {
+			final int value = 50 + random.nextInt(200);
+			final int index = series.addPoint(START_TIME + i * ONE_MINUTE);
+			series.set(Column.CURRENT, index, value + random.nextInt(20));
+			series.set(Column.MIN, index, random.nextInt(value));
+			series.set(Column.MAX, index, value + random.nextInt(5000));
+			series.set(Column.VALUE, index, value);
+			series.set(Column.SUM, index, value * 100);
+			series.set(Column.COUNT, index, 1 + random.nextInt(1000));
+			series.set(Column.OCCURRENCES, index, 0);
+			series.setStandardDeviation(index, random.nextDouble() * 50);
+			series.setUseRange(index, true);
+		}
+
+		final MetricData metricData = new MetricData();
+		metricData.setMetricPath(metricPath);
+		metricData.setFrequency("ONE_MIN");
+		metricData.setMetricSeries(series);
+		return metricData;
+	}
+
+	/**
+	 * @return one metric per default metric path, each with the given number
+	 *         of data points
+	 */
+	static List<MetricData> reportMetrics(final int points) {
+		final List<MetricData> metrics = new ArrayList<MetricData>();
+		for (int m = 0; m < METRIC_PATHS.length; m++) {
+			metrics.add(metricData(METRIC_PATHS[m], points, m));
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return trend index entries of the given number of builds, one build
+	 *         every hour, each with a summary per default metric path
+	 */
+	static List<AppDynamicsTrendIndex.Entry> trendEntries(final int builds) {
+		final Random random = new Random(42);
+		final List<AppDynamicsTrendIndex.Entry> entries = new ArrayList<AppDynamicsTrendIndex.Entry>(builds);
+		for (int b = 1; b <= builds; b++) {
+			final Map<String, MetricSummary> summaries = new LinkedHashMap<String, MetricSummary>();
+			for (String metricPath : METRIC_PATHS) {
+				final double mean = 50 + random.nextInt(200) + random.nextDouble();
+				final WeightedMoments moments = new WeightedMoments();
+				for (int i = 0; i < 60; i++) {
+					moments.add(mean - 10 + random.nextInt(20), random.nextInt(50), 1 + random.nextInt(1000));
+				}
+				summaries.put(metricPath, new MetricSummary(60, (long) (mean * 60), random.nextInt(50),
+						250 + random.nextInt(5000), mean, random.nextDouble() * 50, null, null, moments.encode()));
+			}
+			entries.add(new AppDynamicsTrendIndex.Entry(b, b % 10 == 0 ? "UNSTABLE" : "SUCCESS",
+					START_TIME + b * 60 * ONE_MINUTE, 10, summaries));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the lines of the trend index file of the given entries
+	 */
+	static List<String> trendIndexLines(final List<AppDynamicsTrendIndex.Entry> entries) throws IOException {
+		final StringWriter writer = new StringWriter();
+		for (AppDynamicsTrendIndex.Entry entry : entries) {
+			entry.write(writer);
+		}
+
+		final List<String> lines = new ArrayList<String>();
+		for (String line : writer.toString().split("\n")) {
+			lines.add(line);
+		}
+		return lines;
+	}
+}
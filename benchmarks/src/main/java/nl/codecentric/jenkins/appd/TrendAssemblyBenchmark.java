@@ -0,0 +1,92 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.codecentric.jenkins.appd.AppDynamicsProjectAction.BuildNumberLabel;
+import nl.codecentric.jenkins.appd.stats.Baseline;
+import nl.codecentric.jenkins.appd.stats.BaselineMode;
+import nl.codecentric.jenkins.appd.stats.MomentsBaseline;
+import nl.codecentric.jenkins.appd.stats.RegressionAnalysis;
+import nl.codecentric.jenkins.appd.stats.ThresholdStatistic;
+import nl.codecentric.jenkins.appd.stats.WeightedMoments;
+
+/**
+ * Assembling the trend of a project from its {@link AppDynamicsTrendIndex}:
+ * reading the index file, collecting the averages of the trend graph and
+ * building the baseline of the threshold check, and of the regression test
+ * against the last build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrendAssemblyBenchmark {
+
+	@Param({ "1", "100", "10000" })
+	public int builds;
+
+	private List<AppDynamicsTrendIndex.Entry> entries;
+	private List<String> lines;
+
+	@Setup
+	public void setUp() throws IOException {
+		entries = SyntheticData.trendEntries(builds);
+		lines = SyntheticData.trendIndexLines(entries);
+	}
+
+	@Benchmark
+	public Map<Integer, AppDynamicsTrendIndex.Entry> readIndex() {
+		final Map<Integer, AppDynamicsTrendIndex.Entry> readEntries = new TreeMap<Integer, AppDynamicsTrendIndex.Entry>();
+		for (String line : lines) {
+			AppDynamicsTrendIndex.Entry.readLine(line, readEntries);
+		}
+		return readEntries;
+	}
+
+	@Benchmark
+	public Map<BuildNumberLabel, Double> collectValues() {
+		return AppDynamicsProjectAction.collectValues(entries, SyntheticData.THRESHOLD_METRIC,
+				ThresholdStatistic.MEAN);
+	}
+
+	@Benchmark
+	public double replayBaseline() {
+		final Baseline baseline = Baseline.create(BaselineMode.LAST_BUILDS, 10);
+		for (AppDynamicsTrendIndex.Entry entry : entries) {
+			baseline.add(entry.getTimestamp(), entry.getAverageForMetric(SyntheticData.THRESHOLD_METRIC));
+		}
+		return baseline.getValue(System.currentTimeMillis());
+	}
+
+	@Benchmark
+	public RegressionAnalysis replayRegressionAnalysis() {
+		final MomentsBaseline baseline = MomentsBaseline.create(BaselineMode.LAST_BUILDS, 10);
+		WeightedMoments current = null;
+		for (AppDynamicsTrendIndex.Entry entry : entries) {
+			if (current != null) {
+				baseline.add(entry.getTimestamp(), current);
+			}
+			current = entry.getSummary(SyntheticData.THRESHOLD_METRIC).getMoments();
+		}
+		final WeightedMoments moments = baseline.getMoments(System.currentTimeMillis());
+		return moments == null ? null : RegressionAnalysis.compare(moments, current, true);
+	}
+}
@@ -10,6 +10,7 @@ import org.kohsuke.stapler.StaplerProxy;
 import hudson.model.*;
 import hudson.model.Action;
 import hudson.util.StreamTaskListener;
+import jenkins.model.RunAction2;
 import nl.codecentric.jenkins.appd.util.LocalMessages;
 
 /**
@@ -18,9 +19,14 @@ import nl.codecentric.jenkins.appd.util.LocalMessages;
  * met.<br />
  * <br />
  * The {@link AppDynamicsBuildAction} relays output and displaying of the build
- * output results to the {@link BuildActionResultsDisplay}.
+ * output results to the {@link BuildActionResultsDisplay}.<br />
+ * <br />
+ * When attached to its build the raw series of the report are moved out of
+ * build.xml into a separate file, see {@link AppDynamicsReport}. Reports of
+ * older versions keep them in build.xml until they are migrated, see
+ * {@link LegacyReportMigration}.
  */
-public class AppDynamicsBuildAction implements Action, StaplerProxy {
+public class AppDynamicsBuildAction implements Action, StaplerProxy, RunAction2 {
 
 	private final AbstractBuild<?, ?> build;
 	private final AppDynamicsReport report;
@@ -33,6 +39,14 @@ public class AppDynamicsBuildAction implements Action, StaplerProxy {
 		this.report = report;
 	}
 
+	public void onAttached(final Run<?, ?> run) {
+		report.storeSeries(run.getRootDir());
+	}
+
+	public void onLoad(final Run<?, ?> run) {
+		report.setSeriesDirectory(run.getRootDir());
+	}
+
 	public String getIconFileName() {
 		return "graph.gif";
 	}
@@ -57,7 +71,7 @@ public class AppDynamicsBuildAction implements Action, StaplerProxy {
 		return report;
 	}
 
-	public BuildActionResultsDisplay getBuildActionResultsDisplay() {
+	public synchronized BuildActionResultsDisplay getBuildActionResultsDisplay() {
 		BuildActionResultsDisplay buildDisplay = null;
 		WeakReference<BuildActionResultsDisplay> wr = this.buildActionResultsDisplay;
 		if (wr != null) {
@@ -75,7 +89,7 @@ public class AppDynamicsBuildAction implements Action, StaplerProxy {
 		return buildDisplay;
 	}
 
-	public void setBuildActionResultsDisplay(WeakReference<BuildActionResultsDisplay> buildActionResultsDisplay) {
+	public synchronized void setBuildActionResultsDisplay(WeakReference<BuildActionResultsDisplay> buildActionResultsDisplay) {
 		this.buildActionResultsDisplay = buildActionResultsDisplay;
 	}
 }
@@ -1,6 +1,8 @@
 package nl.codecentric.jenkins.appd;
 
 import hudson.model.*;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import nl.codecentric.jenkins.appd.rest.types.ApplicationInformation;
 import nl.codecentric.jenkins.appd.rest.types.MetricData;
 import nl.codecentric.jenkins.appd.rest.RestConnection;
@@ -8,7 +10,18 @@ import nl.codecentric.jenkins.appd.rest.RestConnection;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -17,10 +30,20 @@ import java.util.logging.Logger;
  * {@link AppDynamicsReport}.<br />
  * <br />
  * Perhaps create separate Collectors again when this is more logical to create
- * separate graphs. For now this single collector should get all data.
+ * separate graphs. For now this single collector should get all data.<br />
+ * <br />
+ * Metric paths are fetched in batches, see
+ * {@link RestConnection#groupMetricPaths(java.util.Collection)}, so the default
+ * paths only take a single request. When more than one fetch thread is
+ * configured, all requests are issued at the same time on a small pool that
+ * only lives for the duration of the collection. In both modes the whole
+ * collection is bound by a deadline, and metrics are added to the report in
+ * the order of {@link #METRIC_PATHS}.
  */
 public class AppDynamicsDataCollector {
 	public static final String CUSTOM_METRIC_PATH = "Custom metric path";
+	public static final int DEFAULT_FETCH_THREADS = 4;
+	public static final int DEFAULT_FETCH_TIMEOUT_IN_SECONDS = 120;
 	private static final Logger LOG = Logger.getLogger(AppDynamicsDataCollector.class.getName());
 	private static final String[] METRIC_PATHS = { "Overall Application Performance|Average Response Time (ms)",
 			"Overall Application Performance|Calls per Minute",
@@ -35,13 +58,24 @@ public class AppDynamicsDataCollector {
 	private final AbstractBuild<?, ?> build;
 	private final int minimumDurationInMinutes;
 	private final String customMetricPath;
+	private final int fetchThreads;
+	private final int fetchTimeoutInSeconds;
 
 	public AppDynamicsDataCollector(final RestConnection connection, final AbstractBuild<?, ?> build,
 			final String customMetricPath, final int minimumDurationInMinutes) {
+		this(connection, build, customMetricPath, minimumDurationInMinutes, DEFAULT_FETCH_THREADS,
+				DEFAULT_FETCH_TIMEOUT_IN_SECONDS);
+	}
+
+	public AppDynamicsDataCollector(final RestConnection connection, final AbstractBuild<?, ?> build,
+			final String customMetricPath, final int minimumDurationInMinutes, final int fetchThreads,
+			final int fetchTimeoutInSeconds) {
 		this.restConnection = connection;
 		this.build = build;
 		this.customMetricPath = customMetricPath;
 		this.minimumDurationInMinutes = minimumDurationInMinutes;
+		this.fetchThreads = Math.max(1, fetchThreads);
+		this.fetchTimeoutInSeconds = Math.max(1, fetchTimeoutInSeconds);
 	}
 
 	public static final String[] getAvailableMetricPaths() {
@@ -67,22 +101,47 @@ public class AppDynamicsDataCollector {
 	public AppDynamicsReport createReportFromMeasurements() {
 		long buildStartTime = build.getRootBuild().getTimeInMillis();
 		int durationInMinutes = calculateDurationToFetch(buildStartTime);
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(fetchTimeoutInSeconds);
 
 		LOG.fine(String.format("Current time: %d - Build time: %d - Duration: %d", System.currentTimeMillis(),
 				buildStartTime, durationInMinutes));
 
-		AppDynamicsReport adReport = new AppDynamicsReport(buildStartTime, durationInMinutes);
+		List<String> metricPaths = new ArrayList<String>();
 		for (String metricPath : METRIC_PATHS) {
 			if (metricPath.equals(CUSTOM_METRIC_PATH))
 				metricPath = customMetricPath;
 
-			final MetricData metric = restConnection.fetchMetricData(metricPath, durationInMinutes, buildStartTime);
-			if (adReport != null && metric != null) {
+			metricPaths.add(metricPath);
+		}
+
+		List<Callable<Map<String, MetricData>>> metricTasks = new ArrayList<Callable<Map<String, MetricData>>>();
+		for (List<String> groupedPaths : RestConnection.groupMetricPaths(metricPaths).values()) {
+			metricTasks.add(new MetricFetchTask(groupedPaths, durationInMinutes, buildStartTime));
+		}
+		Callable<ApplicationInformation> applicationTask = new ApplicationFetchTask();
+
+		Map<String, MetricData> fetchedMetrics = new LinkedHashMap<String, MetricData>();
+		ApplicationInformation applicationInformation;
+		try {
+			if (fetchThreads > 1) {
+				applicationInformation = fetchInParallel(metricTasks, applicationTask, fetchedMetrics, deadline);
+			} else {
+				applicationInformation = fetchSequentially(metricTasks, applicationTask, fetchedMetrics, deadline);
+			}
+		} catch (InterruptedException e) {
+			LOG.info("Interrupted while fetching metrics, report only contains metrics fetched so far");
+			Thread.currentThread().interrupt();
+			applicationInformation = null;
+		}
+
+		AppDynamicsReport adReport = new AppDynamicsReport(buildStartTime, durationInMinutes);
+		for (String metricPath : metricPaths) {
+			final MetricData metric = fetchedMetrics.get(metricPath);
+			if (metric != null) {
 				adReport.addMetrics(metric);
 			}
 		}
 
-		ApplicationInformation applicationInformation = this.restConnection.fetchApplicationData();
 		if (applicationInformation != null) {
 			adReport.setApplicationInformation(applicationInformation);
 			adReport.setAppDynamicsControllerUri(restConnection.getControllerUri());
@@ -91,6 +150,92 @@ public class AppDynamicsDataCollector {
 		return adReport;
 	}
 
+	private ApplicationInformation fetchSequentially(final List<Callable<Map<String, MetricData>>> metricTasks,
+			final Callable<ApplicationInformation> applicationTask, final Map<String, MetricData> fetchedMetrics,
+			final long deadline) throws InterruptedException {
+		for (Callable<Map<String, MetricData>> task : metricTasks) {
+			if (isDeadlinePassed(deadline)) {
+				return null;
+			}
+			addFetchedMetrics(fetchedMetrics, call(task));
+			if (fetchedMetrics.isEmpty() && restConnection.getConnectionFailure() != null) {
+				LOG.info("Connection to the AppDynamics REST interface failed, skipping the rest");
+				return null;
+			}
+		}
+
+		if (isDeadlinePassed(deadline)) {
+			return null;
+		}
+		return call(applicationTask);
+	}
+
+	private ApplicationInformation fetchInParallel(final List<Callable<Map<String, MetricData>>> metricTasks,
+			final Callable<ApplicationInformation> applicationTask, final Map<String, MetricData> fetchedMetrics,
+			final long deadline) throws InterruptedException {
+		final int poolSize = Math.min(fetchThreads, metricTasks.size() + 1);
+		final ExecutorService executor = Executors.newFixedThreadPool(poolSize,
+				new NamingThreadFactory(new DaemonThreadFactory(), "AppDynamics metric fetch"));
+
+		try {
+			final Future<ApplicationInformation> applicationFuture = executor.submit(applicationTask);
+			final List<Future<Map<String, MetricData>>> metricFutures = executor.invokeAll(metricTasks,
+					remaining(deadline), TimeUnit.MILLISECONDS);
+
+			for (Future<Map<String, MetricData>> future : metricFutures) {
+				addFetchedMetrics(fetchedMetrics, getResult(future, 0));
+			}
+
+			return getResult(applicationFuture, remaining(deadline));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private <T> T getResult(final Future<T> future, final long timeoutInMillis) throws InterruptedException {
+		try {
+			return future.get(timeoutInMillis, TimeUnit.MILLISECONDS);
+		} catch (CancellationException e) {
+			LOG.info("Fetching data from the AppDynamics REST interface did not finish before the deadline");
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			LOG.info("Fetching data from the AppDynamics REST interface did not finish before the deadline");
+		} catch (ExecutionException e) {
+			LOG.log(Level.INFO, "Some problem fetching data from the AppDynamics REST interface, "
+					+ "see stack-trace for more information", e.getCause());
+		}
+		return null;
+	}
+
+	private <T> T call(final Callable<T> task) {
+		try {
+			return task.call();
+		} catch (Exception e) {
+			LOG.log(Level.INFO, "Some problem fetching data from the AppDynamics REST interface, "
+					+ "see stack-trace for more information", e);
+		}
+		return null;
+	}
+
+	private void addFetchedMetrics(final Map<String, MetricData> fetchedMetrics,
+			final Map<String, MetricData> metrics) {
+		if (metrics != null) {
+			fetchedMetrics.putAll(metrics);
+		}
+	}
+
+	private boolean isDeadlinePassed(final long deadline) {
+		if (remaining(deadline) <= 0) {
+			LOG.info("Deadline for fetching data from the AppDynamics REST interface passed, skipping the rest");
+			return true;
+		}
+		return false;
+	}
+
+	private long remaining(final long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
 	private int calculateDurationToFetch(final Long buildStartTime) {
 		long duration = System.currentTimeMillis() - buildStartTime;
 
@@ -102,4 +247,26 @@ public class AppDynamicsDataCollector {
 		return durationInMinutes;
 	}
 
+	private class MetricFetchTask implements Callable<Map<String, MetricData>> {
+		private final List<String> metricPaths;
+		private final int durationInMinutes;
+		private final long buildStartTime;
+
+		MetricFetchTask(final List<String> metricPaths, final int durationInMinutes, final long buildStartTime) {
+			this.metricPaths = metricPaths;
+			this.durationInMinutes = durationInMinutes;
+			this.buildStartTime = buildStartTime;
+		}
+
+		public Map<String, MetricData> call() {
+			return restConnection.fetchMetricData(metricPaths, durationInMinutes, buildStartTime);
+		}
+	}
+
+	private class ApplicationFetchTask implements Callable<ApplicationInformation> {
+		public ApplicationInformation call() {
+			return restConnection.fetchApplicationData();
+		}
+	}
+
 }
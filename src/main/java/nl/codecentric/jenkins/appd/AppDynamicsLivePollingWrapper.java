@@ -0,0 +1,289 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Executor;
+import hudson.model.Result;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.ListBoxModel;
+import nl.codecentric.jenkins.appd.rest.RestConnection;
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.stats.MetricSummary;
+
+import static nl.codecentric.jenkins.appd.util.LocalMessages.LIVEPOLLING_DISPLAYNAME;
+
+/**
+ * Polls a metric from the AppDynamics Controller while the build is running,
+ * e.g. during a load test. Each poll requests the minutes since the previous
+ * poll relative to now, appends only the new data points to the
+ * {@link LiveMetricsAction} of the build and prints a rolling summary to the
+ * console.<br />
+ * <br />
+ * When an abort threshold is configured, and the rolling average of the metric
+ * crosses it, the build is aborted right away instead of running the rest of
+ * the load test.<br />
+ * <br />
+ * The polls run on the {@link CollectionExecutor}, as they block on requests
+ * to the Controller.
+ */
+public class AppDynamicsLivePollingWrapper extends BuildWrapper {
+
+	private static final String DEFAULT_METRIC_PATH = "Overall Application Performance|Average Response Time (ms)";
+	private static final int DEFAULT_POLL_INTERVAL_IN_SECONDS = 60;
+	private static final int MIN_POLL_INTERVAL_IN_SECONDS = 10;
+	private static final int DEFAULT_ROLLING_WINDOW = 5;
+
+	private static final Logger LOG = Logger.getLogger(AppDynamicsLivePollingWrapper.class.getName());
+
+	@Extension
+	public static class DescriptorImpl extends BuildWrapperDescriptor {
+
+		@Override
+		public String getDisplayName() {
+			return LIVEPOLLING_DISPLAYNAME.toString();
+		}
+
+		@Override
+		public boolean isApplicable(final AbstractProject<?, ?> item) {
+			return true;
+		}
+
+		public int getDefaultPollIntervalInSeconds() {
+			return DEFAULT_POLL_INTERVAL_IN_SECONDS;
+		}
+
+		public int getDefaultRollingWindow() {
+			return DEFAULT_ROLLING_WINDOW;
+		}
+
+		public ListBoxModel doFillMetricPathItems() {
+			ListBoxModel model = new ListBoxModel();
+
+			for (String value : AppDynamicsDataCollector.getAvailableMetricPaths()) {
+				if (!AppDynamicsDataCollector.CUSTOM_METRIC_PATH.equals(value)) {
+					model.add(value);
+				}
+			}
+
+			return model;
+		}
+	}
+
+	private final String appdynamicsUri;
+	private final String username;
+	private final String password;
+	private final String applicationName;
+	private String metricPath = DEFAULT_METRIC_PATH;
+	private Integer pollIntervalInSeconds = DEFAULT_POLL_INTERVAL_IN_SECONDS;
+	private Integer rollingWindow = DEFAULT_ROLLING_WINDOW;
+	private Integer abortThreshold = 0;
+	private Boolean lowerIsBetter = true;
+
+	@DataBoundConstructor
+	public AppDynamicsLivePollingWrapper(final String appdynamicsUri, final String username, final String password,
+			final String applicationName) {
+		this.appdynamicsUri = appdynamicsUri;
+		this.username = username;
+		this.password = password;
+		this.applicationName = applicationName;
+	}
+
+	@Override
+	public Environment setUp(final AbstractBuild build, final Launcher launcher, final BuildListener listener)
+			throws IOException, InterruptedException {
+		final PrintStream logger = listener.getLogger();
+		final LiveMetricsAction action = new LiveMetricsAction(metricPath, build.getTimeInMillis());
+		build.addAction(action);
+
+		final RestConnection connection = new RestConnection(appdynamicsUri, username, password, applicationName,
+				build.getProject().getFullName());
+		final LivePoller poller = new LivePoller(build, connection, action, logger);
+		final CollectionExecutor.RepeatingTask polling = CollectionExecutor.scheduleWithFixedDelay(poller,
+				getPollIntervalInSeconds(), TimeUnit.SECONDS);
+		logger.println(String.format("Polling AppDynamics metric '%s' every %d seconds", metricPath,
+				getPollIntervalInSeconds()));
+
+		return new Environment() {
+			@Override
+			public boolean tearDown(final AbstractBuild build, final BuildListener listener) {
+				polling.cancel();
+				listener.getLogger().println(String.format("Stopped polling AppDynamics, %d data points collected",
+						action.getPointCount()));
+				action.storeSeries(build.getRootDir());
+				return true;
+			}
+		};
+	}
+
+	final class LivePoller implements Runnable {
+		private final AbstractBuild<?, ?> build;
+		private final RestConnection connection;
+		private final LiveMetricsAction action;
+		private final PrintStream logger;
+
+		LivePoller(final AbstractBuild<?, ?> build, final RestConnection connection, final LiveMetricsAction action,
+				final PrintStream logger) {
+			this.build = build;
+			this.connection = connection;
+			this.action = action;
+			this.logger = logger;
+		}
+
+		@Override
+		public String toString() {
+			return "AppDynamics live polling of " + build;
+		}
+
+		public void run() {
+			try {
+				poll();
+			} catch (RuntimeException e) {
+				// Never let an exception cancel the next polls
+				LOG.log(Level.INFO, "Polling AppDynamics for " + build + " failed", e);
+			}
+		}
+
+		private void poll() {
+			// Only request the minutes since the last data point, plus the one
+			// that may have been incomplete at the previous poll
+			final long sinceLastPoint = System.currentTimeMillis() - action.getLastTimestamp();
+			final int durationInMinutes = (int) Math.max(1,
+					Math.min(TimeUnit.MILLISECONDS.toMinutes(sinceLastPoint) + 1, TimeUnit.DAYS.toMinutes(1)));
+
+			final MetricData polled = connection.fetchMetricData(metricPath, durationInMinutes);
+			if (polled == null) {
+				logger.println("[AppDynamics] No data received for " + metricPath);
+				return;
+			}
+
+			final String abortReason = process(polled);
+			if (abortReason != null) {
+				action.setAbortReason(abortReason);
+				logger.println("[AppDynamics] Aborting the build: " + abortReason);
+
+				final Executor executor = build.getExecutor();
+				if (executor != null) {
+					executor.interrupt(Result.ABORTED);
+				}
+			}
+		}
+
+		/**
+		 * Adds the polled data points to the action and prints the rolling
+		 * summary.
+		 *
+		 * @return the reason to abort the build, <code>null</code> when the
+		 *         abort threshold was not crossed
+		 */
+		String process(final MetricData polled) {
+			if (action.append(polled) == 0) {
+				return null;
+			}
+
+			final MetricSummary summary = action.getSummary();
+			final double rollingAverage = action.getRollingAverage(getRollingWindow());
+			logger.println(String.format("[AppDynamics] %s: points %d, average %.1f, min %d, max %d, last %d avg %s",
+					metricPath, summary.getCount(), summary.getMean(), summary.getMin(), summary.getMax(),
+					getRollingWindow(), rollingAverage < 0 ? "-" : String.format("%.1f", rollingAverage)));
+
+			if (!isAbortThresholdCrossed(rollingAverage)) {
+				return null;
+			}
+			return String.format("rolling average %.1f of %s crossed the abort threshold %d", rollingAverage,
+					metricPath, getAbortThreshold());
+		}
+	}
+
+	boolean isAbortThresholdCrossed(final double rollingAverage) {
+		if (getAbortThreshold() <= 0 || rollingAverage < 0) {
+			return false;
+		}
+		return getLowerIsBetter() ? rollingAverage > getAbortThreshold() : rollingAverage < getAbortThreshold();
+	}
+
+	public String getAppdynamicsUri() {
+		return appdynamicsUri;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public String getApplicationName() {
+		return applicationName;
+	}
+
+	public String getMetricPath() {
+		return metricPath;
+	}
+
+	@DataBoundSetter
+	public void setMetricPath(final String metricPath) {
+		if (metricPath == null || metricPath.isEmpty()) {
+			this.metricPath = DEFAULT_METRIC_PATH;
+		} else {
+			this.metricPath = metricPath;
+		}
+	}
+
+	public Integer getPollIntervalInSeconds() {
+		return pollIntervalInSeconds == null ? DEFAULT_POLL_INTERVAL_IN_SECONDS : pollIntervalInSeconds;
+	}
+
+	@DataBoundSetter
+	public void setPollIntervalInSeconds(final Integer pollIntervalInSeconds) {
+		if (pollIntervalInSeconds == null) {
+			this.pollIntervalInSeconds = DEFAULT_POLL_INTERVAL_IN_SECONDS;
+		} else {
+			this.pollIntervalInSeconds = Math.max(MIN_POLL_INTERVAL_IN_SECONDS, Math.min(pollIntervalInSeconds, 3600));
+		}
+	}
+
+	public Integer getRollingWindow() {
+		return rollingWindow == null ? DEFAULT_ROLLING_WINDOW : rollingWindow;
+	}
+
+	@DataBoundSetter
+	public void setRollingWindow(final Integer rollingWindow) {
+		if (rollingWindow == null) {
+			this.rollingWindow = DEFAULT_ROLLING_WINDOW;
+		} else {
+			this.rollingWindow = Math.max(1, Math.min(rollingWindow, 60));
+		}
+	}
+
+	public Integer getAbortThreshold() {
+		return abortThreshold == null ? 0 : abortThreshold;
+	}
+
+	@DataBoundSetter
+	public void setAbortThreshold(final Integer abortThreshold) {
+		this.abortThreshold = abortThreshold == null ? 0 : Math.max(0, abortThreshold);
+	}
+
+	public Boolean getLowerIsBetter() {
+		return lowerIsBetter == null || lowerIsBetter;
+	}
+
+	@DataBoundSetter
+	public void setLowerIsBetter(final Boolean lowerIsBetter) {
+		this.lowerIsBetter = lowerIsBetter;
+	}
+}
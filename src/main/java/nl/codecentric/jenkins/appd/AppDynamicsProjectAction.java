@@ -1,8 +1,10 @@
 package nl.codecentric.jenkins.appd;
 
 import java.awt.Color;
+import java.awt.HeadlessException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -10,23 +12,28 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.category.CategoryDataset;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import hudson.model.*;
-import hudson.util.ChartUtil;
-import hudson.util.ChartUtil.NumberOnlyBuildLabel;
 import hudson.util.DataSetBuilder;
-import hudson.util.Graph;
+import jenkins.model.Jenkins;
+import nl.codecentric.jenkins.appd.stats.ThresholdStatistic;
 
 /**
  * The {@link Action} that will be executed from your project and fetch the
  * AppDynamics performance data and display after a build. The Project Action
- * will show the graph for overall performance from all builds.
+ * will show the graph for overall performance from all builds, read from the
+ * {@link AppDynamicsTrendIndex} of the project. Graphs show the mean of each
+ * build, or the {@link ThresholdStatistic} given as request parameter.
  */
 public class AppDynamicsProjectAction implements Action {
 
@@ -38,15 +45,25 @@ public class AppDynamicsProjectAction implements Action {
 	private static final long serialVersionUID = 1L;
 
 	private static final String PLUGIN_NAME = "appdynamics-dashboard";
+	private static final int DEFAULT_GRAPH_WIDTH = 400;
+	private static final int DEFAULT_GRAPH_HEIGHT = 300;
+	private static final int MIN_GRAPH_DIMENSION = 100;
+	private static final int MAX_GRAPH_DIMENSION = 2000;
 
 	private final String mainMetricKey;
+	private final ThresholdStatistic mainStatistic;
 	private String[] allMetricKeys;
 	AbstractProject<?, ?> project;
 
+	/**
+	 * @param mainStatistic
+	 *            statistic of the main metric shown on the project page
+	 */
 	public AppDynamicsProjectAction(final AbstractProject<?, ?> project, final String mainMetricKey,
-			final String[] allMetricKeys) {
+			final String[] allMetricKeys, final ThresholdStatistic mainStatistic) {
 		this.project = project;
 		this.mainMetricKey = mainMetricKey;
+		this.mainStatistic = mainStatistic;
 		this.allMetricKeys = Arrays.copyOf(allMetricKeys, allMetricKeys.length);
 	}
 
@@ -72,142 +89,223 @@ public class AppDynamicsProjectAction implements Action {
 	}
 
 	public boolean isTrendVisibleOnProjectDashboard() {
-		return getExistingReportsList().size() >= 1;
+		return this.project != null && !AppDynamicsTrendIndex.forProject(this.project).isEmpty();
 	}
 
 	public List<String> getAvailableMetricKeys() {
 		return Arrays.asList(allMetricKeys);
 	}
 
-	/**
-	 * Graph of metric points over time.
-	 */
-	public void doSummarizerGraphMainMetric(final StaplerRequest request, final StaplerResponse response)
-			throws IOException {
-		final Map<ChartUtil.NumberOnlyBuildLabel, Double> averagesFromReports = getAveragesFromAllReports(
-				getExistingReportsList(), mainMetricKey);
+	public List<ThresholdStatistic> getAvailableStatistics() {
+		return Arrays.asList(ThresholdStatistic.values());
+	}
 
-		final Graph graph = new GraphImpl(mainMetricKey + " Overall Graph") {
+	public boolean isMigrationAllowed() {
+		return Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER);
+	}
 
-			protected DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> createDataSet() {
-				DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dataSetBuilder = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
+	/**
+	 * @return progress of the running migration of legacy reports, or
+	 *         <code>null</code> when none is running
+	 */
+	public String getMigrationStatus() {
+		return this.project == null ? null : LegacyReportMigration.getStatus(this.project);
+	}
 
-				Iterator<Entry<NumberOnlyBuildLabel, Double>> it = averagesFromReports.entrySet().iterator();
-				while (it.hasNext()) {
-					Entry<NumberOnlyBuildLabel, Double> entry = it.next();
-					ChartUtil.NumberOnlyBuildLabel label = (ChartUtil.NumberOnlyBuildLabel) entry.getKey();
-					Double value = (Double) entry.getValue();
-					dataSetBuilder.add(value, mainMetricKey, label);
-				}
+	/**
+	 * Starts migrating the reports of all builds of the project, stored by
+	 * older versions, in the background. See {@link LegacyReportMigration}.
+	 */
+	@RequirePOST
+	public void doMigrateLegacyReports(final StaplerRequest request, final StaplerResponse response)
+			throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		if (null == this.project) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
 
-				return dataSetBuilder;
-			}
-		};
+		LegacyReportMigration.start(this.project);
+		response.sendRedirect2(".");
+	}
 
-		graph.doPng(request, response);
+	/**
+	 * Graph of metric points over time.
+	 */
+	public void doSummarizerGraphMainMetric(final StaplerRequest request, final StaplerResponse response)
+			throws IOException {
+		renderTrendGraph(request, response, mainMetricKey, mainStatistic);
 	}
 
 	/**
-	 * Graph of metric points over time, metric to plot set as request
-	 * parameter.
+	 * Graph of metric points over time, metric and statistic to plot set as
+	 * request parameters.
 	 */
 	public void doSummarizerGraphForMetric(final StaplerRequest request, final StaplerResponse response)
 			throws IOException {
-		final String metricKey = request.getParameter("metricDataKey");
-		final Map<ChartUtil.NumberOnlyBuildLabel, Double> averagesFromReports = getAveragesFromAllReports(
-				getExistingReportsList(), metricKey);
-
-		final Graph graph = new GraphImpl(metricKey + " Overall Graph") {
+		renderTrendGraph(request, response, request.getParameter("metricDataKey"),
+				ThresholdStatistic.fromString(request.getParameter("statistic")));
+	}
 
-			protected DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> createDataSet() {
-				DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dataSetBuilder = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
+	/**
+	 * Serves the trend graph of the given metric from the
+	 * {@link TrendGraphCache}, only rendering it when the trend changed. The
+	 * image is served with an <code>ETag</code> and <code>Last-Modified</code>
+	 * header, so browsers refreshing the page get a 304 as long as no new
+	 * report was added.
+	 */
+	private void renderTrendGraph(final StaplerRequest request, final StaplerResponse response,
+			final String metricKey, final ThresholdStatistic statistic) throws IOException {
+		if (null == this.project || null == metricKey) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
 
-				Iterator<Entry<NumberOnlyBuildLabel, Double>> it = averagesFromReports.entrySet().iterator();
-				while (it.hasNext()) {
-					Entry<NumberOnlyBuildLabel, Double> entry = it.next();
-					ChartUtil.NumberOnlyBuildLabel label = (ChartUtil.NumberOnlyBuildLabel) entry.getKey();
-					Double value = (Double) entry.getValue();
-					dataSetBuilder.add(value, metricKey, label);
-				}
+		final AppDynamicsTrendIndex trendIndex = AppDynamicsTrendIndex.forProject(this.project);
+		final long lastModified = trendIndex.getLastModified();
+		final int width = parseDimension(request.getParameter("width"), DEFAULT_GRAPH_WIDTH);
+		final int height = parseDimension(request.getParameter("height"), DEFAULT_GRAPH_HEIGHT);
+		final String cacheKey = String.format("%s|%s|%s|%dx%d|%d|%d|%d", this.project.getRootDir(), metricKey,
+				statistic, width, height, trendIndex.getLatestBuildNumber(), trendIndex.getVersion(), lastModified);
+
+		final String eTag = '"' + Integer.toHexString(cacheKey.hashCode()) + '"';
+		response.setHeader("ETag", eTag);
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			// If-Modified-Since is ignored when If-None-Match is present, see RFC 7232, section 6
+			if (eTag.equals(ifNoneMatch)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+		} else if (request.checkIfModified(lastModified, response)) {
+			return;
+		}
 
-				return dataSetBuilder;
+		byte[] image = TrendGraphCache.get(cacheKey);
+		if (image == null) {
+			try {
+				image = renderPng(createTrendChart(metricKey, statistic, getValuesFromAllReports(metricKey, statistic)),
+						width, height);
+			} catch (HeadlessException e) {
+				// Same fallback as hudson.util.Graph
+				response.sendRedirect2(request.getContextPath() + "/images/headless.png");
+				return;
 			}
-		};
+			TrendGraphCache.put(cacheKey, image);
+		}
 
-		graph.doPng(request, response);
+		response.setContentType("image/png");
+		response.setContentLength(image.length);
+		final OutputStream output = response.getOutputStream();
+		output.write(image);
+		output.close();
 	}
 
-	private abstract class GraphImpl extends Graph {
-		private final String graphTitle;
-
-		protected GraphImpl(final String metricKey) {
-			super(-1, 400, 300); // cannot use timestamp, since ranges may
-									// change
-			this.graphTitle = stripTitle(metricKey);
+	/**
+	 * Creates the line chart of the given values, one point per build.
+	 */
+	static JFreeChart createTrendChart(final String metricKey, final ThresholdStatistic statistic,
+			final Map<BuildNumberLabel, Double> values) {
+		final DataSetBuilder<String, BuildNumberLabel> dataSetBuilder = new DataSetBuilder<String, BuildNumberLabel>();
+
+		Iterator<Entry<BuildNumberLabel, Double>> it = values.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<BuildNumberLabel, Double> entry = it.next();
+			dataSetBuilder.add(entry.getValue(), metricKey, entry.getKey());
 		}
 
-		private String stripTitle(final String metricKey) {
-			return metricKey.substring(metricKey.lastIndexOf("|") + 1);
+		final CategoryDataset dataset = dataSetBuilder.build();
+		final String title = metricKey + " Overall Graph";
+		String graphTitle = title.substring(title.lastIndexOf("|") + 1);
+		if (statistic != ThresholdStatistic.MEAN) {
+			graphTitle += " (" + statistic.getDisplayName() + ")";
 		}
 
-		protected abstract DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> createDataSet();
+		final JFreeChart chart = ChartFactory.createLineChart(graphTitle, // title
+				"Build Number #", // category axis label
+				null, // value axis label
+				dataset, // data
+				PlotOrientation.VERTICAL, // orientation
+				false, // include legend
+				true, // tooltips
+				false // urls
+		);
 
-		protected JFreeChart createGraph() {
-			final CategoryDataset dataset = createDataSet().build();
+		chart.setBackgroundPaint(Color.white);
 
-			final JFreeChart chart = ChartFactory.createLineChart(graphTitle, // title
-					"Build Number #", // category axis label
-					null, // value axis label
-					dataset, // data
-					PlotOrientation.VERTICAL, // orientation
-					false, // include legend
-					true, // tooltips
-					false // urls
-			);
+		return chart;
+	}
 
-			chart.setBackgroundPaint(Color.white);
+	static byte[] renderPng(final JFreeChart chart, final int width, final int height) throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(chart.createBufferedImage(width, height), "PNG", output);
+		return output.toByteArray();
+	}
 
-			return chart;
+	private static int parseDimension(final String value, final int defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(MIN_GRAPH_DIMENSION, Math.min(Integer.parseInt(value), MAX_GRAPH_DIMENSION));
+		} catch (NumberFormatException e) {
+			return defaultValue;
 		}
 	}
 
-	private List<AppDynamicsReport> getExistingReportsList() {
-		final List<AppDynamicsReport> adReportList = new ArrayList<AppDynamicsReport>();
-
+	private Map<BuildNumberLabel, Double> getValuesFromAllReports(final String metricKey,
+			final ThresholdStatistic statistic) {
 		if (null == this.project) {
-			return adReportList;
+			return new TreeMap<BuildNumberLabel, Double>();
 		}
+		return collectValues(AppDynamicsTrendIndex.forProject(this.project).getEntries(), metricKey, statistic);
+	}
 
-		final List<? extends AbstractBuild<?, ?>> builds = project.getBuilds();
-		for (AbstractBuild<?, ?> currentBuild : builds) {
-			final AppDynamicsBuildAction performanceBuildAction = currentBuild.getAction(AppDynamicsBuildAction.class);
-			if (performanceBuildAction == null) {
-				continue;
-			}
-			final AppDynamicsReport report = performanceBuildAction.getBuildActionResultsDisplay()
-					.getAppDynamicsReport();
-			if (report == null) {
-				continue;
+	/**
+	 * @return the given statistic of the metric per build, for all entries
+	 *         that contain it
+	 */
+	static Map<BuildNumberLabel, Double> collectValues(final List<AppDynamicsTrendIndex.Entry> entries,
+			final String metricKey, final ThresholdStatistic statistic) {
+		Map<BuildNumberLabel, Double> values = new TreeMap<BuildNumberLabel, Double>();
+		for (AppDynamicsTrendIndex.Entry entry : entries) {
+			double value = entry.getValueForMetric(metricKey, statistic);
+			if (value >= 0) {
+				values.put(new BuildNumberLabel(entry.getBuildNumber()), value);
 			}
-
-			adReportList.add(report);
 		}
 
-		return adReportList;
+		return values;
 	}
 
-	private Map<ChartUtil.NumberOnlyBuildLabel, Double> getAveragesFromAllReports(final List<AppDynamicsReport> reports,
-			final String metricKey) {
-		Map<ChartUtil.NumberOnlyBuildLabel, Double> averages = new TreeMap<ChartUtil.NumberOnlyBuildLabel, Double>();
-		for (AppDynamicsReport report : reports) {
-			double value = report.getAverageForMetric(metricKey);
-			if (value >= 0) {
-				ChartUtil.NumberOnlyBuildLabel label = new ChartUtil.NumberOnlyBuildLabel(
-						(Run<?, ?>) report.getBuild());
-				averages.put(label, value);
-			}
+	/**
+	 * Category label for the trend graphs, only needs the build number so no
+	 * build has to be loaded.
+	 */
+	static final class BuildNumberLabel implements Comparable<BuildNumberLabel> {
+		private final int buildNumber;
+
+		BuildNumberLabel(final int buildNumber) {
+			this.buildNumber = buildNumber;
 		}
 
-		return averages;
+		public int compareTo(final BuildNumberLabel other) {
+			return buildNumber < other.buildNumber ? -1 : (buildNumber == other.buildNumber ? 0 : 1);
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof BuildNumberLabel && ((BuildNumberLabel) other).buildNumber == buildNumber;
+		}
+
+		@Override
+		public int hashCode() {
+			return buildNumber;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + buildNumber;
+		}
 	}
 }
@@ -1,9 +1,15 @@
 package nl.codecentric.jenkins.appd;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -11,19 +17,49 @@ import org.joda.time.format.DateTimeFormatter;
 import hudson.model.*;
 import nl.codecentric.jenkins.appd.rest.types.ApplicationInformation;
 import nl.codecentric.jenkins.appd.rest.types.MetricData;
-import nl.codecentric.jenkins.appd.rest.types.MetricValues;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeriesCodec;
+import nl.codecentric.jenkins.appd.stats.MetricSummary;
 
 /**
- * Represents a single performance report
+ * Represents a single performance report. For each metric a
+ * {@link MetricSummary} is calculated when it is added, the average, minimum
+ * and maximum of a metric are read from there.<br />
+ * <br />
+ * Only the summaries are stored in build.xml. The raw series are written to a
+ * separate binary file in the build directory (see {@link MetricSeriesCodec})
+ * once the report is attached to its build, and only read again when they are
+ * needed, e.g. for the report page of the build. Loaded series are only
+ * softly referenced, within the memory budget of the {@link MetricSeriesCache}
+ * shared by all reports, and transparently read again after they were
+ * reclaimed.
  */
 public class AppDynamicsReport {
 
-	private final Map<String, MetricData> keyedMetricDataMap = new LinkedHashMap<String, MetricData>();
+	static final String SERIES_FILE_NAME = "appdynamics-series.bin";
+
+	private static final Logger LOG = Logger.getLogger(AppDynamicsReport.class.getName());
+
+	/**
+	 * Raw series as stored in build.xml by older versions, or when writing the
+	 * series file failed. <code>null</code> once stored in the series file.
+	 */
+	private Map<String, MetricData> keyedMetricDataMap;
+	/**
+	 * Series of a new report, kept strongly until stored in the series file.
+	 */
+	private transient Map<String, MetricData> unsavedMetricDataMap = new LinkedHashMap<String, MetricData>();
+	private transient SoftReference<Map<String, MetricData>> loadedMetricDataMap;
+	private transient File seriesDirectory;
+	private Map<String, MetricSummary> keyedMetricSummaryMap = new LinkedHashMap<String, MetricSummary>();
 	private final Long reportTimestamp;
 	private final Integer reportDurationInMinutes;
 
 	private AppDynamicsBuildAction buildAction;
+	/**
+	 * Only present in reports stored by older versions, dropped when loaded.
+	 */
 	private AppDynamicsReport lastBuildReport;
+	private transient volatile AppDynamicsTrendIndex.Entry previousReportEntry;
 	private ApplicationInformation applicationInformation;
 	private String appDynamicsControllerUri;
 
@@ -32,12 +68,13 @@ public class AppDynamicsReport {
 		this.reportDurationInMinutes = durationInMinutes;
 	}
 
-	public void addMetrics(final MetricData metrics) {
-		keyedMetricDataMap.put(metrics.getMetricPath(), metrics);
+	public synchronized void addMetrics(final MetricData metrics) {
+		getMetricDataMap().put(metrics.getMetricPath(), metrics);
+		keyedMetricSummaryMap.put(metrics.getMetricPath(), MetricSummary.fromSeries(metrics.getMetricSeries()));
 	}
 
 	public MetricData getMetricByKey(final String metricKey) {
-		final MetricData selectedMetric = keyedMetricDataMap.get(metricKey);
+		final MetricData selectedMetric = getMetricDataMap().get(metricKey);
 		if (selectedMetric == null) {
 			throw new IllegalArgumentException("Provided Metric Key is not available, tried to select; " + metricKey);
 		}
@@ -45,44 +82,128 @@ public class AppDynamicsReport {
 	}
 
 	public List<MetricData> getMetricsList() {
-		return new ArrayList<MetricData>(keyedMetricDataMap.values());
+		return new ArrayList<MetricData>(getMetricDataMap().values());
 	}
 
-	public double getAverageForMetric(final String metricKey) {
-		final MetricData selectedMetric = getMetricByKey(metricKey);
+	/**
+	 * Writes the raw series to the series file in the given build directory,
+	 * after which they are no longer part of build.xml. When writing fails the
+	 * series stay in build.xml, as before.
+	 */
+	synchronized void storeSeries(final File buildDirectory) {
+		final Map<String, MetricData> metricDataMap = getMetricDataMap();
+		final File seriesFile = new File(buildDirectory, SERIES_FILE_NAME);
+		try {
+			MetricSeriesCodec.write(seriesFile, metricDataMap.values());
+
+			this.seriesDirectory = buildDirectory;
+			this.keyedMetricDataMap = null;
+			this.unsavedMetricDataMap = null;
+			this.loadedMetricDataMap = new SoftReference<Map<String, MetricData>>(metricDataMap);
+			MetricSeriesCache.touch(seriesFile, metricDataMap);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to store AppDynamics metric series in " + seriesFile
+					+ ", keeping them in build.xml", e);
+			this.keyedMetricDataMap = metricDataMap;
+			this.unsavedMetricDataMap = null;
+		}
+	}
+
+	/**
+	 * Sets the build directory the raw series are read from, when the report
+	 * is loaded with its build.
+	 */
+	synchronized void setSeriesDirectory(final File buildDirectory) {
+		this.seriesDirectory = buildDirectory;
+	}
 
-		long calculatedSum = 0;
-		for (MetricValues value : selectedMetric.getMetricValues()) {
-			calculatedSum += value.getValue();
+	/**
+	 * @return the time the raw series were stored in the build directory, or
+	 *         the time of the build when they are still part of build.xml
+	 */
+	synchronized long getStoredTimestamp() {
+		if (seriesDirectory != null) {
+			final long lastModified = new File(seriesDirectory, SERIES_FILE_NAME).lastModified();
+			if (lastModified > 0) {
+				return lastModified;
+			}
 		}
+		return getBuild().getTimeInMillis();
+	}
+
+	/**
+	 * @return <code>true</code> when the raw series are still part of
+	 *         build.xml
+	 */
+	synchronized boolean hasInlineSeries() {
+		return keyedMetricDataMap != null;
+	}
 
-		final int numberOfMeasurements = selectedMetric.getMetricValues().size();
-		double result = -1;
-		if (numberOfMeasurements > 0) {
-			result = (double) calculatedSum / (double) numberOfMeasurements;
+	private synchronized Map<String, MetricData> getMetricDataMap() {
+		if (unsavedMetricDataMap != null) {
+			return unsavedMetricDataMap;
+		}
+		if (keyedMetricDataMap != null) {
+			return keyedMetricDataMap;
 		}
 
-		return result;
+		Map<String, MetricData> metricDataMap = loadedMetricDataMap == null ? null : loadedMetricDataMap.get();
+		if (metricDataMap == null) {
+			metricDataMap = loadSeries();
+			loadedMetricDataMap = new SoftReference<Map<String, MetricData>>(metricDataMap);
+		}
+		if (seriesDirectory != null) {
+			MetricSeriesCache.touch(new File(seriesDirectory, SERIES_FILE_NAME), metricDataMap);
+		}
+		return metricDataMap;
 	}
 
-	public long getMaxForMetric(final String metricKey) {
-		final MetricData selectedMetric = getMetricByKey(metricKey);
+	private Map<String, MetricData> loadSeries() {
+		final Map<String, MetricData> metricDataMap = new LinkedHashMap<String, MetricData>();
+		if (seriesDirectory == null) {
+			return metricDataMap;
+		}
+
+		final File seriesFile = new File(seriesDirectory, SERIES_FILE_NAME);
+		try {
+			for (MetricData metrics : MetricSeriesCodec.read(seriesFile)) {
+				metricDataMap.put(metrics.getMetricPath(), metrics);
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to read AppDynamics metric series from " + seriesFile, e);
+		}
+		return metricDataMap;
+	}
 
-		long max = Long.MIN_VALUE;
-		for (MetricValues value : selectedMetric.getMetricValues()) {
-			max = Math.max(value.getMax(), max);
+	public MetricSummary getSummaryForMetric(final String metricKey) {
+		final MetricSummary selectedSummary = keyedMetricSummaryMap.get(metricKey);
+		if (selectedSummary == null) {
+			throw new IllegalArgumentException("Provided Metric Key is not available, tried to select; " + metricKey);
 		}
-		return max;
+		return selectedSummary;
+	}
+
+	public double getAverageForMetric(final String metricKey) {
+		return getSummaryForMetric(metricKey).getMean();
+	}
+
+	public long getMaxForMetric(final String metricKey) {
+		return getSummaryForMetric(metricKey).getMax();
 	}
 
 	public long getMinForMetric(final String metricKey) {
-		final MetricData selectedMetric = getMetricByKey(metricKey);
+		return getSummaryForMetric(metricKey).getMin();
+	}
 
-		long min = Long.MAX_VALUE;
-		for (MetricValues value : selectedMetric.getMetricValues()) {
-			min = Math.min(value.getMin(), min);
-		}
-		return min;
+	public double getStandardDeviationForMetric(final String metricKey) {
+		return getSummaryForMetric(metricKey).getStandardDeviation();
+	}
+
+	/**
+	 * @return the summaries of all metrics, keyed by metric path
+	 */
+	public Map<String, MetricSummary> getMetricSummaries() {
+		return Collections.unmodifiableMap(keyedMetricSummaryMap);
 	}
 
 	public String getName() {
@@ -109,9 +230,10 @@ public class AppDynamicsReport {
 		long lastBuildEndTimestamp = this.getEndTimestamp();
 		long lastBuildTimestamp = this.getTimestamp();
 
-		if (this.lastBuildReport != null) {
-			lastBuildEndTimestamp = this.lastBuildReport.getEndTimestamp();
-			lastBuildTimestamp = this.lastBuildReport.getTimestamp();
+		final AppDynamicsTrendIndex.Entry previousEntry = this.previousReportEntry;
+		if (previousEntry != null) {
+			lastBuildEndTimestamp = previousEntry.getEndTimestamp();
+			lastBuildTimestamp = previousEntry.getTimestamp();
 		}
 
 		String url = "";
@@ -126,6 +248,10 @@ public class AppDynamicsReport {
 		return reportTimestamp;
 	}
 
+	public int getDurationInMinutes() {
+		return reportDurationInMinutes;
+	}
+
 	public long getEndTimestamp() {
 		return getTimestamp() + (this.reportDurationInMinutes * (long) 60000);
 	}
@@ -142,8 +268,12 @@ public class AppDynamicsReport {
 		this.buildAction = buildAction;
 	}
 
-	public void setLastBuildReport(AppDynamicsReport lastBuildReport) {
-		this.lastBuildReport = lastBuildReport;
+	/**
+	 * Sets the trend index entry of the previous report of the project, used
+	 * for the compare release link.
+	 */
+	void setPreviousReportEntry(final AppDynamicsTrendIndex.Entry previousReportEntry) {
+		this.previousReportEntry = previousReportEntry;
 	}
 
 	public void setApplicationInformation(ApplicationInformation applicationInformation) {
@@ -174,4 +304,25 @@ public class AppDynamicsReport {
 		this.appDynamicsControllerUri = appDynamicsControllerUri;
 	}
 
+	/**
+	 * Reports stored before summaries were kept get them calculated once when
+	 * loaded.
+	 */
+	protected Object readResolve() {
+		// Older versions stored the whole previous report (and its previous
+		// report, and so on) with each report
+		lastBuildReport = null;
+
+		if (keyedMetricSummaryMap == null) {
+			keyedMetricSummaryMap = new LinkedHashMap<String, MetricSummary>();
+			final Map<String, MetricData> metricDataMap = keyedMetricDataMap == null
+					? Collections.<String, MetricData> emptyMap() : keyedMetricDataMap;
+			for (MetricData metrics : metricDataMap.values()) {
+				keyedMetricSummaryMap.put(metrics.getMetricPath(),
+						MetricSummary.fromSeries(metrics.getMetricSeries()));
+			}
+		}
+		return this;
+	}
+
 }
@@ -2,13 +2,19 @@ package nl.codecentric.jenkins.appd;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import nl.codecentric.jenkins.appd.rest.MetricResponseCache;
 import nl.codecentric.jenkins.appd.rest.RestConnection;
+import nl.codecentric.jenkins.appd.stats.Baseline;
+import nl.codecentric.jenkins.appd.stats.BaselineMode;
+import nl.codecentric.jenkins.appd.stats.MetricSummary;
+import nl.codecentric.jenkins.appd.stats.RegressionAnalysis;
+import nl.codecentric.jenkins.appd.stats.ThresholdStatistic;
+import nl.codecentric.jenkins.appd.stats.WeightedMoments;
 
 import hudson.Extension;
 import hudson.Launcher;
@@ -47,6 +53,8 @@ public class AppDynamicsResultsPublisher extends Recorder {
 	private static final int DEFAULT_THRESHOLD_UNSTABLE = 80;
 	private static final int DEFAULT_THRESHOLD_FAILED = 65;
 	private static final int DEFAULT_MINIMUM_MEASURE_TIME_MINUTES = 10;
+	private static final int DEFAULT_BASELINE_WINDOW = 10;
+	private static final int DEFAULT_REQUIRED_CONFIDENCE = 95;
 
 	public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
@@ -85,6 +93,53 @@ public class AppDynamicsResultsPublisher extends Recorder {
 			return DEFAULT_THRESHOLD_FAILED;
 		}
 
+		public int getDefaultFetchThreads() {
+			return AppDynamicsDataCollector.DEFAULT_FETCH_THREADS;
+		}
+
+		public int getDefaultFetchTimeoutInSeconds() {
+			return AppDynamicsDataCollector.DEFAULT_FETCH_TIMEOUT_IN_SECONDS;
+		}
+
+		public int getDefaultBaselineWindow() {
+			return DEFAULT_BASELINE_WINDOW;
+		}
+
+		public int getDefaultRequiredConfidence() {
+			return DEFAULT_REQUIRED_CONFIDENCE;
+		}
+
+		public ListBoxModel doFillBaselineModeItems() {
+			ListBoxModel model = new ListBoxModel();
+
+			for (BaselineMode mode : BaselineMode.values()) {
+				model.add(mode.getDisplayName(), mode.name());
+			}
+
+			return model;
+		}
+
+		public ListBoxModel doFillThresholdStatisticItems() {
+			ListBoxModel model = new ListBoxModel();
+
+			for (ThresholdStatistic statistic : ThresholdStatistic.values()) {
+				model.add(statistic.getDisplayName(), statistic.name());
+			}
+
+			return model;
+		}
+
+		public ListBoxModel doFillBaselineStatisticItems() {
+			ListBoxModel model = new ListBoxModel();
+
+			model.add("Threshold statistic of each previous report", "");
+			for (ThresholdStatistic statistic : ThresholdStatistic.values()) {
+				model.add(statistic.getDisplayName() + " of all calls of the previous reports", statistic.name());
+			}
+
+			return model;
+		}
+
 		public ListBoxModel doFillThresholdMetricItems() {
 			ListBoxModel model = new ListBoxModel();
 
@@ -178,6 +233,14 @@ public class AppDynamicsResultsPublisher extends Recorder {
 	private Integer minimumMeasureTimeInMinutes = DEFAULT_MINIMUM_MEASURE_TIME_MINUTES;
 	private Integer performanceFailedThreshold = DEFAULT_THRESHOLD_FAILED;
 	private Integer performanceUnstableThreshold = DEFAULT_THRESHOLD_UNSTABLE;
+	private Integer fetchThreads = AppDynamicsDataCollector.DEFAULT_FETCH_THREADS;
+	private Integer fetchTimeoutInSeconds = AppDynamicsDataCollector.DEFAULT_FETCH_TIMEOUT_IN_SECONDS;
+	private String baselineMode = BaselineMode.ALL_BUILDS.name();
+	private Integer baselineWindow = DEFAULT_BASELINE_WINDOW;
+	private Boolean asynchronousCollection = false;
+	private String thresholdStatistic = ThresholdStatistic.MEAN.name();
+	private String baselineStatistic = "";
+	private Integer requiredConfidence = DEFAULT_REQUIRED_CONFIDENCE;
 
 	@DataBoundConstructor
 	public AppDynamicsResultsPublisher(final String appdynamicsUri, final String username, final String password,
@@ -204,7 +267,8 @@ public class AppDynamicsResultsPublisher extends Recorder {
 	@Override
 	public Action getProjectAction(AbstractProject<?, ?> project) {
 		return new AppDynamicsProjectAction(project, thresholdMetric,
-				AppDynamicsDataCollector.getMergedMetricPaths(customMetricPath));
+				AppDynamicsDataCollector.getMergedMetricPaths(customMetricPath),
+				ThresholdStatistic.fromString(getThresholdStatistic()));
 	}
 
 	public BuildStepMonitor getRequiredMonitorService() {
@@ -217,26 +281,59 @@ public class AppDynamicsResultsPublisher extends Recorder {
 			throws InterruptedException, IOException {
 		PrintStream logger = listener.getLogger();
 
-		RestConnection connection = new RestConnection(appdynamicsUri, username, password, applicationName);
-		logger.println("Verify connection to AppDynamics REST interface ...");
-		if (!connection.validateConnection()) {
-			logger.println(
-					"Connection to AppDynamics REST interface unsuccessful, cannot proceed with this build step");
-			Result currentResult = build.getResult();
-			if (currentResult != null && currentResult.isBetterOrEqualTo(Result.UNSTABLE))
-				build.setResult(Result.FAILURE);
+		if (isAsynchronousCollection()) {
+			AsynchronousReportCollection.schedule(this, build, logger);
 			return true;
 		}
 
-		logger.println("Connection successful, continue to fetch measurements from AppDynamics Controller ...");
+		AppDynamicsReport report = collect(build, logger);
+		if (report != null) {
+			evaluate(build, report, logger);
+		}
+		return true;
+	}
+
+	/**
+	 * Fetches the report of the build from the AppDynamics Controller and
+	 * attaches it to the build.
+	 *
+	 * @return the report, or <code>null</code> when the Controller could not
+	 *         be reached, in which case the build is marked as failure.
+	 */
+	AppDynamicsReport collect(final AbstractBuild<?, ?> build, final PrintStream logger) {
+		RestConnection connection = new RestConnection(appdynamicsUri, username, password, applicationName,
+				build.getProject().getFullName());
+		logger.println("Fetching measurements from AppDynamics Controller ...");
 
 		AppDynamicsDataCollector dataCollector = new AppDynamicsDataCollector(connection, build, customMetricPath,
-				minimumMeasureTimeInMinutes);
+				minimumMeasureTimeInMinutes, getFetchThreads(), getFetchTimeoutInSeconds());
 		AppDynamicsReport report = dataCollector.createReportFromMeasurements();
+		logger.println("Waited " + connection.getWaitTimeInMillis() + " ms for the AppDynamics Controller ("
+				+ connection.getScheduler() + ", " + MetricResponseCache.getStatistics() + ")");
+
+		// Authentication and connectivity problems show up in the metric requests
+		final String connectionFailure = connection.getConnectionFailure();
+		if (report.getMetricsList().isEmpty() && connectionFailure != null) {
+			logger.println("Connection to AppDynamics REST interface unsuccessful (" + connectionFailure
+					+ "), cannot proceed with this build step");
+			updateResult(build, Result.FAILURE, logger);
+			return null;
+		}
 
 		AppDynamicsBuildAction buildAction = new AppDynamicsBuildAction(build, report);
 		build.addAction(buildAction);
+		return report;
+	}
+
+	/**
+	 * Compares the report with the baseline of the previous builds, marks the
+	 * build as unstable or failure depending on the outcome and records the
+	 * report in the {@link AppDynamicsTrendIndex}.
+	 */
+	void evaluate(final AbstractBuild<?, ?> build, final AppDynamicsReport report, final PrintStream logger) {
+		AppDynamicsTrendIndex trendIndex = AppDynamicsTrendIndex.forProject(build.getProject());
 
+		String thresholdMetric = this.thresholdMetric;
 		if (thresholdMetric.equals((AppDynamicsDataCollector.CUSTOM_METRIC_PATH))) {
 			thresholdMetric = customMetricPath;
 		}
@@ -247,13 +344,12 @@ public class AppDynamicsResultsPublisher extends Recorder {
 
 		try {
 			// Verify if the necessary metric is successfully fetched.
-			report.getMetricByKey(this.thresholdMetric);
+			report.getMetricByKey(thresholdMetric);
 		} catch (Exception e) {
 			logger.println("Unable to fetch (threshold) metric to determine if build is degrading. Aborting");
-			Result currentResult = build.getResult();
-			if (currentResult != null && currentResult.isBetterOrEqualTo(Result.UNSTABLE))
-				build.setResult(Result.FAILURE);
-			return true;
+			updateResult(build, Result.FAILURE, logger);
+			trendIndex.record(build, report);
+			return;
 		}
 
 		if (performanceUnstableThreshold >= 0 && performanceUnstableThreshold <= 100) {
@@ -272,12 +368,38 @@ public class AppDynamicsResultsPublisher extends Recorder {
 		}
 
 		// mark the build as unstable or failure depending on the outcome.
-		List<AppDynamicsReport> previousReportList = getListOfPreviousReports(build, report.getTimestamp());
-		logger.println("Number of old reports located for average: " + previousReportList.size());
-		double averageOverTime = calculateAverageBasedOnPreviousReports(previousReportList);
+		BaselineMode mode = BaselineMode.fromString(getBaselineMode());
+		logger.println("Baseline of previous reports: " + mode.getDisplayName()
+				+ (mode == BaselineMode.ALL_BUILDS ? "" : " (N = " + getBaselineWindow() + ")"));
+		ThresholdStatistic statistic = ThresholdStatistic.fromString(getThresholdStatistic());
+		double currentReportAverage = statistic.getValue(report.getSummaryForMetric(thresholdMetric));
+		if (currentReportAverage < 0 && statistic != ThresholdStatistic.MEAN) {
+			logger.println(statistic.getDisplayName() + " not available for the threshold metric, using the mean");
+			statistic = ThresholdStatistic.MEAN;
+			currentReportAverage = report.getAverageForMetric(thresholdMetric);
+		}
+		logger.println("Threshold statistic: " + statistic.getDisplayName());
+		double averageOverTime = -1;
+		if (isMergedBaseline()) {
+			ThresholdStatistic baselineStatistic = ThresholdStatistic.fromString(getBaselineStatistic());
+			logger.println("Baseline statistic: " + baselineStatistic.getDisplayName()
+					+ " of all calls of the previous reports");
+			averageOverTime = trendIndex.getMergedBaseline(thresholdMetric, baselineStatistic, mode,
+					getBaselineWindow(), build.getNumber(), report.getTimestamp());
+			if (averageOverTime < 0) {
+				logger.println("No previous report with a sketch of the calls, using the "
+						+ statistic.getDisplayName() + " of each previous report");
+			}
+		}
+		if (averageOverTime < 0) {
+			averageOverTime = trendIndex.getBaseline(thresholdMetric, statistic, mode, getBaselineWindow(),
+					build.getNumber(), report.getTimestamp());
+		}
+		if (averageOverTime < 0) {
+			// First report of this project, compare with itself
+			averageOverTime = currentReportAverage;
+		}
 		logger.println("Calculated average from previous reports: " + averageOverTime);
-
-		double currentReportAverage = report.getAverageForMetric(thresholdMetric);
 		logger.println("Current report average: " + currentReportAverage);
 		double performanceAsPercentageOfAverage;
 		if (lowerIsBetter) {
@@ -287,61 +409,89 @@ public class AppDynamicsResultsPublisher extends Recorder {
 		}
 		logger.println("Current average as percentage of total average: " + performanceAsPercentageOfAverage + "%");
 
-		Result result;
-		if (performanceFailedThreshold >= 0 && performanceAsPercentageOfAverage - performanceFailedThreshold < 0) {
-			build.setResult(Result.FAILURE);
-		} else if (performanceUnstableThreshold >= 0
-				&& performanceAsPercentageOfAverage - performanceUnstableThreshold < 0) {
-			result = Result.UNSTABLE;
-			Result currentResult = build.getResult();
-			if (currentResult != null && result.isWorseThan(currentResult)) {
-				build.setResult(result);
+		boolean significant = true;
+		if (isRegressionTested(statistic)) {
+			significant = isSignificantRegression(trendIndex, build, report, thresholdMetric, mode, logger);
+		} else if (getRequiredConfidence() > 0) {
+			logger.println("The regression test only compares means, it is not applied to the "
+					+ (isMergedBaseline() ? "merged baseline" : statistic.getDisplayName())
+					+ ", only the thresholds are used");
+		}
+
+		// Without a significant degradation the difference is noise, and the build status is left as it is
+		if (significant) {
+			if (performanceFailedThreshold >= 0 && performanceAsPercentageOfAverage - performanceFailedThreshold < 0) {
+				updateResult(build, Result.FAILURE, logger);
+			} else if (performanceUnstableThreshold >= 0
+					&& performanceAsPercentageOfAverage - performanceUnstableThreshold < 0) {
+				updateResult(build, Result.UNSTABLE, logger);
 			}
 		}
 
 		logger.println("Metric: " + thresholdMetric + " reported performance compared to average of "
 				+ performanceAsPercentageOfAverage + "% . Build status is: " + build.getResult());
 
-		return true;
+		trendIndex.record(build, report);
 	}
 
-	private double calculateAverageBasedOnPreviousReports(final List<AppDynamicsReport> reports) {
-		double calculatedSum = 0;
-		int numberOfMeasurements = 0;
-		for (AppDynamicsReport report : reports) {
-			double value = report.getAverageForMetric(thresholdMetric);
-			if (value >= 0) {
-				calculatedSum += value;
-				numberOfMeasurements++;
-			}
-		}
+	/**
+	 * @return whether the thresholds are only applied to a significant
+	 *         degradation; the regression test compares the means of the data
+	 *         points, so it is only used when the mean of each report is
+	 *         compared
+	 */
+	boolean isRegressionTested(final ThresholdStatistic statistic) {
+		return getRequiredConfidence() > 0 && statistic == ThresholdStatistic.MEAN && !isMergedBaseline();
+	}
 
-		double result = -1;
-		if (numberOfMeasurements > 0) {
-			result = calculatedSum / numberOfMeasurements;
+	/**
+	 * Tests whether the mean of the threshold metric is worse than the mean of
+	 * the baseline with the required confidence, see
+	 * {@link RegressionAnalysis}. When there are not enough data points to
+	 * test, the thresholds decide on their own.
+	 */
+	private boolean isSignificantRegression(final AppDynamicsTrendIndex trendIndex, final AbstractBuild<?, ?> build,
+			final AppDynamicsReport report, final String thresholdMetric, final BaselineMode mode,
+			final PrintStream logger) {
+		MetricSummary summary = report.getSummaryForMetric(thresholdMetric);
+		WeightedMoments current = summary.getMoments();
+		WeightedMoments baseline = trendIndex.getBaselineMoments(thresholdMetric, mode, getBaselineWindow(),
+				build.getNumber(), report.getTimestamp());
+		RegressionAnalysis analysis = current == null || baseline == null ? null
+				: RegressionAnalysis.compare(baseline, current, lowerIsBetter);
+		if (analysis == null) {
+			logger.println("Not enough data points for the regression test, only the thresholds are used");
+			return true;
 		}
 
-		return result;
+		logger.println("Regression test of the mean against the baseline (Welch's t-test): " + analysis);
+		boolean significant = analysis.isSignificant(getRequiredConfidence() / 100.0);
+		if (!significant) {
+			logger.println("No significant degradation at the required confidence of " + getRequiredConfidence()
+					+ "%, the thresholds are not applied");
+		}
+		return significant;
 	}
 
-	private List<AppDynamicsReport> getListOfPreviousReports(final AbstractBuild<?, ?> build,
-			final long currentTimestamp) {
-		final List<AppDynamicsReport> previousReports = new ArrayList<AppDynamicsReport>();
-
-		final List<? extends AbstractBuild<?, ?>> builds = build.getProject().getBuilds();
-		for (AbstractBuild<?, ?> currentBuild : builds) {
-			final AppDynamicsBuildAction performanceBuildAction = currentBuild.getAction(AppDynamicsBuildAction.class);
-			if (performanceBuildAction == null) {
-				continue;
-			}
-			final AppDynamicsReport report = performanceBuildAction.getBuildActionResultsDisplay()
-					.getAppDynamicsReport();
-			if (report != null && (report.getTimestamp() != currentTimestamp || builds.size() == 1)) {
-				previousReports.add(report);
-			}
+	/**
+	 * Makes the result of the build worse, never better. The result of a
+	 * build that already completed, i.e. when collected asynchronously, can no
+	 * longer be changed, it is shown as {@link DelayedResultAction} instead.
+	 */
+	private static void updateResult(final AbstractBuild<?, ?> build, final Result result,
+			final PrintStream logger) {
+		Result currentResult = build.getResult();
+		if (currentResult != null && !result.isWorseThan(currentResult)) {
+			return;
 		}
 
-		return previousReports;
+		if (!build.isBuilding()) {
+			logger.println("Unable to mark the completed build as " + result.toString().toLowerCase()
+					+ ", the build status stays " + currentResult);
+			DelayedResultAction.record(build, result);
+			return;
+		}
+		build.setResult(result);
 	}
 
 	public String getAppdynamicsUri() {
@@ -432,4 +582,113 @@ public class AppDynamicsResultsPublisher extends Recorder {
 	public void setPerformanceUnstableThreshold(final Integer performanceUnstableThreshold) {
 		this.performanceUnstableThreshold = Math.max(0, Math.min(performanceUnstableThreshold, 100));
 	}
+
+	public Integer getFetchThreads() {
+		// Configurations saved before this option existed have no value
+		return fetchThreads == null ? AppDynamicsDataCollector.DEFAULT_FETCH_THREADS : fetchThreads;
+	}
+
+	@DataBoundSetter
+	public void setFetchThreads(final Integer fetchThreads) {
+		if (fetchThreads == null) {
+			this.fetchThreads = AppDynamicsDataCollector.DEFAULT_FETCH_THREADS;
+		} else {
+			this.fetchThreads = Math.max(1, Math.min(fetchThreads, 16));
+		}
+	}
+
+	public Integer getFetchTimeoutInSeconds() {
+		return fetchTimeoutInSeconds == null ? AppDynamicsDataCollector.DEFAULT_FETCH_TIMEOUT_IN_SECONDS
+				: fetchTimeoutInSeconds;
+	}
+
+	@DataBoundSetter
+	public void setFetchTimeoutInSeconds(final Integer fetchTimeoutInSeconds) {
+		if (fetchTimeoutInSeconds == null) {
+			this.fetchTimeoutInSeconds = AppDynamicsDataCollector.DEFAULT_FETCH_TIMEOUT_IN_SECONDS;
+		} else {
+			this.fetchTimeoutInSeconds = Math.max(10, Math.min(fetchTimeoutInSeconds, 3600));
+		}
+	}
+
+	public String getBaselineMode() {
+		return baselineMode == null ? BaselineMode.ALL_BUILDS.name() : baselineMode;
+	}
+
+	@DataBoundSetter
+	public void setBaselineMode(final String baselineMode) {
+		this.baselineMode = BaselineMode.fromString(baselineMode).name();
+	}
+
+	public Integer getBaselineWindow() {
+		return baselineWindow == null ? DEFAULT_BASELINE_WINDOW : baselineWindow;
+	}
+
+	@DataBoundSetter
+	public void setBaselineWindow(final Integer baselineWindow) {
+		if (baselineWindow == null) {
+			this.baselineWindow = DEFAULT_BASELINE_WINDOW;
+		} else {
+			this.baselineWindow = Math.max(1, Math.min(baselineWindow, Baseline.MAX_WINDOW));
+		}
+	}
+
+	public boolean isAsynchronousCollection() {
+		return asynchronousCollection != null && asynchronousCollection;
+	}
+
+	@DataBoundSetter
+	public void setAsynchronousCollection(final Boolean asynchronousCollection) {
+		this.asynchronousCollection = asynchronousCollection;
+	}
+
+	public String getThresholdStatistic() {
+		return thresholdStatistic == null ? ThresholdStatistic.MEAN.name() : thresholdStatistic;
+	}
+
+	@DataBoundSetter
+	public void setThresholdStatistic(final String thresholdStatistic) {
+		this.thresholdStatistic = ThresholdStatistic.fromString(thresholdStatistic).name();
+	}
+
+	/**
+	 * @return the statistic of the merged calls of the previous reports the
+	 *         threshold metric is compared with, empty to compare with the
+	 *         threshold statistic of each previous report
+	 */
+	public String getBaselineStatistic() {
+		return baselineStatistic == null ? "" : baselineStatistic;
+	}
+
+	@DataBoundSetter
+	public void setBaselineStatistic(final String baselineStatistic) {
+		if (baselineStatistic == null || baselineStatistic.isEmpty()) {
+			this.baselineStatistic = "";
+		} else {
+			this.baselineStatistic = ThresholdStatistic.fromString(baselineStatistic).name();
+		}
+	}
+
+	public boolean isMergedBaseline() {
+		return !getBaselineStatistic().isEmpty();
+	}
+
+	/**
+	 * @return confidence in percent a degradation must have before the
+	 *         thresholds are applied, 0 when the thresholds decide on their
+	 *         own
+	 */
+	public Integer getRequiredConfidence() {
+		// Configurations saved before this option existed keep their behavior
+		return requiredConfidence == null ? 0 : requiredConfidence;
+	}
+
+	@DataBoundSetter
+	public void setRequiredConfidence(final Integer requiredConfidence) {
+		if (requiredConfidence == null) {
+			this.requiredConfidence = 0;
+		} else {
+			this.requiredConfidence = Math.max(0, Math.min(requiredConfidence, 99));
+		}
+	}
 }
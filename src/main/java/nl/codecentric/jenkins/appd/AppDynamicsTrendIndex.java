@@ -0,0 +1,940 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.AtomicFileWriter;
+import nl.codecentric.jenkins.appd.stats.Baseline;
+import nl.codecentric.jenkins.appd.stats.BaselineMode;
+import nl.codecentric.jenkins.appd.stats.MetricSummary;
+import nl.codecentric.jenkins.appd.stats.MomentsBaseline;
+import nl.codecentric.jenkins.appd.stats.QuantileSketch;
+import nl.codecentric.jenkins.appd.stats.SketchBaseline;
+import nl.codecentric.jenkins.appd.stats.ThresholdStatistic;
+import nl.codecentric.jenkins.appd.stats.WeightedMoments;
+
+/**
+ * Per-project index of the summaries of all AppDynamics reports, kept in a
+ * small text file next to the project configuration. Trend graphs and
+ * threshold checks read this index instead of loading every build.<br />
+ * <br />
+ * The index is appended to whenever a report is created, and only rebuilt
+ * from the build records when the file is missing or cannot be read. Each line
+ * holds the summary of one metric of one build, tab separated:
+ *
+ * <pre>
+ * buildNumber result timestamp durationInMinutes metricPath count sum min max mean standardDeviation p50 p90 p95 p99 sketch moments
+ * </pre>
+ *
+ * Tabs, line breaks and backslashes in the metric path are escaped with a
+ * backslash. The percentile columns are -1 and the sketch and moments are '-'
+ * when not known; they are missing in lines written by older versions. The
+ * result is '-' for a build that was still running, a line with only the
+ * first four columns sets the result once it completed.<br />
+ * <br />
+ * Baselines are kept in memory next to the index. Each is built from the
+ * index the first time it is asked for, and then updated with every recorded
+ * build. A baseline either combines one value per build, see
+ * {@link Baseline}, merges the sketches of the builds, see
+ * {@link SketchBaseline}, or merges the moments of the data points of the
+ * builds, see {@link MomentsBaseline}. The encoded sketches and moments of
+ * completed builds are only kept in the file, they are read when a baseline
+ * of them is built.
+ */
+public class AppDynamicsTrendIndex {
+
+	static final String INDEX_FILE_NAME = "appdynamics-trend-index.txt";
+	static final String HEADER = "# AppDynamics trend index v1";
+	private static final String SEPARATOR = "\t";
+	private static final int SUMMARY_COLUMNS = 11;
+	private static final int PERCENTILE_COLUMNS = SUMMARY_COLUMNS + MetricSummary.PERCENTILES.length;
+	private static final int SKETCH_COLUMN = PERCENTILE_COLUMNS;
+	private static final int MOMENTS_COLUMN = SKETCH_COLUMN + 1;
+	private static final String NOT_AVAILABLE = "-";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Logger LOG = Logger.getLogger(AppDynamicsTrendIndex.class.getName());
+	private static final ConcurrentMap<File, AppDynamicsTrendIndex> INDEXES = new ConcurrentHashMap<File, AppDynamicsTrendIndex>();
+
+	private final AbstractProject<?, ?> project;
+	private final File indexFile;
+	private final TreeMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+	private final Map<String, BaselineHolder> baselines = new HashMap<String, BaselineHolder>();
+	private boolean loaded;
+	private long version;
+	private long lastModified;
+
+	private AppDynamicsTrendIndex(final AbstractProject<?, ?> project) {
+		this(project, new File(project.getRootDir(), INDEX_FILE_NAME));
+	}
+
+	AppDynamicsTrendIndex(final AbstractProject<?, ?> project, final File indexFile) {
+		this.project = project;
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Returns the index of the given project, it is read from disk (or rebuilt)
+	 * the first time it is used. An index left behind by a deleted project of
+	 * the same name is replaced.
+	 */
+	public static AppDynamicsTrendIndex forProject(final AbstractProject<?, ?> project) {
+		final File key = project.getRootDir();
+		while (true) {
+			final AppDynamicsTrendIndex index = INDEXES.get(key);
+			if (index != null && index.project == project) {
+				return index;
+			}
+
+			final AppDynamicsTrendIndex newIndex = new AppDynamicsTrendIndex(project);
+			if (index == null ? INDEXES.putIfAbsent(key, newIndex) == null : INDEXES.replace(key, index, newIndex)) {
+				return newIndex;
+			}
+		}
+	}
+
+	/**
+	 * Drops the indexes of the given item, and of the projects within it,
+	 * from memory. They are read again from the index file when used.
+	 */
+	static void forget(final Item item) {
+		final String prefix = item.getFullName() + "/";
+		for (Iterator<AppDynamicsTrendIndex> indexes = INDEXES.values().iterator(); indexes.hasNext();) {
+			final AbstractProject<?, ?> project = indexes.next().project;
+			if (project == item || (item instanceof ItemGroup && project.getFullName().startsWith(prefix))) {
+				indexes.remove();
+			}
+		}
+	}
+
+	/**
+	 * Adds the summaries of the report of the given build, and appends them to
+	 * the index file. A build that is still running only becomes part of the
+	 * baselines once its result is known, see {@link #updateResult(int, Result)}.
+	 */
+	public void record(final AbstractBuild<?, ?> build, final AppDynamicsReport report) {
+		record(Entry.fromReport(build, report));
+	}
+
+	synchronized void record(final Entry entry) {
+		ensureLoaded();
+
+		entries.put(entry.getBuildNumber(), entry);
+		addToBaselines(entry);
+		markModified();
+		append(entry, false);
+		if (entry.getResult() != null) {
+			entry.dropSketchesAndMoments();
+		}
+	}
+
+	/**
+	 * Sets the result of a build once it completed, the result at the moment
+	 * the report was recorded may have been unknown or changed by later steps.
+	 */
+	synchronized void updateResult(final int buildNumber, final Result result) {
+		ensureLoaded();
+
+		final Entry entry = entries.get(buildNumber);
+		if (entry == null || result == null || result.equals(entry.getResult())) {
+			return;
+		}
+
+		final boolean wasRunning = entry.getResult() == null;
+		entry.result = result.toString();
+		if (wasRunning) {
+			addToBaselines(entry);
+			entry.dropSketchesAndMoments();
+		} else {
+			// Only changes when a build explicitly marked as success fails later on, rare enough to start over
+			baselines.clear();
+		}
+		markModified();
+		append(entry, true);
+	}
+
+	/**
+	 * Adds the entry to the baselines in memory, dropping the baselines it
+	 * can not be added to in order; those are built again when asked for.
+	 */
+	private void addToBaselines(final Entry entry) {
+		for (Iterator<BaselineHolder> holders = baselines.values().iterator(); holders.hasNext();) {
+			if (!holders.next().add(entry)) {
+				holders.remove();
+			}
+		}
+	}
+
+	private void append(final Entry entry, final boolean resultOnly) {
+		Writer writer = null;
+		try {
+			final boolean newFile = !indexFile.exists();
+			writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), UTF8);
+			if (newFile) {
+				writer.write(HEADER + "\n");
+			}
+			if (resultOnly) {
+				entry.writeResult(writer);
+			} else {
+				entry.write(writer);
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to append to AppDynamics trend index: " + indexFile, e);
+		} finally {
+			closeQuietly(writer);
+		}
+	}
+
+	/**
+	 * @return all entries, ordered by build number
+	 */
+	public synchronized List<Entry> getEntries() {
+		ensureLoaded();
+		return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+	}
+
+	/**
+	 * @return all entries of builds before the given build number, ordered by
+	 *         build number
+	 */
+	public synchronized List<Entry> getEntriesBefore(final int buildNumber) {
+		ensureLoaded();
+		return Collections.unmodifiableList(new ArrayList<Entry>(entries.headMap(buildNumber).values()));
+	}
+
+	/**
+	 * @return the entry of the latest build before the given build number, or
+	 *         <code>null</code> when there is none
+	 */
+	public synchronized Entry getPreviousEntry(final int buildNumber) {
+		ensureLoaded();
+		final Map.Entry<Integer, Entry> previous = entries.lowerEntry(buildNumber);
+		return previous == null ? null : previous.getValue();
+	}
+
+	/**
+	 * Returns the baseline of the given statistic of a metric over the builds
+	 * before the given build number. Builds without the statistic, e.g.
+	 * percentiles of reports of older versions, are left out.
+	 *
+	 * @param window
+	 *            number of builds or days, see
+	 *            {@link Baseline#create(BaselineMode, int)}
+	 * @param now
+	 *            moment for which the baseline is determined
+	 * @return the baseline, -1 when no previous build is part of it
+	 */
+	public synchronized double getBaseline(final String metricKey, final ThresholdStatistic statistic,
+			final BaselineMode mode, final int window, final int buildNumber, final long now) {
+		return getHolder(metricKey, BaselineKind.VALUE, statistic, mode, window, buildNumber).getValue(statistic, now);
+	}
+
+	/**
+	 * Returns the given statistic of all calls of the builds before the given
+	 * build number, from the merged sketches of the builds. Builds without a
+	 * sketch, e.g. of older versions, are left out.
+	 *
+	 * @return the baseline, -1 when no previous build is part of it
+	 * @see SketchBaseline
+	 */
+	public synchronized double getMergedBaseline(final String metricKey, final ThresholdStatistic statistic,
+			final BaselineMode mode, final int window, final int buildNumber, final long now) {
+		return getHolder(metricKey, BaselineKind.SKETCH, null, mode, window, buildNumber).getValue(statistic, now);
+	}
+
+	/**
+	 * Returns the moments of the data points of a metric of the builds before
+	 * the given build number, for a
+	 * {@link nl.codecentric.jenkins.appd.stats.RegressionAnalysis}. Builds
+	 * without moments, e.g. of older versions, are left out.
+	 *
+	 * @return a copy of the moments, <code>null</code> when no previous build
+	 *         is part of the baseline
+	 * @see MomentsBaseline
+	 */
+	public synchronized WeightedMoments getBaselineMoments(final String metricKey, final BaselineMode mode,
+			final int window, final int buildNumber, final long now) {
+		return getHolder(metricKey, BaselineKind.MOMENTS, null, mode, window, buildNumber).getMoments(now);
+	}
+
+	private BaselineHolder getHolder(final String metricKey, final BaselineKind kind,
+			final ThresholdStatistic statistic, final BaselineMode mode, final int window, final int buildNumber) {
+		ensureLoaded();
+
+		// Merged sketches and moments answer every statistic from the same holder
+		final String key = kind + "|" + mode + "|" + window + "|" + (statistic == null ? "" : statistic) + "|"
+				+ metricKey;
+		BaselineHolder holder = baselines.get(key);
+		if (holder != null && holder.lastBuildNumber < buildNumber) {
+			return holder;
+		}
+
+		holder = new BaselineHolder(metricKey, kind, statistic, mode, window);
+		final Map<Integer, String> encoded = kind == BaselineKind.VALUE ? null
+				: readColumn(metricKey, kind == BaselineKind.SKETCH ? SKETCH_COLUMN : MOMENTS_COLUMN, buildNumber);
+		for (Entry entry : entries.headMap(buildNumber).values()) {
+			holder.add(entry, encoded == null ? null : encoded.get(entry.getBuildNumber()));
+		}
+		// Completed builds from this build number on can never be added to it, so it is only used once
+		if (!hasCompletedEntryFrom(buildNumber)) {
+			baselines.put(key, holder);
+		}
+		return holder;
+	}
+
+	/**
+	 * Reads the given column of a metric of the builds before the given build
+	 * number from the index file.
+	 *
+	 * @return the values of the column by build number, builds without a
+	 *         value are left out
+	 */
+	private Map<Integer, String> readColumn(final String metricKey, final int column, final int buildNumber) {
+		final Map<Integer, String> values = new HashMap<Integer, String>();
+		final String escapedKey = escape(metricKey);
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] columns = line.split(SEPARATOR, -1);
+				if (columns.length <= column || !escapedKey.equals(columns[4])
+						|| NOT_AVAILABLE.equals(columns[column])) {
+					continue;
+				}
+				try {
+					final int lineBuildNumber = Integer.parseInt(columns[0]);
+					if (lineBuildNumber < buildNumber) {
+						values.put(lineBuildNumber, columns[column]);
+					}
+				} catch (NumberFormatException e) {
+					// Corrupt lines are reported when the index is read
+				}
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to read AppDynamics trend index: " + indexFile, e);
+		} finally {
+			closeQuietly(reader);
+		}
+		return values;
+	}
+
+	private boolean hasCompletedEntryFrom(final int buildNumber) {
+		for (Entry entry : entries.tailMap(buildNumber).values()) {
+			if (entry.getResult() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized boolean isEmpty() {
+		ensureLoaded();
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @return number of the latest build in the index, 0 when empty
+	 */
+	public synchronized int getLatestBuildNumber() {
+		ensureLoaded();
+		return entries.isEmpty() ? 0 : entries.lastKey();
+	}
+
+	/**
+	 * @return number that changes whenever the entries in the index change
+	 */
+	public synchronized long getVersion() {
+		ensureLoaded();
+		return version;
+	}
+
+	/**
+	 * @return the moment the entries in the index last changed
+	 */
+	public synchronized long getLastModified() {
+		ensureLoaded();
+		return lastModified;
+	}
+
+	private void markModified() {
+		version++;
+		lastModified = System.currentTimeMillis();
+	}
+
+	synchronized void remove(final int buildNumber) {
+		ensureLoaded();
+		if (entries.remove(buildNumber) != null) {
+			baselines.clear();
+			markModified();
+			rewriteWithout(buildNumber);
+		}
+	}
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+
+		if (indexFile.exists() && read()) {
+			// Whole seconds, as used by the HTTP Last-Modified header
+			lastModified = indexFile.lastModified() / 1000 * 1000;
+			return;
+		}
+
+		LOG.info("Rebuilding AppDynamics trend index for project: " + project.getFullName());
+		rebuildFromBuilds();
+		markModified();
+		writeAll();
+		for (Entry entry : entries.values()) {
+			if (entry.getResult() != null) {
+				entry.dropSketchesAndMoments();
+			}
+		}
+	}
+
+	private boolean read() {
+		final TreeMap<Integer, Entry> readEntries = new TreeMap<Integer, Entry>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+			if (!HEADER.equals(reader.readLine())) {
+				return false;
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty() && !Entry.readLine(line, readEntries)) {
+					LOG.warning("Corrupt line in AppDynamics trend index " + indexFile + ": " + line);
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to read AppDynamics trend index: " + indexFile, e);
+			return false;
+		} finally {
+			closeQuietly(reader);
+		}
+
+		entries.clear();
+		entries.putAll(readEntries);
+		return true;
+	}
+
+	private void rebuildFromBuilds() {
+		entries.clear();
+		for (AbstractBuild<?, ?> build : project.getBuilds()) {
+			final AppDynamicsBuildAction buildAction = build.getAction(AppDynamicsBuildAction.class);
+			if (buildAction == null || buildAction.getAppDynamicsReport() == null) {
+				continue;
+			}
+			final Entry entry = Entry.fromReport(build, buildAction.getAppDynamicsReport());
+			entries.put(entry.getBuildNumber(), entry);
+		}
+	}
+
+	private void writeAll() {
+		AtomicFileWriter writer = null;
+		try {
+			writer = new AtomicFileWriter(indexFile);
+			writer.write(HEADER + "\n");
+			for (Entry entry : entries.values()) {
+				entry.write(writer);
+			}
+			writer.commit();
+			writer = null;
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to write AppDynamics trend index: " + indexFile, e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.abort();
+				} catch (IOException e) {
+					LOG.log(Level.FINE, "Unable to remove temporary AppDynamics trend index", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the index file again without the lines of the given build. The
+	 * file is copied rather than written from the entries, as those no longer
+	 * hold the sketches and moments.
+	 */
+	private void rewriteWithout(final int buildNumber) {
+		final String prefix = buildNumber + SEPARATOR;
+		BufferedReader reader = null;
+		AtomicFileWriter writer = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+			writer = new AtomicFileWriter(indexFile);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith(prefix)) {
+					writer.write(line + "\n");
+				}
+			}
+			writer.commit();
+			writer = null;
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to write AppDynamics trend index: " + indexFile, e);
+		} finally {
+			closeQuietly(reader);
+			if (writer != null) {
+				try {
+					writer.abort();
+				} catch (IOException e) {
+					LOG.log(Level.FINE, "Unable to remove temporary AppDynamics trend index", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Escapes the separators of the index file in a metric path, reversed by
+	 * {@link #unescape(String)}.
+	 */
+	static String escape(final String metricKey) {
+		final StringBuilder escaped = new StringBuilder(metricKey.length());
+		for (int i = 0; i < metricKey.length(); i++) {
+			final char c = metricKey.charAt(i);
+			switch (c) {
+			case '\\':
+				escaped.append("\\\\");
+				break;
+			case '\t':
+				escaped.append("\\t");
+				break;
+			case '\r':
+				escaped.append("\\r");
+				break;
+			case '\n':
+				escaped.append("\\n");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	static String unescape(final String escapedKey) {
+		if (escapedKey.indexOf('\\') < 0) {
+			return escapedKey;
+		}
+		final StringBuilder metricKey = new StringBuilder(escapedKey.length());
+		for (int i = 0; i < escapedKey.length(); i++) {
+			final char c = escapedKey.charAt(i);
+			if (c != '\\' || i + 1 == escapedKey.length()) {
+				metricKey.append(c);
+				continue;
+			}
+			final char next = escapedKey.charAt(++i);
+			switch (next) {
+			case 't':
+				metricKey.append('\t');
+				break;
+			case 'r':
+				metricKey.append('\r');
+				break;
+			case 'n':
+				metricKey.append('\n');
+				break;
+			default:
+				metricKey.append(next);
+			}
+		}
+		return metricKey.toString();
+	}
+
+	private static void closeQuietly(final Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "Unable to close AppDynamics trend index", e);
+			}
+		}
+	}
+
+	private enum BaselineKind {
+		/** One value of a statistic per build, see {@link Baseline} */
+		VALUE,
+		/** Merged sketches of the calls, see {@link SketchBaseline} */
+		SKETCH,
+		/** Merged moments of the data points, see {@link MomentsBaseline} */
+		MOMENTS
+	}
+
+	/**
+	 * Baseline of a single metric, remembering the last build added so each
+	 * build is only added once. Holds one of a {@link Baseline} of the given
+	 * statistic, a {@link SketchBaseline} or a {@link MomentsBaseline},
+	 * depending on the kind.
+	 */
+	private static final class BaselineHolder {
+		private final String metricKey;
+		private final ThresholdStatistic statistic;
+		private final boolean successfulBuildsOnly;
+		private final Baseline baseline;
+		private final SketchBaseline sketchBaseline;
+		private final MomentsBaseline momentsBaseline;
+		private int lastBuildNumber;
+
+		BaselineHolder(final String metricKey, final BaselineKind kind, final ThresholdStatistic statistic,
+				final BaselineMode mode, final int window) {
+			this.metricKey = metricKey;
+			this.statistic = statistic;
+			this.successfulBuildsOnly = mode.isSuccessfulBuildsOnly();
+			this.baseline = kind == BaselineKind.VALUE ? Baseline.create(mode, window) : null;
+			this.sketchBaseline = kind == BaselineKind.SKETCH ? SketchBaseline.create(mode, window) : null;
+			this.momentsBaseline = kind == BaselineKind.MOMENTS ? MomentsBaseline.create(mode, window) : null;
+		}
+
+		/**
+		 * Adds a build recorded after the holder was built.
+		 *
+		 * @return <code>false</code> when the build comes before the last build
+		 *         added, or its sketch or moments are needed but no longer in
+		 *         memory; the holder then no longer matches the index
+		 */
+		boolean add(final Entry entry) {
+			if (baseline == null && entry.sketchesAndMomentsDropped) {
+				return false;
+			}
+			return add(entry, null);
+		}
+
+		/**
+		 * Adds a build, builds still running are skipped until they complete.
+		 *
+		 * @param encoded
+		 *            the encoded sketch or moments of the build as read from the
+		 *            index file, <code>null</code> to take them from the entry
+		 * @return <code>false</code> when the build comes before the last build
+		 *         added
+		 */
+		boolean add(final Entry entry, final String encoded) {
+			if (entry.getResult() == null) {
+				return true;
+			}
+			if (entry.getBuildNumber() <= lastBuildNumber) {
+				return false;
+			}
+			lastBuildNumber = entry.getBuildNumber();
+			if (successfulBuildsOnly && !Result.SUCCESS.equals(entry.getResult())) {
+				return true;
+			}
+
+			if (sketchBaseline != null) {
+				final MetricSummary summary = entry.getSummary(metricKey);
+				final QuantileSketch sketch = encoded != null ? QuantileSketch.decode(encoded)
+						: summary == null ? null : summary.getSketch();
+				if (sketch != null) {
+					sketchBaseline.add(entry.getTimestamp(), sketch);
+				}
+				return true;
+			}
+			if (momentsBaseline != null) {
+				final MetricSummary summary = entry.getSummary(metricKey);
+				final WeightedMoments moments = encoded != null ? WeightedMoments.decode(encoded)
+						: summary == null ? null : summary.getMoments();
+				if (moments != null) {
+					momentsBaseline.add(entry.getTimestamp(), moments);
+				}
+				return true;
+			}
+
+			final double value = entry.getValueForMetric(metricKey, statistic);
+			if (value >= 0) {
+				baseline.add(entry.getTimestamp(), value);
+			}
+			return true;
+		}
+
+		double getValue(final ThresholdStatistic requestedStatistic, final long now) {
+			return sketchBaseline != null ? sketchBaseline.getValue(requestedStatistic, now) : baseline.getValue(now);
+		}
+
+		WeightedMoments getMoments(final long now) {
+			return momentsBaseline.getMoments(now);
+		}
+	}
+
+	/**
+	 * Keeps the index in line with the builds: sets the final result of a
+	 * build once it completed, and removes builds when they are deleted.
+	 */
+	@Extension
+	public static class IndexedBuildListener extends RunListener<Run<?, ?>> {
+		@Override
+		public void onCompleted(final Run<?, ?> run, final TaskListener listener) {
+			final AppDynamicsTrendIndex index = indexOf(run);
+			if (index != null) {
+				index.updateResult(run.getNumber(), run.getResult());
+			}
+		}
+
+		@Override
+		public void onDeleted(final Run<?, ?> run) {
+			final AppDynamicsTrendIndex index = indexOf(run);
+			if (index != null) {
+				index.remove(run.getNumber());
+			}
+		}
+
+		/**
+		 * @return the index of the project of the build, <code>null</code> when
+		 *         the project has none
+		 */
+		private static AppDynamicsTrendIndex indexOf(final Run<?, ?> run) {
+			final Job<?, ?> job = run.getParent();
+			if (job instanceof AbstractProject && (INDEXES.containsKey(job.getRootDir())
+					|| new File(job.getRootDir(), INDEX_FILE_NAME).exists())) {
+				return forProject((AbstractProject<?, ?>) job);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Drops the index of a project from memory when the project is deleted,
+	 * or moved or renamed along with its directory.
+	 */
+	@Extension
+	public static class IndexedProjectListener extends ItemListener {
+		@Override
+		public void onDeleted(final Item item) {
+			forget(item);
+		}
+
+		@Override
+		public void onLocationChanged(final Item item, final String oldFullName, final String newFullName) {
+			forget(item);
+		}
+	}
+
+	/**
+	 * Summaries of the report of a single build.
+	 */
+	public static class Entry {
+		private final int buildNumber;
+		// Set once a build that was still running completes
+		private volatile String result;
+		private final long timestamp;
+		private final int durationInMinutes;
+		private volatile Map<String, MetricSummary> summaries;
+		// Whether the sketches and moments are only in the index file
+		private volatile boolean sketchesAndMomentsDropped;
+
+		/**
+		 * @param result
+		 *            result of the build, <code>null</code> while it is running
+		 */
+		Entry(final int buildNumber, final String result, final long timestamp, final int durationInMinutes,
+				final Map<String, MetricSummary> summaries) {
+			this.buildNumber = buildNumber;
+			this.result = result;
+			this.timestamp = timestamp;
+			this.durationInMinutes = durationInMinutes;
+			this.summaries = summaries;
+		}
+
+		static Entry fromReport(final AbstractBuild<?, ?> build, final AppDynamicsReport report) {
+			final Result buildResult = build.getResult();
+			return new Entry(build.getNumber(), buildResult == null ? null : buildResult.toString(),
+					report.getTimestamp(), report.getDurationInMinutes(),
+					new LinkedHashMap<String, MetricSummary>(report.getMetricSummaries()));
+		}
+
+		public int getBuildNumber() {
+			return buildNumber;
+		}
+
+		/**
+		 * @return final result of the build, <code>null</code> while it is still
+		 *         running
+		 */
+		public Result getResult() {
+			final String currentResult = result;
+			return currentResult == null ? null : Result.fromString(currentResult);
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getEndTimestamp() {
+			return timestamp + (durationInMinutes * (long) 60000);
+		}
+
+		public int getDurationInMinutes() {
+			return durationInMinutes;
+		}
+
+		/**
+		 * @return summary of the given metric, or <code>null</code> when the
+		 *         metric was not part of the report
+		 */
+		public MetricSummary getSummary(final String metricKey) {
+			return summaries.get(metricKey);
+		}
+
+		/**
+		 * @return mean of the given metric, -1 when not available
+		 */
+		public double getAverageForMetric(final String metricKey) {
+			final MetricSummary summary = summaries.get(metricKey);
+			return summary == null ? -1 : summary.getMean();
+		}
+
+		/**
+		 * @return the given statistic of the metric, -1 when not available
+		 */
+		public double getValueForMetric(final String metricKey, final ThresholdStatistic statistic) {
+			return statistic.getValue(summaries.get(metricKey));
+		}
+
+		/**
+		 * Replaces the summaries by summaries without sketches and moments,
+		 * those are read from the index file when needed.
+		 */
+		void dropSketchesAndMoments() {
+			if (sketchesAndMomentsDropped) {
+				return;
+			}
+			final Map<String, MetricSummary> dropped = new LinkedHashMap<String, MetricSummary>();
+			for (Map.Entry<String, MetricSummary> metric : summaries.entrySet()) {
+				dropped.put(metric.getKey(), metric.getValue().withoutSketchAndMoments());
+			}
+			summaries = dropped;
+			sketchesAndMomentsDropped = true;
+		}
+
+		void write(final Writer writer) throws IOException {
+			final String prefix = getPrefix();
+			if (summaries.isEmpty()) {
+				writer.write(prefix + "\n");
+				return;
+			}
+
+			for (Map.Entry<String, MetricSummary> metric : summaries.entrySet()) {
+				final MetricSummary summary = metric.getValue();
+				final StringBuilder line = new StringBuilder(prefix);
+				line.append(SEPARATOR).append(escape(metric.getKey()));
+				line.append(SEPARATOR).append(summary.getCount());
+				line.append(SEPARATOR).append(summary.getSum());
+				line.append(SEPARATOR).append(summary.getMin());
+				line.append(SEPARATOR).append(summary.getMax());
+				line.append(SEPARATOR).append(summary.getMean());
+				line.append(SEPARATOR).append(summary.getStandardDeviation());
+				for (int percentile : MetricSummary.PERCENTILES) {
+					line.append(SEPARATOR).append(summary.getPercentile(percentile));
+				}
+				final String sketch = summary.getEncodedSketch();
+				line.append(SEPARATOR).append(sketch == null ? NOT_AVAILABLE : sketch);
+				final String moments = summary.getEncodedMoments();
+				line.append(SEPARATOR).append(moments == null ? NOT_AVAILABLE : moments);
+				writer.write(line.append('\n').toString());
+			}
+		}
+
+		/**
+		 * Writes a line without summaries, which updates the result of the
+		 * build when read.
+		 */
+		void writeResult(final Writer writer) throws IOException {
+			writer.write(getPrefix() + "\n");
+		}
+
+		private String getPrefix() {
+			final String currentResult = result;
+			return buildNumber + SEPARATOR + (currentResult == null ? NOT_AVAILABLE : currentResult) + SEPARATOR
+					+ timestamp + SEPARATOR + durationInMinutes;
+		}
+
+		/**
+		 * Parses a single line of the index file into the given entries. A later
+		 * line of the same build updates its result. The sketch and moments are
+		 * left in the file.
+		 *
+		 * @return <code>false</code> when the line is corrupt
+		 */
+		static boolean readLine(final String line, final Map<Integer, Entry> entries) {
+			final String[] columns = line.split(SEPARATOR, -1);
+			if (columns.length != 4 && columns.length < SUMMARY_COLUMNS) {
+				return false;
+			}
+
+			try {
+				final int buildNumber = Integer.parseInt(columns[0]);
+				final String result = NOT_AVAILABLE.equals(columns[1]) ? null : columns[1];
+				Entry entry = entries.get(buildNumber);
+				if (entry == null) {
+					entry = new Entry(buildNumber, result, Long.parseLong(columns[2]),
+							Integer.parseInt(columns[3]), new LinkedHashMap<String, MetricSummary>());
+					entry.sketchesAndMomentsDropped = true;
+					entries.put(buildNumber, entry);
+				} else if (result != null) {
+					entry.result = result;
+				}
+
+				if (columns.length >= SUMMARY_COLUMNS) {
+					entry.summaries.put(unescape(columns[4]),
+							new MetricSummary(Long.parseLong(columns[5]), Long.parseLong(columns[6]),
+									Long.parseLong(columns[7]), Long.parseLong(columns[8]),
+									Double.parseDouble(columns[9]), Double.parseDouble(columns[10]),
+									readPercentiles(columns), null, null));
+				}
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			return true;
+		}
+
+		private static double[] readPercentiles(final String[] columns) {
+			if (columns.length < PERCENTILE_COLUMNS) {
+				return null;
+			}
+
+			final double[] percentiles = new double[MetricSummary.PERCENTILES.length];
+			for (int i = 0; i < percentiles.length; i++) {
+				percentiles[i] = Double.parseDouble(columns[SUMMARY_COLUMNS + i]);
+			}
+			// Written as -1 when the report had no percentiles
+			return percentiles[0] < 0 ? null : percentiles;
+		}
+	}
+}
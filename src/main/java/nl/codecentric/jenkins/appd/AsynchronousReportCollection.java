@@ -0,0 +1,115 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Collects the {@link AppDynamicsReport} of a build in the background, so the
+ * executor of the build is freed right away. The collection starts once the
+ * build has completed and the measurement window of the build has closed, i.e.
+ * when the minimum measure time after the start of the build has passed. The
+ * report is then attached to the build, evaluated against the thresholds and
+ * the build is saved. The result of the completed build can no longer change,
+ * a verdict of the thresholds is shown as {@link DelayedResultAction}
+ * instead.<br />
+ * <br />
+ * The output of the collection is written to a log file in the build
+ * directory, as the console of the build is closed by then. The collection
+ * runs on the {@link CollectionExecutor}.
+ */
+public final class AsynchronousReportCollection implements Runnable {
+
+	static final String LOG_FILE_NAME = "appdynamics-collection.log";
+
+	private static final Logger LOG = Logger.getLogger(AsynchronousReportCollection.class.getName());
+	/** Collections of the builds that have not completed yet. */
+	private static final ConcurrentMap<Run<?, ?>, AsynchronousReportCollection> PENDING = new ConcurrentHashMap<Run<?, ?>, AsynchronousReportCollection>();
+
+	private final AppDynamicsResultsPublisher publisher;
+	private final AbstractBuild<?, ?> build;
+
+	private AsynchronousReportCollection(final AppDynamicsResultsPublisher publisher,
+			final AbstractBuild<?, ?> build) {
+		this.publisher = publisher;
+		this.build = build;
+	}
+
+	/**
+	 * Collects the report of the build once it has completed, see
+	 * {@link CompletedBuildListener}.
+	 */
+	static void schedule(final AppDynamicsResultsPublisher publisher, final AbstractBuild<?, ?> build,
+			final PrintStream logger) {
+		PENDING.put(build, new AsynchronousReportCollection(publisher, build));
+		logger.println("Collecting the AppDynamics report in the background once the build has completed, see "
+				+ LOG_FILE_NAME + " of this build. The report does not change the build status.");
+	}
+
+	private void start() {
+		final long windowEnd = build.getRootBuild().getTimeInMillis()
+				+ TimeUnit.MINUTES.toMillis(publisher.getMinimumMeasureTimeInMinutes());
+		final long delay = Math.max(0, windowEnd - System.currentTimeMillis());
+
+		LOG.fine(String.format("Collecting the AppDynamics report of %s in %d seconds", build,
+				TimeUnit.MILLISECONDS.toSeconds(delay)));
+		CollectionExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "AppDynamics report collection of " + build;
+	}
+
+	public void run() {
+		final File logFile = new File(build.getRootDir(), LOG_FILE_NAME);
+		StreamTaskListener listener = null;
+		try {
+			listener = new StreamTaskListener(logFile);
+			final PrintStream logger = listener.getLogger();
+
+			final AppDynamicsReport report = publisher.collect(build, logger);
+			if (report != null) {
+				publisher.evaluate(build, report, logger);
+			}
+			build.save();
+			final DelayedResultAction delayedResult = build.getAction(DelayedResultAction.class);
+			logger.println("AppDynamics report collected, build status is: " + build.getResult()
+					+ (delayedResult == null ? "" : ", the report marks it as " + delayedResult.getResult()));
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to store the AppDynamics report of " + build, e);
+		} catch (RuntimeException e) {
+			LOG.log(Level.WARNING, "Collecting the AppDynamics report of " + build + " failed", e);
+		} finally {
+			if (listener != null) {
+				listener.closeQuietly();
+			}
+		}
+	}
+
+	/**
+	 * Starts the collection of a build once it is finalized, i.e. completed
+	 * and saved, so the collection never runs into the build itself.
+	 */
+	@Extension
+	public static class CompletedBuildListener extends RunListener<Run<?, ?>> {
+		@Override
+		public void onFinalized(final Run<?, ?> run) {
+			final AsynchronousReportCollection collection = PENDING.remove(run);
+			if (collection != null) {
+				collection.start();
+			}
+		}
+	}
+}
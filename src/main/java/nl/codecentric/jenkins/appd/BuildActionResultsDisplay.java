@@ -17,7 +17,7 @@ import hudson.model.TaskListener;
 import hudson.util.DataSetBuilder;
 import hudson.util.Graph;
 import nl.codecentric.jenkins.appd.rest.types.MetricData;
-import nl.codecentric.jenkins.appd.rest.types.MetricValues;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
 import nl.codecentric.jenkins.appd.util.LocalMessages;
 
 /**
@@ -29,7 +29,6 @@ public class BuildActionResultsDisplay implements ModelObject {
 	 * The {@link AppDynamicsBuildAction} that this report belongs to.
 	 */
 	private transient AppDynamicsBuildAction buildAction;
-	private static AbstractBuild<?, ?> currentBuild = null;
 	private AppDynamicsReport currentReport;
 
 	/**
@@ -68,34 +67,17 @@ public class BuildActionResultsDisplay implements ModelObject {
 		return encodedStr;
 	}
 
+	/**
+	 * Looks up the previous report of the project in the
+	 * {@link AppDynamicsTrendIndex}, so no previous build has to be loaded.
+	 * The display is kept per build by its {@link AppDynamicsBuildAction}, so
+	 * the lookup is done once per build.
+	 */
 	private void addPreviousBuildReportToExistingReport() {
-		// Avoid parsing all builds.
-		if (BuildActionResultsDisplay.currentBuild == null) {
-			BuildActionResultsDisplay.currentBuild = getBuild();
-		} else {
-			if (BuildActionResultsDisplay.currentBuild != getBuild()) {
-				BuildActionResultsDisplay.currentBuild = null;
-				return;
-			}
-		}
-
-		AbstractBuild<?, ?> previousBuild = getBuild().getPreviousBuild();
-		if (previousBuild == null) {
-			return;
-		}
-
-		AppDynamicsBuildAction previousPerformanceAction = previousBuild.getAction(AppDynamicsBuildAction.class);
-		if (previousPerformanceAction == null) {
-			return;
-		}
-
-		BuildActionResultsDisplay previousBuildActionResults = previousPerformanceAction.getBuildActionResultsDisplay();
-		if (previousBuildActionResults == null) {
-			return;
-		}
-
-		AppDynamicsReport lastReport = previousBuildActionResults.getAppDynamicsReport();
-		getAppDynamicsReport().setLastBuildReport(lastReport);
+		final AbstractBuild<?, ?> build = getBuild();
+		final AppDynamicsTrendIndex.Entry previousEntry = AppDynamicsTrendIndex.forProject(build.getProject())
+				.getPreviousEntry(build.getNumber());
+		currentReport.setPreviousReportEntry(previousEntry);
 	}
 
 	/**
@@ -105,56 +87,41 @@ public class BuildActionResultsDisplay implements ModelObject {
 		final String metricKey = request.getParameter("metricDataKey");
 		final MetricData metricData = this.currentReport.getMetricByKey(metricKey);
 
-		final Graph graph = new GraphImpl(metricKey, metricData.getFrequency()) {
-
-			protected DataSetBuilder<String, Integer> createDataSet() {
-				DataSetBuilder<String, Integer> dataSetBuilder = new DataSetBuilder<String, Integer>();
-
-				int i = 1;
-				for (MetricValues value : metricData.getMetricValues()) {
-					dataSetBuilder.add(value.getValue(), metricKey, i++);
-				}
-
-				return dataSetBuilder;
+		// The series of a report does not change once it is stored, so
+		// browsers can keep the image until the report is replaced
+		final Graph graph = new Graph(this.currentReport.getStoredTimestamp(), 400, 300) {
+			protected JFreeChart createGraph() {
+				return createSeriesChart(metricKey, metricData.getFrequency(), metricData.getMetricSeries());
 			}
 		};
 
 		graph.doPng(request, response);
 	}
 
-	private abstract class GraphImpl extends Graph {
-		private final String graphTitle;
-		private final String xLabel;
-
-		protected GraphImpl(final String metricKey, final String frequency) {
-			super(-1, 400, 300); // cannot use timestamp, since ranges may
-									// change
-			this.graphTitle = stripTitle(metricKey);
-			this.xLabel = "Time in " + frequency;
-		}
-
-		private String stripTitle(final String metricKey) {
-			return metricKey.substring(metricKey.lastIndexOf("|") + 1);
+	/**
+	 * Creates the line chart of the 'value' of all data points of a series.
+	 */
+	static JFreeChart createSeriesChart(final String metricKey, final String frequency, final MetricSeries series) {
+		DataSetBuilder<String, Integer> dataSetBuilder = new DataSetBuilder<String, Integer>();
+		for (int i = 0; i < series.size(); i++) {
+			dataSetBuilder.add(series.get(MetricSeries.Column.VALUE, i), metricKey, i + 1);
 		}
 
-		protected abstract DataSetBuilder<String, Integer> createDataSet();
+		final CategoryDataset dataset = dataSetBuilder.build();
+		final String graphTitle = metricKey.substring(metricKey.lastIndexOf("|") + 1);
 
-		protected JFreeChart createGraph() {
-			final CategoryDataset dataset = createDataSet().build();
+		final JFreeChart chart = ChartFactory.createLineChart(graphTitle, // title
+				"Time in " + frequency, // category axis label
+				null, // value axis label
+				dataset, // data
+				PlotOrientation.VERTICAL, // orientation
+				false, // include legend
+				true, // tooltips
+				false // urls
+		);
 
-			final JFreeChart chart = ChartFactory.createLineChart(graphTitle, // title
-					xLabel, // category axis label
-					null, // value axis label
-					dataset, // data
-					PlotOrientation.VERTICAL, // orientation
-					false, // include legend
-					true, // tooltips
-					false // urls
-			);
+		chart.setBackgroundPaint(Color.white);
 
-			chart.setBackgroundPaint(Color.white);
-
-			return chart;
-		}
+		return chart;
 	}
 }
@@ -0,0 +1,144 @@
+package nl.codecentric.jenkins.appd;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+
+/**
+ * Runs the collection of AppDynamics data in the background, outside of the
+ * executor of a build: the asynchronous collection of reports and the polling
+ * of live metrics. These block on requests to the Controller, so they run on
+ * a bounded pool of their own; the {@link Timer} shared by all of Jenkins
+ * only triggers them.<br />
+ * <br />
+ * The number of threads can be set with the system property
+ * <code>threads</code> (default 4), prefixed with the name of this class.
+ */
+public final class CollectionExecutor {
+
+	private static final String PROPERTY_PREFIX = CollectionExecutor.class.getName() + ".";
+	private static final int THREADS = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + "threads", 4));
+
+	private static final Logger LOG = Logger.getLogger(CollectionExecutor.class.getName());
+	private static ExecutorService executor;
+
+	private CollectionExecutor() {
+	}
+
+	/**
+	 * @return the pool the collections run on, created the first time it is
+	 *         asked for
+	 */
+	static synchronized ExecutorService get() {
+		if (executor == null) {
+			final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new NamingThreadFactory(new DaemonThreadFactory(), "AppDynamics collection"));
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+
+	/**
+	 * Runs the task on the pool after the given delay.
+	 */
+	static ScheduledFuture<?> schedule(final Runnable task, final long delay, final TimeUnit unit) {
+		return Timer.get().schedule(new Runnable() {
+			public void run() {
+				execute(task);
+			}
+		}, delay, unit);
+	}
+
+	/**
+	 * Runs the task on the pool with the given delay between the end of one
+	 * run and the start of the next, until it is cancelled.
+	 */
+	static RepeatingTask scheduleWithFixedDelay(final Runnable task, final long delay, final TimeUnit unit) {
+		final RepeatingTask repeatingTask = new RepeatingTask(task, delay, unit);
+		repeatingTask.scheduleNext();
+		return repeatingTask;
+	}
+
+	/**
+	 * Stops the pool, invoked when Jenkins (and with it this plugin) stops.
+	 * Running collections are interrupted.
+	 */
+	@Terminator
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+			LOG.fine("Shut down the AppDynamics collection pool");
+		}
+	}
+
+	private static void execute(final Runnable task) {
+		try {
+			get().execute(task);
+		} catch (RejectedExecutionException e) {
+			LOG.log(Level.FINE, "AppDynamics collection pool shut down, skipping " + task, e);
+		}
+	}
+
+	/**
+	 * Task that runs on the pool over and over again, see
+	 * {@link CollectionExecutor#scheduleWithFixedDelay(Runnable, long, TimeUnit)}.
+	 */
+	static final class RepeatingTask implements Runnable {
+		private final Runnable task;
+		private final long delay;
+		private final TimeUnit unit;
+		private volatile boolean cancelled;
+		private ScheduledFuture<?> next;
+
+		RepeatingTask(final Runnable task, final long delay, final TimeUnit unit) {
+			this.task = task;
+			this.delay = delay;
+			this.unit = unit;
+		}
+
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			try {
+				task.run();
+			} finally {
+				scheduleNext();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return task.toString();
+		}
+
+		/**
+		 * Stops running the task, a run that already started is completed.
+		 */
+		synchronized void cancel() {
+			cancelled = true;
+			if (next != null) {
+				next.cancel(false);
+			}
+		}
+
+		private synchronized void scheduleNext() {
+			if (!cancelled) {
+				next = schedule(this, delay, unit);
+			}
+		}
+	}
+}
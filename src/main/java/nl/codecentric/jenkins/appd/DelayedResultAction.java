@@ -0,0 +1,53 @@
+package nl.codecentric.jenkins.appd;
+
+import hudson.model.AbstractBuild;
+import hudson.model.BuildBadgeAction;
+import hudson.model.Result;
+
+/**
+ * The result the thresholds would have given a build, when its report was
+ * collected after the build completed, see {@link AsynchronousReportCollection}.
+ * The result of a completed build can no longer be changed, so it is shown as
+ * badge and on the page of the build instead.
+ */
+public class DelayedResultAction implements BuildBadgeAction {
+
+	private Result result;
+
+	private DelayedResultAction(final Result result) {
+		this.result = result;
+	}
+
+	/**
+	 * Records the result on the build, keeping the worse one when a result was
+	 * already recorded.
+	 */
+	static synchronized void record(final AbstractBuild<?, ?> build, final Result result) {
+		final DelayedResultAction action = build.getAction(DelayedResultAction.class);
+		if (action == null) {
+			build.addAction(new DelayedResultAction(result));
+		} else if (result.isWorseThan(action.result)) {
+			action.result = result;
+		}
+	}
+
+	public Result getResult() {
+		return result;
+	}
+
+	public boolean isFailure() {
+		return result.isWorseOrEqualTo(Result.FAILURE);
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+}
@@ -0,0 +1,140 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+
+/**
+ * Moves the raw series of reports stored by older versions out of build.xml
+ * into the series file of the build, see {@link AppDynamicsReport}.<br />
+ * <br />
+ * Loading a build never writes to disk: a legacy report keeps its series in
+ * memory, converted to the compact form by <code>readResolve</code> of
+ * {@link MetricData}, until it is migrated. All builds of a
+ * project are migrated at once from the trend page of the project, by an
+ * administrator. The migration runs on the thread pool Jenkins uses for
+ * background work, writes the series file and saves each build with a legacy
+ * report, and pauses between batches of builds. Batch size and pause can be
+ * set with the system properties <code>batchSize</code> (default 20) and
+ * <code>pauseInMillis</code> (default 1000), prefixed with the name of this
+ * class.
+ */
+final class LegacyReportMigration implements Runnable {
+
+	private static final String PROPERTY_PREFIX = LegacyReportMigration.class.getName() + ".";
+	private static final int BATCH_SIZE = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + "batchSize", 20));
+	private static final long PAUSE_IN_MILLIS = Math.max(0,
+			Integer.getInteger(PROPERTY_PREFIX + "pauseInMillis", 1000));
+
+	private static final Logger LOG = Logger.getLogger(LegacyReportMigration.class.getName());
+	private static final Map<String, String> RUNNING_MIGRATIONS = new ConcurrentHashMap<String, String>();
+
+	private final AbstractProject<?, ?> project;
+
+	private LegacyReportMigration(final AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	/**
+	 * Starts migrating all builds of the project in the background, unless a
+	 * migration of the project is already running.
+	 *
+	 * @return <code>false</code> when a migration was already running
+	 */
+	static boolean start(final AbstractProject<?, ?> project) {
+		final String projectName = project.getFullName();
+		if (RUNNING_MIGRATIONS.put(projectName, "Starting") != null) {
+			return false;
+		}
+
+		try {
+			Computer.threadPoolForRemoting.submit(new LegacyReportMigration(project));
+		} catch (RejectedExecutionException e) {
+			RUNNING_MIGRATIONS.remove(projectName);
+			LOG.log(Level.WARNING, "Unable to start migration of AppDynamics reports of " + projectName, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return progress of the running migration of the project, or
+	 *         <code>null</code> when none is running
+	 */
+	static String getStatus(final AbstractProject<?, ?> project) {
+		return RUNNING_MIGRATIONS.get(project.getFullName());
+	}
+
+	public void run() {
+		final String projectName = project.getFullName();
+		final Thread thread = Thread.currentThread();
+		final String threadName = thread.getName();
+		thread.setName("AppDynamics legacy report migration of " + projectName);
+
+		int checked = 0;
+		int migrated = 0;
+		try {
+			for (AbstractBuild<?, ?> build : project.getBuilds()) {
+				if (migrate(build)) {
+					migrated++;
+				}
+				checked++;
+
+				if (checked % BATCH_SIZE == 0) {
+					RUNNING_MIGRATIONS.put(projectName, "Checked " + checked + " builds");
+					Thread.sleep(PAUSE_IN_MILLIS);
+				}
+			}
+			LOG.info("Migrated AppDynamics reports of " + migrated + " of " + checked + " builds of " + projectName);
+		} catch (InterruptedException e) {
+			LOG.info("Migration of AppDynamics reports of " + projectName + " interrupted after " + checked
+					+ " builds");
+		} catch (RuntimeException e) {
+			LOG.log(Level.WARNING, "Migration of AppDynamics reports of " + projectName + " failed", e);
+		} finally {
+			RUNNING_MIGRATIONS.remove(projectName);
+			thread.setName(threadName);
+		}
+	}
+
+	/**
+	 * Writes the series file of the report of the build and saves the build,
+	 * which drops the series from build.xml.
+	 *
+	 * @return <code>true</code> when the build had a legacy report that was
+	 *         migrated
+	 */
+	private static boolean migrate(final AbstractBuild<?, ?> build) {
+		final AppDynamicsBuildAction action = build.getAction(AppDynamicsBuildAction.class);
+		if (action == null) {
+			return false;
+		}
+
+		final AppDynamicsReport report = action.getAppDynamicsReport();
+		if (!report.hasInlineSeries()) {
+			return false;
+		}
+
+		report.storeSeries(build.getRootDir());
+		if (report.hasInlineSeries()) {
+			// Writing the series file failed, already logged
+			return false;
+		}
+		try {
+			build.save();
+			LOG.fine("Migrated AppDynamics report of " + build);
+			return true;
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to save migrated AppDynamics report of " + build, e);
+			return false;
+		}
+	}
+}
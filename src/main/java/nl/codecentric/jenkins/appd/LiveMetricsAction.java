@@ -0,0 +1,197 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeriesCodec;
+import nl.codecentric.jenkins.appd.stats.MetricSummary;
+
+/**
+ * Keeps the data points polled by the {@link AppDynamicsLivePollingWrapper}
+ * while the build was running. Each poll only appends the data points newer
+ * than the last one already kept, and replaces the last one, which may have
+ * been incomplete when it was polled before.<br />
+ * <br />
+ * Once polling stops the data points are written to a series file in the
+ * build directory (see {@link MetricSeriesCodec}), like the raw series of the
+ * {@link AppDynamicsReport}, so they are not part of build.xml.
+ */
+public class LiveMetricsAction extends InvisibleAction implements RunAction2 {
+
+	static final String SERIES_FILE_NAME = "appdynamics-live-series.bin";
+
+	private static final Logger LOG = Logger.getLogger(LiveMetricsAction.class.getName());
+
+	private String metricPath;
+	/**
+	 * Data points as stored in build.xml by older versions, or when writing
+	 * the series file failed. <code>null</code> once stored in the series file.
+	 */
+	private MetricData metricData;
+	/**
+	 * Data points while polling, kept until stored in the series file.
+	 */
+	private transient MetricData polledMetricData;
+	private transient File seriesDirectory;
+	private long lastTimestamp;
+	private String abortReason;
+
+	public LiveMetricsAction(final String metricPath, final long startTimestamp) {
+		this.metricPath = metricPath;
+		this.polledMetricData = new MetricData();
+		this.polledMetricData.setMetricPath(metricPath);
+		this.polledMetricData.setMetricSeries(new MetricSeries());
+		this.lastTimestamp = startTimestamp;
+	}
+
+	/**
+	 * Appends the data points of the polled metric that are newer than the
+	 * last appended one, and replaces the last appended one when polled
+	 * again.
+	 *
+	 * @return the number of appended or replaced data points
+	 */
+	public synchronized int append(final MetricData polled) {
+		if (polledMetricData == null) {
+			return 0;
+		}
+		final MetricSeries series = polledMetricData.getMetricSeries();
+		final MetricSeries polledSeries = polled.getMetricSeries();
+
+		int appended = 0;
+		for (int i = 0; i < polledSeries.size(); i++) {
+			final long timestamp = polledSeries.getStartTimeInMillis(i);
+			if (timestamp < lastTimestamp) {
+				continue;
+			}
+			if (!series.isEmpty() && series.getStartTimeInMillis(series.size() - 1) == timestamp) {
+				series.removeLast();
+			}
+			series.add(polledSeries, i);
+			lastTimestamp = timestamp;
+			appended++;
+		}
+		return appended;
+	}
+
+	/**
+	 * @return average 'value' of the last data points, -1 when there are fewer
+	 *         than the given number of points
+	 */
+	public synchronized double getRollingAverage(final int points) {
+		final MetricSeries series = getMetricData().getMetricSeries();
+		if (points <= 0 || series.size() < points) {
+			return -1;
+		}
+
+		long sum = 0;
+		for (int i = series.size() - points; i < series.size(); i++) {
+			sum += series.get(MetricSeries.Column.VALUE, i);
+		}
+		return (double) sum / points;
+	}
+
+	public synchronized MetricSummary getSummary() {
+		return MetricSummary.fromSeries(getMetricData().getMetricSeries());
+	}
+
+	public synchronized int getPointCount() {
+		return getMetricData().getMetricSeries().size();
+	}
+
+	public String getMetricPath() {
+		return metricPath;
+	}
+
+	/**
+	 * @return the polled data points, read from the series file once polling
+	 *         stopped
+	 */
+	public synchronized MetricData getMetricData() {
+		if (polledMetricData != null) {
+			return polledMetricData;
+		}
+		if (metricData != null) {
+			return metricData;
+		}
+		return loadSeries();
+	}
+
+	public synchronized long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	public synchronized String getAbortReason() {
+		return abortReason;
+	}
+
+	synchronized void setAbortReason(final String abortReason) {
+		this.abortReason = abortReason;
+	}
+
+	/**
+	 * Writes the polled data points to the series file in the given build
+	 * directory, after which no more data points are appended. When writing
+	 * fails the data points are kept in build.xml.
+	 */
+	synchronized void storeSeries(final File buildDirectory) {
+		if (polledMetricData == null) {
+			return;
+		}
+
+		final File seriesFile = new File(buildDirectory, SERIES_FILE_NAME);
+		try {
+			MetricSeriesCodec.write(seriesFile, Collections.singletonList(polledMetricData));
+			this.seriesDirectory = buildDirectory;
+			this.metricData = null;
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to store polled AppDynamics metric series in " + seriesFile
+					+ ", keeping them in build.xml", e);
+			this.metricData = polledMetricData;
+		}
+		this.polledMetricData = null;
+	}
+
+	private MetricData loadSeries() {
+		if (seriesDirectory != null) {
+			final File seriesFile = new File(seriesDirectory, SERIES_FILE_NAME);
+			try {
+				final List<MetricData> metrics = MetricSeriesCodec.read(seriesFile);
+				if (!metrics.isEmpty()) {
+					return metrics.get(0);
+				}
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Unable to read polled AppDynamics metric series from " + seriesFile, e);
+			}
+		}
+
+		final MetricData empty = new MetricData();
+		empty.setMetricPath(metricPath);
+		return empty;
+	}
+
+	public synchronized void onAttached(final Run<?, ?> run) {
+		seriesDirectory = run.getRootDir();
+	}
+
+	public synchronized void onLoad(final Run<?, ?> run) {
+		seriesDirectory = run.getRootDir();
+	}
+
+	protected Object readResolve() {
+		// Older versions only kept the metric path in the data points
+		if (metricPath == null && metricData != null) {
+			metricPath = metricData.getMetricPath();
+		}
+		return this;
+	}
+}
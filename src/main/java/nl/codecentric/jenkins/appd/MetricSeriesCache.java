@@ -0,0 +1,87 @@
+package nl.codecentric.jenkins.appd;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+
+/**
+ * Memory budget for the raw series of all loaded reports. A report only holds
+ * its series through a soft reference; this cache keeps the most recently used
+ * series strongly reachable as long as their total estimated size stays within
+ * the budget. Series evicted from the cache can be reclaimed by the garbage
+ * collector and are read again from the series file of the build when needed.
+ * <br />
+ * <br />
+ * The budget can be set with the system property
+ * <code>nl.codecentric.jenkins.appd.MetricSeriesCache.maxSizeInMb</code>
+ * (default 64).
+ */
+final class MetricSeriesCache {
+
+	private static final long MAX_SIZE_IN_BYTES = 1024L * 1024L
+			* Integer.getInteger(MetricSeriesCache.class.getName() + ".maxSizeInMb", 64);
+
+	private static final Map<File, CachedSeries> SERIES = new LinkedHashMap<File, CachedSeries>(16, 0.75f, true);
+	private static long sizeInBytes;
+
+	private MetricSeriesCache() {
+	}
+
+	/**
+	 * Marks the series of the given series file as most recently used, adding
+	 * them when they are not cached yet.
+	 */
+	static synchronized void touch(final File seriesFile, final Map<String, MetricData> metricDataMap) {
+		final CachedSeries cached = SERIES.get(seriesFile);
+		if (cached != null && cached.metricDataMap == metricDataMap) {
+			return;
+		}
+
+		final CachedSeries added = new CachedSeries(metricDataMap);
+		if (added.sizeInBytes > MAX_SIZE_IN_BYTES) {
+			remove(seriesFile);
+			return;
+		}
+
+		final CachedSeries previous = SERIES.put(seriesFile, added);
+		if (previous != null) {
+			sizeInBytes -= previous.sizeInBytes;
+		}
+		sizeInBytes += added.sizeInBytes;
+
+		final Iterator<CachedSeries> eldest = SERIES.values().iterator();
+		while (sizeInBytes > MAX_SIZE_IN_BYTES && eldest.hasNext()) {
+			sizeInBytes -= eldest.next().sizeInBytes;
+			eldest.remove();
+		}
+	}
+
+	static synchronized void remove(final File seriesFile) {
+		final CachedSeries removed = SERIES.remove(seriesFile);
+		if (removed != null) {
+			sizeInBytes -= removed.sizeInBytes;
+		}
+	}
+
+	static synchronized long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	private static final class CachedSeries {
+		private final Map<String, MetricData> metricDataMap;
+		private final long sizeInBytes;
+
+		CachedSeries(final Map<String, MetricData> metricDataMap) {
+			this.metricDataMap = metricDataMap;
+
+			long size = 0;
+			for (MetricData metricData : metricDataMap.values()) {
+				size += metricData.getMetricSeries().getEstimatedSizeInBytes();
+			}
+			this.sizeInBytes = size;
+		}
+	}
+}
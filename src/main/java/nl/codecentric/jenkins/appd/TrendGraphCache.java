@@ -0,0 +1,49 @@
+package nl.codecentric.jenkins.appd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of rendered trend graph images, shared by all projects. The
+ * least recently used images are evicted once the total size of all cached
+ * images exceeds the limit, which can be set with the system property
+ * <code>nl.codecentric.jenkins.appd.TrendGraphCache.maxSizeInKb</code>
+ * (default 8192).<br />
+ * <br />
+ * The key of an image contains the version of the trend index it was rendered
+ * from, so images of outdated trends are never returned and simply age out.
+ */
+final class TrendGraphCache {
+
+	private static final long MAX_SIZE_IN_BYTES = 1024L
+			* Integer.getInteger(TrendGraphCache.class.getName() + ".maxSizeInKb", 8192);
+
+	private static final Map<String, byte[]> IMAGES = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private static long sizeInBytes;
+
+	private TrendGraphCache() {
+	}
+
+	static synchronized byte[] get(final String key) {
+		return IMAGES.get(key);
+	}
+
+	static synchronized void put(final String key, final byte[] image) {
+		if (image.length > MAX_SIZE_IN_BYTES) {
+			return;
+		}
+
+		final byte[] previous = IMAGES.put(key, image);
+		if (previous != null) {
+			sizeInBytes -= previous.length;
+		}
+		sizeInBytes += image.length;
+
+		final Iterator<byte[]> eldest = IMAGES.values().iterator();
+		while (sizeInBytes > MAX_SIZE_IN_BYTES && eldest.hasNext()) {
+			sizeInBytes -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+import nl.codecentric.jenkins.appd.rest.types.ApplicationInformation;
+
+/**
+ * Long-lived cache of application lookups, keyed by Controller, user and
+ * application name. The application ID hardly ever changes, so builds use the
+ * cached value; once it is older than the refresh interval it is still
+ * returned, while a fresh lookup runs in the background. Entries older than
+ * the maximum age are looked up again before being returned, and an entry is
+ * invalidated as soon as a lookup fails.<br />
+ * <br />
+ * The cache can be tuned with the following system properties, prefixed with
+ * the name of this class:
+ * <ul>
+ * <li><code>refreshIntervalInMinutes</code> - default 10</li>
+ * <li><code>maxAgeInMinutes</code> - default 60</li>
+ * </ul>
+ */
+final class ApplicationInfoCache {
+
+	private static final String PROPERTY_PREFIX = ApplicationInfoCache.class.getName() + ".";
+	private static final long REFRESH_INTERVAL_IN_MILLIS = TimeUnit.MINUTES
+			.toMillis(Integer.getInteger(PROPERTY_PREFIX + "refreshIntervalInMinutes", 10));
+	private static final long MAX_AGE_IN_MILLIS = TimeUnit.MINUTES
+			.toMillis(Integer.getInteger(PROPERTY_PREFIX + "maxAgeInMinutes", 60));
+
+	private static final Logger LOG = Logger.getLogger(ApplicationInfoCache.class.getName());
+	private static final ConcurrentMap<String, CachedApplication> APPLICATIONS = new ConcurrentHashMap<String, CachedApplication>();
+
+	private ApplicationInfoCache() {
+	}
+
+	static ApplicationInformation get(final String key, final Callable<ApplicationInformation> lookup) {
+		final CachedApplication cached = APPLICATIONS.get(key);
+		final long now = System.currentTimeMillis();
+
+		if (cached != null && now - cached.fetchedAt < MAX_AGE_IN_MILLIS) {
+			if (now - cached.fetchedAt >= REFRESH_INTERVAL_IN_MILLIS && cached.claimRefresh()) {
+				refreshInBackground(key, lookup);
+			}
+			return cached.application;
+		}
+
+		return load(key, lookup);
+	}
+
+	static void invalidate(final String key) {
+		APPLICATIONS.remove(key);
+	}
+
+	private static ApplicationInformation load(final String key, final Callable<ApplicationInformation> lookup) {
+		ApplicationInformation application = null;
+		try {
+			application = lookup.call();
+		} catch (Exception e) {
+			LOG.log(Level.INFO, "Some problem fetching Applications from the AppDynamics REST interface, "
+					+ "see stack-trace for more information", e);
+		}
+
+		if (application == null) {
+			invalidate(key);
+		} else {
+			APPLICATIONS.put(key, new CachedApplication(application));
+		}
+		return application;
+	}
+
+	private static void refreshInBackground(final String key, final Callable<ApplicationInformation> lookup) {
+		Timer.get().submit(new Runnable() {
+			public void run() {
+				load(key, lookup);
+			}
+		});
+	}
+
+	private static final class CachedApplication {
+		private final ApplicationInformation application;
+		private final long fetchedAt = System.currentTimeMillis();
+		private boolean refreshing;
+
+		CachedApplication(final ApplicationInformation application) {
+			this.application = application;
+		}
+
+		/**
+		 * @return <code>true</code> for only the first caller, so a single
+		 *         background refresh runs per entry
+		 */
+		synchronized boolean claimRefresh() {
+			if (refreshing) {
+				return false;
+			}
+			refreshing = true;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker guarding a single AppDynamics Controller. After a number of
+ * consecutive failed requests the circuit opens and requests fail fast,
+ * instead of every build waiting for its own connect or read timeout. Once
+ * the open period has passed a single trial request is let through: when it
+ * succeeds the circuit closes again, otherwise it stays open for another
+ * period.
+ */
+final class CircuitBreaker {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openDurationInMillis;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean trialInFlight;
+
+	CircuitBreaker(final int failureThreshold, final long openDuration, final TimeUnit unit) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openDurationInMillis = unit.toMillis(openDuration);
+	}
+
+	/**
+	 * @return <code>true</code> when requests are currently rejected, without
+	 *         claiming the trial request of a half-open circuit
+	 */
+	synchronized boolean isOpen() {
+		return state == State.OPEN && !isOpenPeriodOver() || state == State.HALF_OPEN && trialInFlight;
+	}
+
+	/**
+	 * Asks permission to send a request. When this returns <code>true</code>
+	 * the caller must report the outcome through {@link #recordSuccess()} or
+	 * {@link #recordFailure()}.
+	 */
+	synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (!isOpenPeriodOver()) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			trialInFlight = true;
+			return true;
+		default:
+			if (trialInFlight) {
+				return false;
+			}
+			trialInFlight = true;
+			return true;
+		}
+	}
+
+	synchronized void recordSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+
+	synchronized void recordFailure() {
+		consecutiveFailures++;
+		trialInFlight = false;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return time until a trial request is let through again, 0 when the
+	 *         circuit is not open
+	 */
+	synchronized long getRemainingOpenTimeInMillis() {
+		if (state != State.OPEN) {
+			return 0;
+		}
+		return Math.max(0, openedAt + openDurationInMillis - System.currentTimeMillis());
+	}
+
+	private boolean isOpenPeriodOver() {
+		return System.currentTimeMillis() - openedAt >= openDurationInMillis;
+	}
+}
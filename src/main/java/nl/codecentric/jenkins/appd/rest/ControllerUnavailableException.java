@@ -0,0 +1,16 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is not sent because the circuit breaker of the
+ * AppDynamics Controller is open, see {@link RestRequestScheduler}.
+ */
+public class ControllerUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ControllerUnavailableException(final String message) {
+		super(message);
+	}
+}
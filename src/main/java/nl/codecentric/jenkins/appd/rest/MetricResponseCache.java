@@ -0,0 +1,236 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+
+/**
+ * Short-lived in-memory cache of metric-data responses, shared between all
+ * jobs. Jobs deploying the same application often ask for the same metrics
+ * over nearly the same window within seconds of each other; with windows
+ * aligned to the metric frequency (see {@link #alignWindow(long, int)}) they
+ * share a single request. Identical requests in flight at the same time are
+ * merged as well. Only windows that have ended are cached, later data points
+ * of a window that is still going on would be missing from the response.
+ * Every caller gets its own copy of the response, holding only the data
+ * points of the window it asked for. Callers waiting for a request that
+ * fails all get its failure.<br />
+ * <br />
+ * The cache can be tuned with the following system properties, prefixed with
+ * the name of this class:
+ * <ul>
+ * <li><code>ttlInSeconds</code> - time a response is kept (default 60, 0
+ * disables the cache)</li>
+ * <li><code>maxEntries</code> - number of responses kept (default 256)</li>
+ * </ul>
+ */
+public final class MetricResponseCache {
+
+	private static final String PROPERTY_PREFIX = MetricResponseCache.class.getName() + ".";
+	private static final long TTL_IN_MILLIS = TimeUnit.SECONDS
+			.toMillis(Integer.getInteger(PROPERTY_PREFIX + "ttlInSeconds", 60));
+	private static final int MAX_ENTRIES = Integer.getInteger(PROPERTY_PREFIX + "maxEntries", 256);
+
+	private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
+	private static final long TEN_MINUTES = TimeUnit.MINUTES.toMillis(10);
+	private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+
+	private static final Logger LOG = Logger.getLogger(MetricResponseCache.class.getName());
+	private static final Map<String, CacheEntry> ENTRIES = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	private MetricResponseCache() {
+	}
+
+	/**
+	 * Loads the metric data of a window.
+	 */
+	interface WindowLoader {
+		/**
+		 * @return the metric data, or <code>null</code> when the Controller did
+		 *         not return any
+		 * @throws IOException
+		 *             when the Controller could not be reached or refused the
+		 *             request
+		 */
+		List<MetricData> load(long startTime, int durationInMinutes) throws IOException;
+	}
+
+	/**
+	 * Returns the response for the window, from the cache or fetched with the
+	 * given loader for the aligned window. Only one loader runs per key at a
+	 * time, other callers wait for its result. <code>null</code> results are
+	 * not cached.
+	 *
+	 * @param key
+	 *            identifies the request apart from its window, including the
+	 *            credentials it is sent with
+	 * @return a copy of the response with the data points of the requested
+	 *         window, or <code>null</code> when the Controller did not return
+	 *         any
+	 * @throws IOException
+	 *             when the request failed, also for the callers that waited
+	 *             for it
+	 */
+	static List<MetricData> get(final String key, final long startTime, final int durationInMinutes,
+			final WindowLoader loader) throws IOException {
+		final long[] alignedWindow = alignWindow(startTime, durationInMinutes);
+		final long alignedEnd = alignedWindow[0] + TimeUnit.MINUTES.toMillis(alignedWindow[1]);
+		// A longer window may get data points of a lower frequency, e.g. 241 instead of 240 minutes
+		final boolean sameFrequency = getFrequency((int) alignedWindow[1]) == getFrequency(durationInMinutes);
+		if (TTL_IN_MILLIS <= 0 || alignedEnd > System.currentTimeMillis() || !sameFrequency) {
+			MISSES.incrementAndGet();
+			return loader.load(startTime, durationInMinutes);
+		}
+		if (alignedWindow[1] != durationInMinutes && LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Requesting " + alignedWindow[1] + " instead of " + durationInMinutes
+					+ " minutes of metric data, aligned to the frequency of the data points");
+		}
+
+		final String windowKey = key + "|" + alignedWindow[0] + "|" + alignedWindow[1];
+		final CacheEntry entry;
+		final boolean load;
+		synchronized (ENTRIES) {
+			final long now = System.currentTimeMillis();
+			final CacheEntry cachedEntry = ENTRIES.get(windowKey);
+			if (cachedEntry != null && cachedEntry.expiresAt > now) {
+				entry = cachedEntry;
+				load = false;
+			} else {
+				entry = new CacheEntry(new FutureTask<List<MetricData>>(new Callable<List<MetricData>>() {
+					public List<MetricData> call() throws Exception {
+						return loader.load(alignedWindow[0], (int) alignedWindow[1]);
+					}
+				}), now + TTL_IN_MILLIS);
+				ENTRIES.put(windowKey, entry);
+				evictExpiredAndEldest(now);
+				load = true;
+			}
+		}
+
+		if (load) {
+			MISSES.incrementAndGet();
+			entry.response.run();
+		} else {
+			HITS.incrementAndGet();
+		}
+
+		final List<MetricData> response;
+		try {
+			response = entry.response.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for metric data of " + key);
+		} catch (ExecutionException e) {
+			remove(windowKey, entry);
+			final Throwable cause = e.getCause();
+			// Each caller gets an exception of its own, with the message of the failure
+			throw new IOException(cause.getMessage() == null ? cause.toString() : cause.getMessage(), cause);
+		}
+
+		if (response == null) {
+			remove(windowKey, entry);
+			return null;
+		}
+		return copyWindow(response, startTime, durationInMinutes);
+	}
+
+	private static void remove(final String windowKey, final CacheEntry entry) {
+		synchronized (ENTRIES) {
+			if (ENTRIES.get(windowKey) == entry) {
+				ENTRIES.remove(windowKey);
+			}
+		}
+	}
+
+	/**
+	 * Copies the data points of the cached response that overlap the window,
+	 * other requests of the same aligned window may have started or ended
+	 * earlier or later within those data points.
+	 */
+	private static List<MetricData> copyWindow(final List<MetricData> response, final long startTime,
+			final int durationInMinutes) {
+		final long from = startTime - getFrequency(durationInMinutes) + 1;
+		final long to = startTime + TimeUnit.MINUTES.toMillis(durationInMinutes);
+		final List<MetricData> copy = new ArrayList<MetricData>(response.size());
+		for (MetricData metricData : response) {
+			copy.add(metricData.copy(from, to));
+		}
+		return copy;
+	}
+
+	/**
+	 * Aligns the window starting at the given time to the frequency
+	 * AppDynamics returns for a window of that length: one minute up to four
+	 * hours, ten minutes up to two days, one hour beyond that.
+	 *
+	 * @return start time and duration in minutes of the aligned window, which
+	 *         always covers the requested window
+	 */
+	static long[] alignWindow(final long startTime, final int durationInMinutes) {
+		final long duration = TimeUnit.MINUTES.toMillis(durationInMinutes);
+		final long frequency = getFrequency(durationInMinutes);
+		final long alignedStart = startTime - (startTime % frequency);
+		final long end = startTime + duration;
+		final long alignedEnd = end % frequency == 0 ? end : end - (end % frequency) + frequency;
+		return new long[] { alignedStart, TimeUnit.MILLISECONDS.toMinutes(alignedEnd - alignedStart) };
+	}
+
+	private static long getFrequency(final int durationInMinutes) {
+		final long duration = TimeUnit.MINUTES.toMillis(durationInMinutes);
+		if (duration <= TimeUnit.HOURS.toMillis(4)) {
+			return ONE_MINUTE;
+		} else if (duration <= TimeUnit.DAYS.toMillis(2)) {
+			return TEN_MINUTES;
+		}
+		return ONE_HOUR;
+	}
+
+	public static long getHitCount() {
+		return HITS.get();
+	}
+
+	public static long getMissCount() {
+		return MISSES.get();
+	}
+
+	public static String getStatistics() {
+		return String.format("metric cache hits %d, misses %d", getHitCount(), getMissCount());
+	}
+
+	private static void evictExpiredAndEldest(final long now) {
+		final Iterator<CacheEntry> it = ENTRIES.values().iterator();
+		int size = ENTRIES.size();
+		while (it.hasNext()) {
+			final CacheEntry entry = it.next();
+			if (size > MAX_ENTRIES || (entry.expiresAt <= now && entry.response.isDone())) {
+				it.remove();
+				size--;
+			}
+		}
+	}
+
+	private static final class CacheEntry {
+		private final FutureTask<List<MetricData>> response;
+		private final long expiresAt;
+
+		CacheEntry(final FutureTask<List<MetricData>> response, final long expiresAt) {
+			this.response = response;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
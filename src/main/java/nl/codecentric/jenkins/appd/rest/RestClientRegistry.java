@@ -0,0 +1,231 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.json.JSONConfiguration;
+import com.sun.jersey.client.apache.ApacheHttpClient;
+import com.sun.jersey.client.apache.ApacheHttpClientHandler;
+import com.sun.jersey.client.apache.config.DefaultApacheHttpClientConfig;
+
+import hudson.Util;
+import hudson.init.Terminator;
+
+/**
+ * Keeps a single Jersey {@link Client} per AppDynamics Controller and set of
+ * credentials, so all builds talking to the same Controller share one pool of
+ * keep-alive connections instead of opening (and TLS handshaking) new ones for
+ * every {@link RestConnection}.<br />
+ * <br />
+ * A client not asked for during the client idle timeout, e.g. because the
+ * credentials of a job changed, is destroyed and removed together with its
+ * pool of connections.<br />
+ * <br />
+ * The pool can be tuned with the following system properties, prefixed with
+ * the name of this class:
+ * <ul>
+ * <li><code>maxConnectionsPerRoute</code> - connections per Controller
+ * (default 8)</li>
+ * <li><code>maxTotalConnections</code> - connections per client (default
+ * 32)</li>
+ * <li><code>idleTimeoutInSeconds</code> - idle time after which pooled
+ * connections are closed (default 60)</li>
+ * <li><code>connectTimeoutInSeconds</code> - timeout for connecting to the
+ * Controller (default 10)</li>
+ * <li><code>readTimeoutInSeconds</code> - timeout waiting for data from the
+ * Controller (default 60)</li>
+ * <li><code>clientIdleTimeoutInMinutes</code> - idle time after which a
+ * client is removed (default 30)</li>
+ * </ul>
+ */
+public final class RestClientRegistry {
+
+	private static final String PROPERTY_PREFIX = RestClientRegistry.class.getName() + ".";
+	private static final int MAX_CONNECTIONS_PER_ROUTE = Integer.getInteger(PROPERTY_PREFIX + "maxConnectionsPerRoute",
+			8);
+	private static final int MAX_TOTAL_CONNECTIONS = Integer.getInteger(PROPERTY_PREFIX + "maxTotalConnections", 32);
+	private static final long IDLE_TIMEOUT_IN_MILLIS = TimeUnit.SECONDS
+			.toMillis(Integer.getInteger(PROPERTY_PREFIX + "idleTimeoutInSeconds", 60));
+	private static final int CONNECT_TIMEOUT_IN_MILLIS = (int) TimeUnit.SECONDS
+			.toMillis(Integer.getInteger(PROPERTY_PREFIX + "connectTimeoutInSeconds", 10));
+	private static final int READ_TIMEOUT_IN_MILLIS = (int) TimeUnit.SECONDS
+			.toMillis(Integer.getInteger(PROPERTY_PREFIX + "readTimeoutInSeconds", 60));
+	static final long CLIENT_IDLE_TIMEOUT_IN_MILLIS = TimeUnit.MINUTES
+			.toMillis(Math.max(1, Integer.getInteger(PROPERTY_PREFIX + "clientIdleTimeoutInMinutes", 30)));
+	private static final long EVICTION_INTERVAL_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final Logger LOG = Logger.getLogger(RestClientRegistry.class.getName());
+	private static final ConcurrentMap<String, PooledClient> CLIENTS = new ConcurrentHashMap<String, PooledClient>();
+	private static IdleConnectionTimeoutThread idleConnectionEvictor;
+	private static volatile long lastEviction = System.currentTimeMillis();
+
+	private RestClientRegistry() {
+	}
+
+	/**
+	 * Returns the shared client for the given Controller and credentials,
+	 * creating it the first time it is asked for, or again after it was
+	 * removed for being idle. The client is meant to be used right away, not
+	 * to be kept.
+	 */
+	static Client getClient(final String restUri, final String username, final String password) {
+		final long now = System.currentTimeMillis();
+		if (now - lastEviction >= EVICTION_INTERVAL_IN_MILLIS) {
+			evictIdleClients(now);
+		}
+
+		final String key = createKey(restUri, username, password);
+		while (true) {
+			PooledClient pooledClient = CLIENTS.get(key);
+			if (pooledClient == null) {
+				PooledClient newClient = new PooledClient(username, password);
+				pooledClient = CLIENTS.putIfAbsent(key, newClient);
+				if (pooledClient == null) {
+					pooledClient = newClient;
+					registerForIdleEviction(newClient.connectionManager);
+					LOG.fine("Created pooled REST client for: " + restUri);
+				} else {
+					newClient.destroy();
+				}
+			}
+
+			if (pooledClient.touch(now)) {
+				return pooledClient.client;
+			}
+			// Evicted in the meantime
+			CLIENTS.remove(key, pooledClient);
+		}
+	}
+
+	/**
+	 * Destroys and removes the clients not asked for during the client idle
+	 * timeout before the given moment.
+	 */
+	static synchronized void evictIdleClients(final long now) {
+		lastEviction = now;
+		for (Iterator<PooledClient> clients = CLIENTS.values().iterator(); clients.hasNext();) {
+			final PooledClient pooledClient = clients.next();
+			if (pooledClient.destroyIfIdle(now)) {
+				clients.remove();
+				if (idleConnectionEvictor != null) {
+					idleConnectionEvictor.removeConnectionManager(pooledClient.connectionManager);
+				}
+				LOG.fine("Removed idle pooled REST client");
+			}
+		}
+
+		if (CLIENTS.isEmpty() && idleConnectionEvictor != null) {
+			idleConnectionEvictor.shutdown();
+			idleConnectionEvictor = null;
+		}
+	}
+
+	static int getClientCount() {
+		return CLIENTS.size();
+	}
+
+	/**
+	 * Closes all pooled connections and clients, invoked when Jenkins (and with
+	 * it this plugin) stops.
+	 */
+	@Terminator
+	public static synchronized void shutdown() {
+		if (idleConnectionEvictor != null) {
+			idleConnectionEvictor.shutdown();
+			idleConnectionEvictor = null;
+		}
+
+		for (PooledClient pooledClient : CLIENTS.values()) {
+			pooledClient.destroy();
+		}
+		CLIENTS.clear();
+		LOG.fine("Shut down all pooled REST clients");
+	}
+
+	private static synchronized void registerForIdleEviction(final MultiThreadedHttpConnectionManager manager) {
+		if (idleConnectionEvictor == null) {
+			idleConnectionEvictor = new IdleConnectionTimeoutThread();
+			idleConnectionEvictor.setName("AppDynamics idle connection evictor");
+			idleConnectionEvictor.setConnectionTimeout(IDLE_TIMEOUT_IN_MILLIS);
+			idleConnectionEvictor.setTimeoutInterval(Math.max(1000, IDLE_TIMEOUT_IN_MILLIS / 2));
+			idleConnectionEvictor.start();
+		}
+		idleConnectionEvictor.addConnectionManager(manager);
+	}
+
+	/**
+	 * @return key identifying the Controller and the credentials, without
+	 *         the plain password
+	 */
+	static String createKey(final String restUri, final String username, final String password) {
+		// Never keep the plain password around as part of the key
+		return restUri + '|' + username + '|' + Util.getDigestOf(String.valueOf(password));
+	}
+
+	private static final class PooledClient {
+		private final MultiThreadedHttpConnectionManager connectionManager;
+		private final Client client;
+		private long lastUsed;
+		private boolean destroyed;
+
+		PooledClient(final String username, final String password) {
+			lastUsed = System.currentTimeMillis();
+			connectionManager = new MultiThreadedHttpConnectionManager();
+			HttpConnectionManagerParams params = connectionManager.getParams();
+			params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_ROUTE);
+			params.setMaxTotalConnections(Math.max(MAX_TOTAL_CONNECTIONS, MAX_CONNECTIONS_PER_ROUTE));
+			params.setConnectionTimeout(CONNECT_TIMEOUT_IN_MILLIS);
+			params.setSoTimeout(READ_TIMEOUT_IN_MILLIS);
+
+			DefaultApacheHttpClientConfig config = new DefaultApacheHttpClientConfig();
+			config.getState().setCredentials(null, null, -1, username, password);
+			config.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
+			config.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, CONNECT_TIMEOUT_IN_MILLIS);
+			config.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, READ_TIMEOUT_IN_MILLIS);
+
+			HttpClient httpClient = new HttpClient(connectionManager);
+			// Do not wait forever for a pooled connection either
+			httpClient.getParams().setConnectionManagerTimeout(CONNECT_TIMEOUT_IN_MILLIS);
+			client = new ApacheHttpClient(new ApacheHttpClientHandler(httpClient, config), config);
+			client.setFollowRedirects(true);
+		}
+
+		/**
+		 * @return <code>false</code> when the client was destroyed already
+		 */
+		synchronized boolean touch(final long now) {
+			lastUsed = Math.max(lastUsed, now);
+			return !destroyed;
+		}
+
+		/**
+		 * @return <code>true</code> when the client was idle and is destroyed
+		 */
+		synchronized boolean destroyIfIdle(final long now) {
+			if (destroyed || now - lastUsed < CLIENT_IDLE_TIMEOUT_IN_MILLIS) {
+				return false;
+			}
+			destroy();
+			return true;
+		}
+
+		synchronized void destroy() {
+			if (destroyed) {
+				return;
+			}
+			destroyed = true;
+			client.destroy();
+			connectionManager.shutdown();
+		}
+	}
+}
@@ -1,33 +1,45 @@
 package nl.codecentric.jenkins.appd.rest;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
 
-import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.json.JSONConfiguration;
-import com.sun.jersey.client.apache.ApacheHttpClient;
-import com.sun.jersey.client.apache.config.DefaultApacheHttpClientConfig;
 import com.sun.jersey.core.util.MultivaluedMapImpl;
 
+import nl.codecentric.jenkins.appd.rest.RestRequestScheduler.ResponseHandler;
 import nl.codecentric.jenkins.appd.rest.types.ApplicationInformation;
 import nl.codecentric.jenkins.appd.rest.types.MetricData;
 
 /**
  * Class providing only the connection to the AppDynamics REST interface. Checks
  * all connection parameters and maintains the connection to the REST interface.
+ * The underlying HTTP client is shared through the {@link RestClientRegistry},
+ * so creating a connection is cheap. All requests pass through the
+ * {@link RestRequestScheduler} of the Controller.
  */
 public class RestConnection {
 
@@ -42,61 +54,215 @@ public class RestConnection {
 	private static final String PARAM_TIME_RANGE_TYPE_BEFORE_NOW = "BEFORE_NOW";
 	private static final String PARAM_DEFAULT_ROLLUP = "false";
 	private static final String PARAM_DEFAULT_OUTPUT = "JSON";
+	private static final String METRIC_PATH_SEPARATOR = "|";
+	private static final String METRIC_PATH_WILDCARD = "*";
+	private static final String HEALTH_CHECK_METRIC_PATH = "Overall Application Performance|Calls per Minute";
+	private static final int STATUS_OK = 200;
+	private static final int STATUS_UNAUTHORIZED = 401;
+	private static final int STATUS_FORBIDDEN = 403;
+	private static final int STATUS_NOT_FOUND = 404;
 
 	private static final Logger LOG = Logger.getLogger(RestConnection.class.getName());
 	private final ObjectMapper jsonMapper = new ObjectMapper();
-	private final WebResource restResource;
+	private final String restUri;
+	private final String username;
+	private final String password;
+	private final String restResourceUri;
 	private final String applicationName;
 	private final String controllerUri;
+	private final String requester;
+	/** Application resource and credentials, shared caches only hand out what these may see. */
+	private final String credentialsKey;
+	private final RestRequestScheduler scheduler;
+	private final AtomicLong waitTimeInMillis = new AtomicLong();
+	private volatile String connectionFailure;
 
 	private static final String[] CONTROLLER_URI_ORDERED_SEGMENTS = { "controller" };
 	private static final String[] REST_URI_ORDERED_SEGMENTS = { "controller", "rest", "applications" };
 
 	public RestConnection(final String controllerUri, final String username, final String password,
 			final String applicationName) {
+		this(controllerUri, username, password, applicationName, "");
+	}
+
+	/**
+	 * @param requester
+	 *            name of the job using this connection, used to share the
+	 *            Controller fairly between jobs
+	 */
+	public RestConnection(final String controllerUri, final String username, final String password,
+			final String applicationName, final String requester) {
 		this.applicationName = applicationName;
 		this.controllerUri = parseUri(controllerUri, CONTROLLER_URI_ORDERED_SEGMENTS);
+		this.requester = requester;
+		this.scheduler = RestRequestScheduler.forController(this.controllerUri);
 
-		final String parsedUsername = parseUsername(username);
-		final String parsedRestUri = parseUri(controllerUri, REST_URI_ORDERED_SEGMENTS);
-		final String parsedApplicationName = parseApplicationName(this.applicationName);
+		this.username = parseUsername(username);
+		this.password = password;
+		this.restUri = parseUri(controllerUri, REST_URI_ORDERED_SEGMENTS);
+		this.restResourceUri = restUri + parseApplicationName(this.applicationName);
 
-		DefaultApacheHttpClientConfig config = new DefaultApacheHttpClientConfig();
-		config.getState().setCredentials(null, null, -1, parsedUsername, password);
-		config.getFeatures().put(JSONConfiguration.FEATURE_POJO_MAPPING, Boolean.TRUE);
 		jsonMapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		Client restClient = ApacheHttpClient.create(config);
-		restClient.setFollowRedirects(true);
-
-		restResource = restClient.resource(parsedRestUri + parsedApplicationName);
+		credentialsKey = RestClientRegistry.createKey(restResourceUri, this.username, password);
 	}
 
+	/**
+	 * Light-weight check of the connection settings, used from the
+	 * configuration page: requests a single metric for the last minute, which
+	 * also verifies the credentials and the application name.
+	 */
 	public boolean validateConnection() {
-		boolean validationResult = false;
-
-		try {
-			ClientResponse response = restResource.path("business-transactions/").queryParam("output", "JSON")
-					.accept(MediaType.APPLICATION_JSON_TYPE).get(ClientResponse.class);
-
-			if (response.getStatus() == 200) {
-				String output = response.getEntity(String.class);
-				LOG.fine(String.format("Response from AppDynamics server ==> code: %s | output: %s",
-						response.getStatus(), output));
-				validationResult = true;
-			}
-		} catch (Exception e) {
-			LOG.log(Level.INFO, "Some problem connecting to the AppDynamics REST interface, see stack-trace for "
-					+ "more information", e);
-		}
-
+		final boolean validationResult = requestMetricData(HEALTH_CHECK_METRIC_PATH, 1, -1) != null;
+		LOG.fine("Connection to AppDynamics REST interface valid: " + validationResult);
 		return validationResult;
 	}
 
+	/**
+	 * @return description of the authentication or connectivity failure seen
+	 *         by the last metric request, or <code>null</code> when it
+	 *         succeeded
+	 */
+	public String getConnectionFailure() {
+		return connectionFailure;
+	}
+
 	public MetricData fetchMetricData(final String metricPath, int durationInMinutes) {
 		return fetchMetricData(metricPath, durationInMinutes, -1);
 	}
 
 	public MetricData fetchMetricData(final String metricPath, int durationInMinutes, long buildStartTime) {
+		MetricData resultData = null;
+		List<MetricData> metricList = requestMetricData(metricPath, durationInMinutes, buildStartTime);
+		if (metricList != null && !metricList.isEmpty()) {
+			resultData = metricList.get(0); // Always expect only single
+											// 'MetricData' value
+			LOG.fine("Successfully fetched metrics for path: " + resultData.getMetricPath());
+		}
+
+		return resultData;
+	}
+
+	/**
+	 * Fetches the data for all given metric paths in as few requests as
+	 * possible. Metric paths sharing the same parent are requested at once
+	 * using a wildcard for the last segment, e.g.
+	 * <code>Overall Application Performance|*</code>.
+	 *
+	 * @return the fetched metrics keyed by metric path, in the order of the
+	 *         given paths. Metrics that could not be fetched are absent.
+	 */
+	public Map<String, MetricData> fetchMetricData(final Collection<String> metricPaths, int durationInMinutes,
+			long buildStartTime) {
+		final Map<String, MetricData> fetchedMetrics = new LinkedHashMap<String, MetricData>();
+
+		for (Map.Entry<String, List<String>> group : groupMetricPaths(metricPaths).entrySet()) {
+			List<MetricData> metricList = requestMetricData(group.getKey(), durationInMinutes, buildStartTime);
+			if (metricList == null) {
+				continue;
+			}
+
+			for (MetricData metricData : metricList) {
+				if (group.getValue().contains(metricData.getMetricPath())) {
+					fetchedMetrics.put(metricData.getMetricPath(), metricData);
+				}
+			}
+		}
+
+		final Map<String, MetricData> orderedMetrics = new LinkedHashMap<String, MetricData>();
+		for (String metricPath : metricPaths) {
+			MetricData metricData = fetchedMetrics.get(metricPath);
+			if (metricData != null) {
+				orderedMetrics.put(metricPath, metricData);
+				LOG.fine("Successfully fetched metrics for path: " + metricPath);
+			}
+		}
+
+		return orderedMetrics;
+	}
+
+	/**
+	 * Groups metric paths by the request path used to fetch them. Paths that
+	 * share their parent with other paths are fetched with a wildcard, single
+	 * paths are requested as-is. Empty paths are skipped.
+	 */
+	public static Map<String, List<String>> groupMetricPaths(final Collection<String> metricPaths) {
+		final Map<String, List<String>> pathsByParent = new LinkedHashMap<String, List<String>>();
+		for (String metricPath : new LinkedHashSet<String>(metricPaths)) {
+			if (isFieldEmpty(metricPath)) {
+				continue;
+			}
+			int separatorIndex = metricPath.lastIndexOf(METRIC_PATH_SEPARATOR);
+			String parent = separatorIndex < 0 ? "" : metricPath.substring(0, separatorIndex);
+
+			List<String> paths = pathsByParent.get(parent);
+			if (paths == null) {
+				paths = new ArrayList<String>();
+				pathsByParent.put(parent, paths);
+			}
+			paths.add(metricPath);
+		}
+
+		final Map<String, List<String>> groupedPaths = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : pathsByParent.entrySet()) {
+			List<String> paths = entry.getValue();
+			if (paths.size() > 1 && !entry.getKey().isEmpty()) {
+				groupedPaths.put(entry.getKey() + METRIC_PATH_SEPARATOR + METRIC_PATH_WILDCARD,
+						Collections.unmodifiableList(paths));
+			} else {
+				for (String path : paths) {
+					groupedPaths.put(path, Collections.singletonList(path));
+				}
+			}
+		}
+
+		return groupedPaths;
+	}
+
+	/**
+	 * Requests windows starting at a given time through the
+	 * {@link MetricResponseCache}, with the window aligned to the metric
+	 * frequency. Windows relative to now are always requested directly.
+	 * Failures are recorded as connection failure, also when another
+	 * connection sent the request.
+	 */
+	private List<MetricData> requestMetricData(final String metricPath, final int durationInMinutes,
+			final long buildStartTime) {
+		List<MetricData> metricList = null;
+		try {
+			if (buildStartTime <= 0) {
+				metricList = loadMetricData(metricPath, durationInMinutes, buildStartTime);
+			} else {
+				metricList = MetricResponseCache.get(credentialsKey + "|" + metricPath, buildStartTime,
+						durationInMinutes, new MetricResponseCache.WindowLoader() {
+							public List<MetricData> load(final long startTime, final int windowInMinutes)
+									throws IOException {
+								return loadMetricData(metricPath, windowInMinutes, startTime);
+							}
+						});
+			}
+			if (metricList != null) {
+				connectionFailure = null;
+			}
+		} catch (IOException e) {
+			connectionFailure = e.getMessage() == null ? e.toString() : e.getMessage();
+			LOG.log(Level.INFO, "Some problem fetching metrics from the AppDynamics REST interface, "
+					+ "see stack-trace for more information", e);
+		} catch (RuntimeException e) {
+			LOG.log(Level.INFO, "Some problem fetching metrics from the AppDynamics REST interface, "
+					+ "see stack-trace for more information", e);
+		}
+		return metricList;
+	}
+
+	/**
+	 * @return the metric data, or <code>null</code> when the Controller did not
+	 *         return any
+	 * @throws IOException
+	 *             when the Controller could not be reached, or refused the
+	 *             credentials or the application
+	 */
+	private List<MetricData> loadMetricData(final String metricPath, int durationInMinutes,
+			long buildStartTime) throws IOException {
 		String encodedMetricPath = encodeRestSegment(metricPath);
 		MultivaluedMap<String, String> paramMap = new MultivaluedMapImpl();
 		paramMap.add(REST_PARAM_METRIC_PATH, encodedMetricPath);
@@ -111,69 +277,102 @@ public class RestConnection {
 		paramMap.add(REST_PARAM_ROLLUP, PARAM_DEFAULT_ROLLUP);
 		paramMap.add(REST_PARAM_OUTPUT, PARAM_DEFAULT_OUTPUT);
 
-		MetricData resultData = null;
-		try {
-			ClientResponse response = restResource.path(REST_SEGMENT_METRIC_DATA).queryParams(paramMap)
-					.accept(MediaType.APPLICATION_JSON_TYPE).get(ClientResponse.class);
-
-			if (response.getStatus() == 200) {
-				String jsonOutput = response.getEntity(String.class);
-				LOG.fine(String.format("Response from AppDynamics server ==> code: %s | output: %s",
-						response.getStatus(), jsonOutput));
-
-				List<MetricData> metricList = jsonMapper.readValue(jsonOutput, new TypeReference<List<MetricData>>() {
+		final String[] refusal = new String[1];
+		final List<MetricData> metricList = execute(getRestResource().path(REST_SEGMENT_METRIC_DATA)
+				.queryParams(paramMap).accept(MediaType.APPLICATION_JSON_TYPE),
+				new ResponseHandler<List<MetricData>>() {
+					public List<MetricData> handle(final ClientResponse response) throws IOException {
+						final int status = response.getStatus();
+						if (status != STATUS_OK) {
+							LOG.info("Metric fetch not successful. Response code: " + status);
+							if (status == STATUS_UNAUTHORIZED || status == STATUS_FORBIDDEN
+									|| status == STATUS_NOT_FOUND) {
+								refusal[0] = "response code " + status + " from the Controller";
+							}
+							return null;
+						}
+
+						final List<MetricData> parsedMetrics = new ArrayList<MetricData>();
+						readJsonArray(response.getEntityInputStream(), MetricData.class,
+								new JsonElementHandler<MetricData>() {
+									public boolean handle(final MetricData element) {
+										parsedMetrics.add(element);
+										return true;
+									}
+								});
+
+						if (LOG.isLoggable(Level.FINE)) {
+							LOG.fine(String.format("Response from AppDynamics server ==> code: %s | metrics: %d",
+									response.getStatus(), parsedMetrics.size()));
+						}
+						return parsedMetrics;
+					}
 				});
-				resultData = metricList.get(0); // Always expect only single
-												// 'MetricData' value
-				LOG.fine("Successfully fetched metrics for path: " + resultData.getMetricPath());
-			}
-		} catch (Exception e) {
-			LOG.log(Level.INFO, "Some problem fetching metrics from the AppDynamics REST interface, "
-					+ "see stack-trace for more information", e);
-		}
 
-		return resultData;
+		if (refusal[0] != null) {
+			// Thrown outside of the scheduler, which would retry it
+			throw new IOException(refusal[0]);
+		}
+		return metricList;
 	}
 
+	/**
+	 * Looks up the application through the {@link ApplicationInfoCache}, so
+	 * only the first build after start-up (or after the cached entry expired)
+	 * waits for the Controller.
+	 */
 	public ApplicationInformation fetchApplicationData() {
+		ApplicationInformation applicationInformation = ApplicationInfoCache.get(credentialsKey,
+				new Callable<ApplicationInformation>() {
+					public ApplicationInformation call() throws IOException {
+						return loadApplicationData();
+					}
+				});
 
-		ApplicationInformation applicationInformation = null;
+		if (applicationInformation != null) {
+			LOG.fine("Successfully fetched application: " + applicationInformation);
+		}
+		return applicationInformation;
+	}
 
+	private ApplicationInformation loadApplicationData() throws IOException {
 		LOG.fine("fetch application and search for: " + applicationName);
 
-		try {
-			ClientResponse response = this.restResource.queryParam("output", "JSON")
-					.accept(MediaType.APPLICATION_JSON_TYPE).get(ClientResponse.class);
-
-			if (response.getStatus() == 200) {
-				String jsonOutput = response.getEntity(String.class);
-				LOG.fine(String.format("Response from AppDynamics server ==> code: %s | output: %s",
-						response.getStatus(), jsonOutput));
-
-				List<ApplicationInformation> applicationList = jsonMapper.readValue(jsonOutput,
-						new TypeReference<List<ApplicationInformation>>() {
-						});
-
-				Iterator<ApplicationInformation> it = applicationList.iterator();
-
-				while (it.hasNext() && applicationInformation == null) {
-					ApplicationInformation info = it.next();
-					if (info.getName().equals(this.applicationName)) {
-						applicationInformation = info;
-						LOG.fine("Successfully fetched application: " + applicationInformation);
+		return execute(getRestResource().queryParam("output", "JSON").accept(MediaType.APPLICATION_JSON_TYPE),
+				new ResponseHandler<ApplicationInformation>() {
+					public ApplicationInformation handle(final ClientResponse response) throws IOException {
+						if (response.getStatus() != 200) {
+							LOG.warning("Application fetch not successfull. Response: " + response.toString()
+									+ response.getLocation());
+							return null;
+						}
+
+						final ApplicationInformation[] match = new ApplicationInformation[1];
+						readJsonArray(response.getEntityInputStream(), ApplicationInformation.class,
+								new JsonElementHandler<ApplicationInformation>() {
+									public boolean handle(final ApplicationInformation element) {
+										if (applicationName.equals(element.getName())) {
+											match[0] = element;
+											return false;
+										}
+										return true;
+									}
+								});
+						return match[0];
 					}
-				}
-			} else {
-				LOG.warning(
-						"Application fetch not successfull. Response: " + response.toString() + response.getLocation());
-			}
+				});
+	}
 
-		} catch (Exception e) {
-			LOG.log(Level.INFO, "Some problem fetching Applications from the AppDynamics REST interface, "
-					+ "see stack-trace for more information", e);
-		}
+	/**
+	 * @return total time this connection waited for a free slot on the
+	 *         Controller, see {@link RestRequestScheduler}
+	 */
+	public long getWaitTimeInMillis() {
+		return waitTimeInMillis.get();
+	}
 
-		return applicationInformation;
+	public RestRequestScheduler getScheduler() {
+		return scheduler;
 	}
 
 	public static boolean validateRestUri(final String restUri) {
@@ -204,6 +403,65 @@ public class RestConnection {
 		return this.controllerUri;
 	}
 
+	/**
+	 * Reads a JSON array element by element straight from the response stream,
+	 * so the complete body is never held in memory as a whole.
+	 */
+	private <T> void readJsonArray(final InputStream input, final Class<T> elementType,
+			final JsonElementHandler<T> handler) throws IOException {
+		final JsonParser parser = jsonMapper.getJsonFactory().createJsonParser(input);
+		try {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new JsonParseException("Expected a JSON array from the AppDynamics REST interface",
+						parser.getCurrentLocation());
+			}
+
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				if (!handler.handle(jsonMapper.readValue(parser, elementType))) {
+					break;
+				}
+			}
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Callback for each element read by
+	 * {@link RestConnection#readJsonArray(InputStream, Class, JsonElementHandler)}
+	 * .
+	 */
+	private interface JsonElementHandler<T> {
+		/**
+		 * @return <code>true</code> to continue reading, <code>false</code> to
+		 *         stop at this element.
+		 */
+		boolean handle(T element);
+	}
+
+	/**
+	 * @return the application resource, on the client shared through the
+	 *         {@link RestClientRegistry}, which may have been replaced since
+	 *         the last request
+	 */
+	private WebResource getRestResource() {
+		return RestClientRegistry.getClient(restUri, username, password).resource(restResourceUri);
+	}
+
+	/**
+	 * Executes the request through the {@link RestRequestScheduler} of the
+	 * Controller. An interrupt is passed on to the caller as an
+	 * {@link IOException}, with the interrupted flag of the thread restored.
+	 */
+	private <T> T execute(final WebResource.Builder request, final ResponseHandler<T> handler) throws IOException {
+		try {
+			return scheduler.execute(requester, request, handler, waitTimeInMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the AppDynamics Controller");
+		}
+	}
+
 	private String parseUsername(final String username) {
 		String parsedUsername = username;
 		if (!username.contains("@")) {
@@ -0,0 +1,452 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.JsonProcessingException;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+
+/**
+ * Limits the number of requests in flight to a single AppDynamics Controller,
+ * shared by all builds of all jobs. Requests waiting for a free slot are
+ * queued per requester (normally the job), and slots are handed out
+ * round-robin between the requesters, so a job firing many requests cannot
+ * starve the others.<br />
+ * <br />
+ * When the Controller answers with <code>429</code> or <code>503</code> and a
+ * <code>Retry-After</code> header, no new requests are sent to it until that
+ * moment has passed, and the request is retried. Connection failures and
+ * <code>502</code>, <code>503</code> or <code>504</code> responses are retried
+ * with a jittered exponential backoff. Each Controller has a
+ * {@link CircuitBreaker}, so while it is down builds fail fast instead of
+ * waiting for timeouts.<br />
+ * <br />
+ * The scheduler can be tuned with the following system properties, prefixed
+ * with the name of this class:
+ * <ul>
+ * <li><code>maxRequestsPerController</code> - requests in flight per
+ * Controller (default 4)</li>
+ * <li><code>maxAttempts</code> - attempts per request (default 3)</li>
+ * <li><code>backoffBaseInMillis</code> - backoff before the first retry
+ * (default 500)</li>
+ * <li><code>backoffMaxInMillis</code> - maximum backoff (default 10000)</li>
+ * <li><code>failureThreshold</code> - consecutive failures opening the
+ * circuit (default 5)</li>
+ * <li><code>openDurationInSeconds</code> - time the circuit stays open
+ * (default 30)</li>
+ * </ul>
+ */
+public final class RestRequestScheduler {
+
+	private static final String PROPERTY_PREFIX = RestRequestScheduler.class.getName() + ".";
+	private static final int MAX_IN_FLIGHT = Math.max(1,
+			Integer.getInteger(PROPERTY_PREFIX + "maxRequestsPerController", 4));
+	private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + "maxAttempts", 3));
+	private static final long BACKOFF_BASE_IN_MILLIS = Integer.getInteger(PROPERTY_PREFIX + "backoffBaseInMillis",
+			500);
+	private static final long BACKOFF_MAX_IN_MILLIS = Integer.getInteger(PROPERTY_PREFIX + "backoffMaxInMillis",
+			10000);
+	private static final int FAILURE_THRESHOLD = Integer.getInteger(PROPERTY_PREFIX + "failureThreshold", 5);
+	private static final int OPEN_DURATION_IN_SECONDS = Integer.getInteger(PROPERTY_PREFIX + "openDurationInSeconds",
+			30);
+	private static final long MAX_RETRY_AFTER_IN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	private static final int STATUS_TOO_MANY_REQUESTS = 429;
+	private static final int STATUS_BAD_GATEWAY = 502;
+	private static final int STATUS_SERVICE_UNAVAILABLE = 503;
+	private static final int STATUS_GATEWAY_TIMEOUT = 504;
+
+	private static final Logger LOG = Logger.getLogger(RestRequestScheduler.class.getName());
+	private static final ConcurrentMap<String, RestRequestScheduler> SCHEDULERS = new ConcurrentHashMap<String, RestRequestScheduler>();
+
+	private final String controllerUri;
+	private final int maxInFlight;
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(FAILURE_THRESHOLD, OPEN_DURATION_IN_SECONDS,
+			TimeUnit.SECONDS);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final Map<String, ArrayDeque<Ticket>> queuesByRequester = new HashMap<String, ArrayDeque<Ticket>>();
+	private final ArrayDeque<String> requesterOrder = new ArrayDeque<String>();
+	private int inFlight;
+	private int queueDepth;
+	private long pausedUntil;
+
+	private final AtomicLong scheduledRequests = new AtomicLong();
+	private final AtomicLong totalWaitTimeInMillis = new AtomicLong();
+	private final AtomicLong maxWaitTimeInMillis = new AtomicLong();
+
+	private RestRequestScheduler(final String controllerUri) {
+		this(controllerUri, MAX_IN_FLIGHT);
+	}
+
+	RestRequestScheduler(final String controllerUri, final int maxInFlight) {
+		this.controllerUri = controllerUri;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Callback reading the response of a scheduled request. The response is
+	 * closed, and its slot freed, once the handler returns.
+	 */
+	public interface ResponseHandler<T> {
+		T handle(ClientResponse response) throws IOException;
+	}
+
+	public static RestRequestScheduler forController(final String controllerUri) {
+		RestRequestScheduler scheduler = SCHEDULERS.get(controllerUri);
+		if (scheduler == null) {
+			RestRequestScheduler newScheduler = new RestRequestScheduler(controllerUri);
+			scheduler = SCHEDULERS.putIfAbsent(controllerUri, newScheduler);
+			if (scheduler == null) {
+				scheduler = newScheduler;
+			}
+		}
+		return scheduler;
+	}
+
+	/**
+	 * @return the schedulers of all Controllers used so far, keyed by
+	 *         Controller uri
+	 */
+	public static Map<String, RestRequestScheduler> getSchedulers() {
+		return Collections.unmodifiableMap(SCHEDULERS);
+	}
+
+	/**
+	 * Executes the GET request as soon as a slot for the Controller is free.
+	 * Failed attempts are retried with a jittered exponential backoff, without
+	 * holding on to the slot while backing off. While the circuit breaker of
+	 * the Controller is open the request fails right away.
+	 *
+	 * @param requester
+	 *            key used to queue fairly between requesters, e.g. the job name
+	 * @param waitTimeInMillis
+	 *            accumulates the time spent waiting for a slot
+	 * @throws ControllerUnavailableException
+	 *             when the circuit breaker of the Controller is open
+	 */
+	public <T> T execute(final String requester, final WebResource.Builder request,
+			final ResponseHandler<T> handler, final AtomicLong waitTimeInMillis)
+			throws IOException, InterruptedException {
+		long backoff = 0;
+		for (int attempt = 1;; attempt++) {
+			if (backoff > 0) {
+				Thread.sleep(backoff);
+			}
+			if (circuitBreaker.isOpen()) {
+				throw createUnavailableException();
+			}
+			waitTimeInMillis.addAndGet(acquire(requester));
+
+			ClientResponse response = null;
+			try {
+				if (!circuitBreaker.allowRequest()) {
+					throw createUnavailableException();
+				}
+
+				try {
+					response = request.get(ClientResponse.class);
+				} catch (ClientHandlerException e) {
+					circuitBreaker.recordFailure();
+					if (!isRetryAllowed(attempt)) {
+						throw new IOException("Request to AppDynamics Controller " + controllerUri + " failed", e);
+					}
+					backoff = logRetry(attempt, e.getMessage());
+					continue;
+				}
+
+				final int status = response.getStatus();
+				final long retryAfter = getRetryAfterInMillis(response);
+				if (retryAfter >= 0 && attempt < MAX_ATTEMPTS) {
+					// The Controller is alive, it only asks to slow down
+					circuitBreaker.recordSuccess();
+					LOG.info(String.format("AppDynamics Controller %s asked to retry after %d ms (status %d)",
+							controllerUri, retryAfter, status));
+					pause(retryAfter);
+					backoff = 0;
+					continue;
+				}
+				if (isUnavailableStatus(status)) {
+					circuitBreaker.recordFailure();
+					if (isRetryAllowed(attempt)) {
+						backoff = logRetry(attempt, "status " + status);
+						continue;
+					}
+					return handler.handle(response);
+				}
+
+				final T result;
+				try {
+					result = handler.handle(response);
+				} catch (IOException e) {
+					circuitBreaker.recordFailure();
+					if (e instanceof JsonProcessingException || !isRetryAllowed(attempt)) {
+						throw e;
+					}
+					backoff = logRetry(attempt, e.toString());
+					continue;
+				}
+				circuitBreaker.recordSuccess();
+				return result;
+			} catch (RuntimeException e) {
+				circuitBreaker.recordFailure();
+				throw e;
+			} finally {
+				if (response != null) {
+					response.close();
+				}
+				release();
+			}
+		}
+	}
+
+	/**
+	 * @return state of the circuit breaker guarding this Controller
+	 */
+	public String getCircuitState() {
+		return circuitBreaker.getState().name();
+	}
+
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queueDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getScheduledRequests() {
+		return scheduledRequests.get();
+	}
+
+	public long getAverageWaitTimeInMillis() {
+		final long completed = scheduledRequests.get();
+		return completed == 0 ? 0 : totalWaitTimeInMillis.get() / completed;
+	}
+
+	public long getMaxWaitTimeInMillis() {
+		return maxWaitTimeInMillis.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: in flight %d/%d, queued %d, average wait %d ms, max wait %d ms, circuit %s",
+				controllerUri, getInFlight(), maxInFlight, getQueueDepth(), getAverageWaitTimeInMillis(),
+				getMaxWaitTimeInMillis(), getCircuitState());
+	}
+
+	/**
+	 * Blocks until a slot is handed to this request.
+	 *
+	 * @return the time spent waiting
+	 */
+	long acquire(final String requester) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		final Ticket ticket = new Ticket(requester);
+
+		lock.lock();
+		try {
+			enqueue(ticket);
+			dispatch();
+			while (!ticket.granted) {
+				final long pause = pausedUntil - System.currentTimeMillis();
+				if (pause > 0) {
+					changed.await(pause, TimeUnit.MILLISECONDS);
+				} else {
+					changed.await();
+				}
+				dispatch();
+			}
+		} catch (InterruptedException e) {
+			if (ticket.granted) {
+				inFlight--;
+				dispatch();
+			} else {
+				dequeue(ticket);
+				// Requests behind the abandoned one may be next now
+				dispatch();
+				changed.signalAll();
+			}
+			throw e;
+		} finally {
+			lock.unlock();
+		}
+
+		final long waited = System.currentTimeMillis() - start;
+		scheduledRequests.incrementAndGet();
+		totalWaitTimeInMillis.addAndGet(waited);
+		long max;
+		while ((max = maxWaitTimeInMillis.get()) < waited && !maxWaitTimeInMillis.compareAndSet(max, waited)) {
+			// retry until the maximum is updated
+		}
+		return waited;
+	}
+
+	void release() {
+		lock.lock();
+		try {
+			inFlight--;
+			dispatch();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void pause(final long durationInMillis) {
+		lock.lock();
+		try {
+			pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + durationInMillis);
+			// Waiting requests wait for the end of the pause from now on
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands out free slots, taking the next ticket of each requester in turn.
+	 * Must be called while holding the lock.
+	 */
+	private void dispatch() {
+		boolean granted = false;
+		while (inFlight < maxInFlight && System.currentTimeMillis() >= pausedUntil && !requesterOrder.isEmpty()) {
+			final String requester = requesterOrder.pollFirst();
+			final ArrayDeque<Ticket> queue = queuesByRequester.get(requester);
+			final Ticket ticket = queue.pollFirst();
+			if (queue.isEmpty()) {
+				queuesByRequester.remove(requester);
+			} else {
+				requesterOrder.addLast(requester);
+			}
+
+			ticket.granted = true;
+			queueDepth--;
+			inFlight++;
+			granted = true;
+		}
+
+		if (granted) {
+			changed.signalAll();
+		}
+	}
+
+	private void enqueue(final Ticket ticket) {
+		ArrayDeque<Ticket> queue = queuesByRequester.get(ticket.requester);
+		if (queue == null) {
+			queue = new ArrayDeque<Ticket>();
+			queuesByRequester.put(ticket.requester, queue);
+			requesterOrder.addLast(ticket.requester);
+		}
+		queue.addLast(ticket);
+		queueDepth++;
+	}
+
+	private void dequeue(final Ticket ticket) {
+		final ArrayDeque<Ticket> queue = queuesByRequester.get(ticket.requester);
+		if (queue != null && queue.remove(ticket)) {
+			queueDepth--;
+			if (queue.isEmpty()) {
+				queuesByRequester.remove(ticket.requester);
+				requesterOrder.remove(ticket.requester);
+			}
+		}
+	}
+
+	private static boolean isRetryAllowed(final int attempt) {
+		return attempt < MAX_ATTEMPTS && !Thread.currentThread().isInterrupted();
+	}
+
+	private static boolean isUnavailableStatus(final int status) {
+		return status == STATUS_BAD_GATEWAY || status == STATUS_SERVICE_UNAVAILABLE
+				|| status == STATUS_GATEWAY_TIMEOUT;
+	}
+
+	private long logRetry(final int attempt, final String reason) {
+		final long backoff = getBackoffInMillis(attempt);
+		LOG.info(String.format("Request %d/%d to AppDynamics Controller %s failed (%s), retrying in %d ms", attempt,
+				MAX_ATTEMPTS, controllerUri, reason, backoff));
+		return backoff;
+	}
+
+	/**
+	 * Exponential backoff with jitter: a random delay between half and the
+	 * whole of <code>base * 2^(attempt - 1)</code>, capped at the maximum, so
+	 * builds failing at the same moment do not retry in lockstep.
+	 */
+	static long getBackoffInMillis(final int attempt) {
+		final long exponential = BACKOFF_BASE_IN_MILLIS << Math.min(attempt - 1, 20);
+		final long cap = Math.max(1, Math.min(exponential, BACKOFF_MAX_IN_MILLIS));
+		return cap / 2 + ThreadLocalRandom.current().nextLong(cap - cap / 2 + 1);
+	}
+
+	private ControllerUnavailableException createUnavailableException() {
+		return new ControllerUnavailableException(String.format(
+				"AppDynamics Controller %s is unavailable, skipping requests for another %d ms", controllerUri,
+				circuitBreaker.getRemainingOpenTimeInMillis()));
+	}
+
+	/**
+	 * @return the delay asked for by the Controller, or -1 when the request
+	 *         should not be retried
+	 */
+	private static long getRetryAfterInMillis(final ClientResponse response) {
+		final int status = response.getStatus();
+		if (status != STATUS_TOO_MANY_REQUESTS && status != STATUS_SERVICE_UNAVAILABLE) {
+			return -1;
+		}
+
+		final String retryAfter = response.getHeaders().getFirst("Retry-After");
+		if (retryAfter == null || retryAfter.trim().isEmpty()) {
+			return -1;
+		}
+
+		long delay;
+		try {
+			delay = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+		} catch (NumberFormatException e) {
+			try {
+				final SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+						Locale.US);
+				delay = httpDateFormat.parse(retryAfter.trim()).getTime() - System.currentTimeMillis();
+			} catch (ParseException pe) {
+				return -1;
+			}
+		}
+		return Math.max(0, Math.min(delay, MAX_RETRY_AFTER_IN_MILLIS));
+	}
+
+	private static final class Ticket {
+		private final String requester;
+		private boolean granted;
+
+		Ticket(final String requester) {
+			this.requester = requester;
+		}
+	}
+}
@@ -1,8 +1,9 @@
 package nl.codecentric.jenkins.appd.rest.types;
 
-import java.util.ArrayList;
 import java.util.List;
 
+import org.codehaus.jackson.map.annotate.JsonDeserialize;
+
 /**
  * POJO object for unmarshalling JSON data from the AppDynamics REST interface.
  * Maps to the following structure:
@@ -25,14 +26,24 @@ import java.util.List;
  *     "value": 6
  *   }
  * ]
+ *
+ * The data points are kept in a {@link MetricSeries}, filled directly while
+ * parsing by the {@link MetricDataDeserializer}.
  */
+@JsonDeserialize(using = MetricDataDeserializer.class)
 public class MetricData {
 
   private String metricId;
   private String metricName;
   private String frequency;
   private String metricPath;
-  private List<MetricValues> metricValues = new ArrayList<MetricValues>();
+  private MetricSeries metricSeries = new MetricSeries(0);
+
+  /**
+   * Only present when read from reports stored before the data points were
+   * kept in a {@link MetricSeries}, converted by {@link #readResolve()}.
+   */
+  private List<MetricValues> metricValues;
 
   public String getMetricId() {
     return metricId;
@@ -66,11 +77,54 @@ public class MetricData {
     this.metricPath = metricPath;
   }
 
+  /**
+   * @return a read-only view on the data points, for display purposes. Use
+   *         {@link #getMetricSeries()} for calculations.
+   */
   public List<MetricValues> getMetricValues() {
-    return metricValues;
+    return metricSeries.asList();
   }
 
   public void setMetricValues(List<MetricValues> metricValues) {
-    this.metricValues = metricValues;
+    this.metricSeries = MetricSeries.fromValues(metricValues);
+  }
+
+  public MetricSeries getMetricSeries() {
+    return metricSeries;
+  }
+
+  public void setMetricSeries(final MetricSeries metricSeries) {
+    this.metricSeries = metricSeries;
+  }
+
+  /**
+   * @return a copy with the data points starting in the given range, from
+   *         inclusive and to exclusive
+   */
+  public MetricData copy(final long fromTimeInMillis, final long toTimeInMillis) {
+    final MetricData copy = new MetricData();
+    copy.metricId = metricId;
+    copy.metricName = metricName;
+    copy.frequency = frequency;
+    copy.metricPath = metricPath;
+    copy.metricSeries = new MetricSeries(metricSeries.size());
+    for (int i = 0; i < metricSeries.size(); i++) {
+      final long startTime = metricSeries.getStartTimeInMillis(i);
+      if (startTime >= fromTimeInMillis && startTime < toTimeInMillis) {
+        copy.metricSeries.add(metricSeries, i);
+      }
+    }
+    copy.metricSeries.trimToSize();
+    return copy;
+  }
+
+  protected Object readResolve() {
+    if (metricValues != null) {
+      metricSeries = MetricSeries.fromValues(metricValues);
+      metricValues = null;
+    } else if (metricSeries == null) {
+      metricSeries = new MetricSeries(0);
+    }
+    return this;
   }
 }
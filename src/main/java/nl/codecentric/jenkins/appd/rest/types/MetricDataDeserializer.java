@@ -0,0 +1,138 @@
+package nl.codecentric.jenkins.appd.rest.types;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.DeserializationContext;
+import org.codehaus.jackson.map.JsonDeserializer;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+
+/**
+ * Reads a {@link MetricData} using the Jackson streaming parser, filling the
+ * {@link MetricSeries} columns directly without creating a
+ * {@link MetricValues} object per data point. Unknown fields are skipped.
+ */
+public class MetricDataDeserializer extends JsonDeserializer<MetricData> {
+
+  private static final Column[] COLUMNS = Column.values();
+  private static final String[] COLUMN_FIELD_NAMES = { "current", "max", "min", "value", "sum", "count",
+      "occurrences" };
+
+  @Override
+  public MetricData deserialize(final JsonParser parser, final DeserializationContext context) throws IOException {
+    if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+      throw context.mappingException(MetricData.class);
+    }
+
+    final MetricData metricData = new MetricData();
+    final MetricSeries series = new MetricSeries();
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String fieldName = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+
+      if (token == JsonToken.VALUE_NULL) {
+        continue;
+      } else if ("metricId".equals(fieldName)) {
+        metricData.setMetricId(parser.getText());
+      } else if ("metricName".equals(fieldName)) {
+        metricData.setMetricName(parser.getText());
+      } else if ("frequency".equals(fieldName)) {
+        metricData.setFrequency(parser.getText());
+      } else if ("metricPath".equals(fieldName)) {
+        metricData.setMetricPath(parser.getText());
+      } else if ("metricValues".equals(fieldName) && token == JsonToken.START_ARRAY) {
+        readMetricValues(parser, series);
+      } else {
+        parser.skipChildren();
+      }
+    }
+
+    series.trimToSize();
+    metricData.setMetricSeries(series);
+    return metricData;
+  }
+
+  private void readMetricValues(final JsonParser parser, final MetricSeries series) throws IOException {
+    // Reused for every data point, fields may arrive in any order
+    final int[] columnValues = new int[COLUMNS.length];
+
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      long startTimeInMillis = 0;
+      int presentColumns = 0;
+      double standardDeviation = 0;
+      boolean hasStandardDeviation = false;
+      boolean useRange = false;
+      boolean hasUseRange = false;
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String fieldName = parser.getCurrentName();
+        final JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+
+        final int columnIndex = indexOfColumn(fieldName);
+        if (columnIndex >= 0) {
+          columnValues[columnIndex] = readInt(parser);
+          presentColumns |= 1 << columnIndex;
+        } else if ("startTimeInMillis".equals(fieldName)) {
+          startTimeInMillis = parser.getLongValue();
+        } else if ("standardDeviation".equals(fieldName)) {
+          standardDeviation = parser.getDoubleValue();
+          hasStandardDeviation = true;
+        } else if ("useRange".equals(fieldName)) {
+          useRange = parser.getBooleanValue();
+          hasUseRange = true;
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+      final int index = series.addPoint(startTimeInMillis);
+      for (int i = 0; i < COLUMNS.length; i++) {
+        if ((presentColumns & (1 << i)) != 0) {
+          series.set(COLUMNS[i], index, columnValues[i]);
+        }
+      }
+      if (hasStandardDeviation) {
+        series.setStandardDeviation(index, standardDeviation);
+      }
+      if (hasUseRange) {
+        series.setUseRange(index, useRange);
+      }
+    }
+  }
+
+  private static int indexOfColumn(final String fieldName) {
+    for (int i = 0; i < COLUMN_FIELD_NAMES.length; i++) {
+      if (COLUMN_FIELD_NAMES[i].equals(fieldName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads a column value, failing on values out of range of int just like
+   * the bean binding of {@link MetricValues} did.
+   */
+  private static int readInt(final JsonParser parser) throws IOException {
+    final double value;
+    if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_FLOAT) {
+      value = Math.round(parser.getDoubleValue());
+    } else if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+      value = parser.getDoubleValue();
+    } else {
+      value = parser.getLongValue();
+    }
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new JsonParseException("Value " + parser.getText() + " of field \"" + parser.getCurrentName()
+          + "\" is out of range of int", parser.getCurrentLocation());
+    }
+    return (int) value;
+  }
+}
@@ -0,0 +1,260 @@
+package nl.codecentric.jenkins.appd.rest.types;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact column-oriented storage for the data points of a {@link MetricData}.
+ * Instead of one {@link MetricValues} object per data point, every field is
+ * kept in its own primitive array, all indexed by the position of the data
+ * point in the series.
+ *
+ * A column is only reported as present (and returned as non-<code>null</code>
+ * in the {@link MetricValues} view) when at least one data point carried a
+ * value for it, as not all AppDynamics versions return all fields.
+ */
+public class MetricSeries {
+
+  /**
+   * The integer fields of a data point, each stored as a separate column.
+   */
+  public enum Column {
+    CURRENT, MAX, MIN, VALUE, SUM, COUNT, OCCURRENCES
+  }
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int STANDARD_DEVIATION_PRESENT = 1 << Column.values().length;
+  private static final int USE_RANGE_PRESENT = STANDARD_DEVIATION_PRESENT << 1;
+
+  private int size;
+  private int presentColumns;
+  private long[] startTimeInMillis;
+  private int[][] intColumns;
+  private double[] standardDeviation;
+  private boolean[] useRange;
+
+  public MetricSeries() {
+    this(INITIAL_CAPACITY);
+  }
+
+  public MetricSeries(final int initialCapacity) {
+    final int capacity = Math.max(1, initialCapacity);
+    startTimeInMillis = new long[capacity];
+    intColumns = new int[Column.values().length][capacity];
+    standardDeviation = new double[capacity];
+    useRange = new boolean[capacity];
+  }
+
+  /**
+   * Converts the given data points, e.g. from older reports, into a series.
+   */
+  public static MetricSeries fromValues(final List<MetricValues> values) {
+    final MetricSeries series = new MetricSeries(values.size());
+    for (MetricValues value : values) {
+      series.add(value);
+    }
+    return series;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds a new data point to the end of the series, all other fields of the
+   * data point can be set using the returned index.
+   */
+  public int addPoint(final long startTimeInMillis) {
+    ensureCapacity(size + 1);
+    this.startTimeInMillis[size] = startTimeInMillis;
+    return size++;
+  }
+
+  public void add(final MetricValues values) {
+    final int index = addPoint(values.getStartTimeInMillis() == null ? 0 : values.getStartTimeInMillis());
+    setIfPresent(Column.CURRENT, index, values.getCurrent());
+    setIfPresent(Column.MAX, index, values.getMax());
+    setIfPresent(Column.MIN, index, values.getMin());
+    setIfPresent(Column.VALUE, index, values.getValue());
+    setIfPresent(Column.SUM, index, values.getSum());
+    setIfPresent(Column.COUNT, index, values.getCount());
+    setIfPresent(Column.OCCURRENCES, index, values.getOccurrences());
+    if (values.getStandardDeviation() != null) {
+      setStandardDeviation(index, values.getStandardDeviation());
+    }
+    if (values.getUseRange() != null) {
+      setUseRange(index, values.getUseRange());
+    }
+  }
+
+  /**
+   * Removes the last data point, e.g. to add a more complete version of it.
+   */
+  public void removeLast() {
+    checkIndex(size - 1);
+    size--;
+    startTimeInMillis[size] = 0;
+    for (int[] column : intColumns) {
+      column[size] = 0;
+    }
+    standardDeviation[size] = 0;
+    useRange[size] = false;
+  }
+
+  /**
+   * Appends a copy of a single data point of another series.
+   */
+  public void add(final MetricSeries other, final int otherIndex) {
+    final int index = addPoint(other.getStartTimeInMillis(otherIndex));
+    for (Column column : Column.values()) {
+      if (other.hasColumn(column)) {
+        set(column, index, other.get(column, otherIndex));
+      }
+    }
+    if (other.hasStandardDeviation()) {
+      setStandardDeviation(index, other.getStandardDeviation(otherIndex));
+    }
+    if (other.hasUseRange()) {
+      setUseRange(index, other.getUseRange(otherIndex));
+    }
+  }
+
+  public long getStartTimeInMillis(final int index) {
+    checkIndex(index);
+    return startTimeInMillis[index];
+  }
+
+  public int get(final Column column, final int index) {
+    checkIndex(index);
+    return intColumns[column.ordinal()][index];
+  }
+
+  public void set(final Column column, final int index, final int value) {
+    checkIndex(index);
+    intColumns[column.ordinal()][index] = value;
+    presentColumns |= 1 << column.ordinal();
+  }
+
+  public boolean hasColumn(final Column column) {
+    return (presentColumns & (1 << column.ordinal())) != 0;
+  }
+
+  public double getStandardDeviation(final int index) {
+    checkIndex(index);
+    return standardDeviation[index];
+  }
+
+  public void setStandardDeviation(final int index, final double value) {
+    checkIndex(index);
+    standardDeviation[index] = value;
+    presentColumns |= STANDARD_DEVIATION_PRESENT;
+  }
+
+  public boolean hasStandardDeviation() {
+    return (presentColumns & STANDARD_DEVIATION_PRESENT) != 0;
+  }
+
+  public boolean getUseRange(final int index) {
+    checkIndex(index);
+    return useRange[index];
+  }
+
+  public void setUseRange(final int index, final boolean value) {
+    checkIndex(index);
+    useRange[index] = value;
+    presentColumns |= USE_RANGE_PRESENT;
+  }
+
+  public boolean hasUseRange() {
+    return (presentColumns & USE_RANGE_PRESENT) != 0;
+  }
+
+  /**
+   * @return rough estimate of the heap used by this series, including unused
+   *         capacity, used to keep caches of series within a memory budget
+   */
+  public long getEstimatedSizeInBytes() {
+    final long capacity = startTimeInMillis.length;
+    final long bytesPerPoint = 8 + 4 * intColumns.length + 8 + 1;
+    return 64 + 16L * (intColumns.length + 4) + capacity * bytesPerPoint;
+  }
+
+  /**
+   * Releases the unused capacity, to be called once the series is complete.
+   */
+  public void trimToSize() {
+    if (startTimeInMillis.length > size) {
+      resize(size);
+    }
+  }
+
+  /**
+   * Returns a read-only view of the series as {@link MetricValues}. The
+   * objects are created on access and not kept, so they should only be used
+   * for display purposes.
+   */
+  public List<MetricValues> asList() {
+    return new MetricValuesView();
+  }
+
+  private void setIfPresent(final Column column, final int index, final Integer value) {
+    if (value != null) {
+      set(column, index, value);
+    }
+  }
+
+  private Integer getIfPresent(final Column column, final int index) {
+    return hasColumn(column) ? Integer.valueOf(get(column, index)) : null;
+  }
+
+  private void checkIndex(final int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  private void ensureCapacity(final int minimumCapacity) {
+    if (minimumCapacity > startTimeInMillis.length) {
+      resize(Math.max(minimumCapacity, startTimeInMillis.length + (startTimeInMillis.length >> 1)));
+    }
+  }
+
+  private void resize(final int capacity) {
+    startTimeInMillis = Arrays.copyOf(startTimeInMillis, capacity);
+    for (int i = 0; i < intColumns.length; i++) {
+      intColumns[i] = Arrays.copyOf(intColumns[i], capacity);
+    }
+    standardDeviation = Arrays.copyOf(standardDeviation, capacity);
+    useRange = Arrays.copyOf(useRange, capacity);
+  }
+
+  private class MetricValuesView extends AbstractList<MetricValues> implements RandomAccess {
+
+    @Override
+    public MetricValues get(final int index) {
+      final MetricValues values = new MetricValues();
+      values.setStartTimeInMillis(getStartTimeInMillis(index));
+      values.setCurrent(getIfPresent(Column.CURRENT, index));
+      values.setMax(getIfPresent(Column.MAX, index));
+      values.setMin(getIfPresent(Column.MIN, index));
+      values.setValue(getIfPresent(Column.VALUE, index));
+      values.setSum(getIfPresent(Column.SUM, index));
+      values.setCount(getIfPresent(Column.COUNT, index));
+      values.setOccurrences(getIfPresent(Column.OCCURRENCES, index));
+      values.setStandardDeviation(hasStandardDeviation() ? Double.valueOf(getStandardDeviation(index)) : null);
+      values.setUseRange(hasUseRange() ? Boolean.valueOf(getUseRange(index)) : null);
+      return values;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package nl.codecentric.jenkins.appd.rest.types;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+
+/**
+ * Compact binary encoding of {@link MetricData}, used to store the raw series
+ * of a report next to the build instead of inside build.xml.<br />
+ * <br />
+ * Timestamps and the integer columns are stored as the zig-zag encoded
+ * difference with the previous data point, written as variable length
+ * integers, so a typical data point takes only a few bytes. Only the columns
+ * present in a series are written. Layout:
+ *
+ * <pre>
+ * magic (int), version (byte), metric count (varint)
+ * per metric:
+ *   metricId, metricName, frequency, metricPath (flag byte + UTF when present)
+ *   point count (varint), present columns (varint)
+ *   timestamps (delta varints)
+ *   per present column: values (delta varints)
+ *   standard deviations (doubles) and use-range flags (bytes), when present
+ * </pre>
+ */
+public final class MetricSeriesCodec {
+
+  private static final int MAGIC = 0x41445331; // "ADS1"
+  private static final byte VERSION = 1;
+  private static final int STANDARD_DEVIATION_FLAG = 1 << Column.values().length;
+  private static final int USE_RANGE_FLAG = STANDARD_DEVIATION_FLAG << 1;
+
+  private MetricSeriesCodec() {
+  }
+
+  public static void write(final DataOutputStream output, final Collection<MetricData> metrics)
+      throws IOException {
+    output.writeInt(MAGIC);
+    output.writeByte(VERSION);
+    writeVarLong(output, metrics.size());
+
+    for (MetricData metric : metrics) {
+      writeNullableString(output, metric.getMetricId());
+      writeNullableString(output, metric.getMetricName());
+      writeNullableString(output, metric.getFrequency());
+      writeNullableString(output, metric.getMetricPath());
+      writeSeries(output, metric.getMetricSeries());
+    }
+    output.flush();
+  }
+
+  public static List<MetricData> read(final DataInputStream input) throws IOException {
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Not an AppDynamics metric series file");
+    }
+    final byte version = input.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported AppDynamics metric series file version: " + version);
+    }
+
+    final int metricCount = (int) readVarLong(input);
+    final List<MetricData> metrics = new ArrayList<MetricData>(metricCount);
+    for (int m = 0; m < metricCount; m++) {
+      final MetricData metric = new MetricData();
+      metric.setMetricId(readNullableString(input));
+      metric.setMetricName(readNullableString(input));
+      metric.setFrequency(readNullableString(input));
+      metric.setMetricPath(readNullableString(input));
+      metric.setMetricSeries(readSeries(input));
+      metrics.add(metric);
+    }
+    return metrics;
+  }
+
+  /**
+   * Writes the metrics to the given file. They are written to a temporary
+   * file first, which replaces the file once completely written.
+   */
+  public static void write(final File file, final Collection<MetricData> metrics) throws IOException {
+    final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        write(output, metrics);
+      } finally {
+        output.close();
+      }
+      if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+        throw new IOException("Unable to rename " + tempFile + " to " + file);
+      }
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+  }
+
+  public static List<MetricData> read(final File file) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      return read(input);
+    } finally {
+      input.close();
+    }
+  }
+
+  private static void writeSeries(final DataOutputStream output, final MetricSeries series) throws IOException {
+    final int size = series.size();
+    int presentColumns = 0;
+    for (Column column : Column.values()) {
+      if (series.hasColumn(column)) {
+        presentColumns |= 1 << column.ordinal();
+      }
+    }
+    if (series.hasStandardDeviation()) {
+      presentColumns |= STANDARD_DEVIATION_FLAG;
+    }
+    if (series.hasUseRange()) {
+      presentColumns |= USE_RANGE_FLAG;
+    }
+
+    writeVarLong(output, size);
+    writeVarLong(output, presentColumns);
+
+    long previousTimestamp = 0;
+    for (int i = 0; i < size; i++) {
+      final long timestamp = series.getStartTimeInMillis(i);
+      writeVarLong(output, zigZag(timestamp - previousTimestamp));
+      previousTimestamp = timestamp;
+    }
+
+    for (Column column : Column.values()) {
+      if ((presentColumns & (1 << column.ordinal())) == 0) {
+        continue;
+      }
+      long previousValue = 0;
+      for (int i = 0; i < size; i++) {
+        final long value = series.get(column, i);
+        writeVarLong(output, zigZag(value - previousValue));
+        previousValue = value;
+      }
+    }
+
+    if ((presentColumns & STANDARD_DEVIATION_FLAG) != 0) {
+      for (int i = 0; i < size; i++) {
+        output.writeDouble(series.getStandardDeviation(i));
+      }
+    }
+    if ((presentColumns & USE_RANGE_FLAG) != 0) {
+      for (int i = 0; i < size; i++) {
+        output.writeBoolean(series.getUseRange(i));
+      }
+    }
+  }
+
+  private static MetricSeries readSeries(final DataInputStream input) throws IOException {
+    final int size = (int) readVarLong(input);
+    final int presentColumns = (int) readVarLong(input);
+    final MetricSeries series = new MetricSeries(size);
+
+    long timestamp = 0;
+    for (int i = 0; i < size; i++) {
+      timestamp += unZigZag(readVarLong(input));
+      series.addPoint(timestamp);
+    }
+
+    for (Column column : Column.values()) {
+      if ((presentColumns & (1 << column.ordinal())) == 0) {
+        continue;
+      }
+      long value = 0;
+      for (int i = 0; i < size; i++) {
+        value += unZigZag(readVarLong(input));
+        series.set(column, i, (int) value);
+      }
+    }
+
+    if ((presentColumns & STANDARD_DEVIATION_FLAG) != 0) {
+      for (int i = 0; i < size; i++) {
+        series.setStandardDeviation(i, input.readDouble());
+      }
+    }
+    if ((presentColumns & USE_RANGE_FLAG) != 0) {
+      for (int i = 0; i < size; i++) {
+        series.setUseRange(i, input.readBoolean());
+      }
+    }
+    return series;
+  }
+
+  private static void writeNullableString(final DataOutputStream output, final String value) throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) {
+      output.writeUTF(value);
+    }
+  }
+
+  private static String readNullableString(final DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+
+  static void writeVarLong(final DataOutputStream output, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      output.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    output.writeByte((int) value);
+  }
+
+  static long readVarLong(final DataInputStream input) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = input.read();
+      if (b < 0) {
+        throw new EOFException("Truncated AppDynamics metric series file");
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length integer in AppDynamics metric series file");
+  }
+
+  private static long zigZag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,170 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline value of a single metric, updated incrementally with the value of
+ * every new build so determining the baseline costs O(1) per build, instead of
+ * going over all previous builds again.
+ */
+public abstract class Baseline {
+
+	/** Upper bound for the window of builds or days, to bound memory use. */
+	public static final int MAX_WINDOW = 1000;
+
+	/**
+	 * Creates an empty baseline for the given mode. The window is the number of
+	 * builds for {@link BaselineMode#LAST_BUILDS} and
+	 * {@link BaselineMode#EXPONENTIAL_MOVING_AVERAGE}, and the number of days
+	 * for {@link BaselineMode#LAST_DAYS}.
+	 */
+	public static Baseline create(final BaselineMode mode, final int window) {
+		final int boundedWindow = Math.max(1, Math.min(window, MAX_WINDOW));
+		switch (mode) {
+		case LAST_BUILDS:
+			return new LastBuildsBaseline(boundedWindow);
+		case EXPONENTIAL_MOVING_AVERAGE:
+			return new ExponentialMovingAverageBaseline(boundedWindow);
+		case LAST_DAYS:
+			return new LastDaysBaseline(boundedWindow);
+		default:
+			return new AllBuildsBaseline();
+		}
+	}
+
+	/**
+	 * Adds the value of a build, builds are expected to be added in order.
+	 */
+	public abstract void add(long timestamp, double value);
+
+	/**
+	 * @return the baseline at the given moment, -1 when no builds are part of
+	 *         the baseline
+	 */
+	public abstract double getValue(long now);
+
+	private static final class AllBuildsBaseline extends Baseline {
+		private double sum;
+		private long count;
+
+		@Override
+		public void add(final long timestamp, final double value) {
+			sum += value;
+			count++;
+		}
+
+		@Override
+		public double getValue(final long now) {
+			return count > 0 ? sum / count : -1;
+		}
+	}
+
+	private static final class LastBuildsBaseline extends Baseline {
+		private final double[] values;
+		private int next;
+		private int count;
+		private double sum;
+
+		LastBuildsBaseline(final int window) {
+			values = new double[window];
+		}
+
+		@Override
+		public void add(final long timestamp, final double value) {
+			if (count == values.length) {
+				sum -= values[next];
+			} else {
+				count++;
+			}
+			values[next] = value;
+			sum += value;
+			next = (next + 1) % values.length;
+		}
+
+		@Override
+		public double getValue(final long now) {
+			return count > 0 ? sum / count : -1;
+		}
+	}
+
+	private static final class ExponentialMovingAverageBaseline extends Baseline {
+		private final double alpha;
+		private double average = -1;
+
+		ExponentialMovingAverageBaseline(final int window) {
+			// Same center of mass as a simple moving average over the window
+			alpha = 2.0 / (window + 1);
+		}
+
+		@Override
+		public void add(final long timestamp, final double value) {
+			average = average < 0 ? value : alpha * value + (1 - alpha) * average;
+		}
+
+		@Override
+		public double getValue(final long now) {
+			return average;
+		}
+	}
+
+	private static final class LastDaysBaseline extends Baseline {
+		private final long windowInMillis;
+		private final ArrayDeque<TimedValue> values = new ArrayDeque<TimedValue>();
+		// Values before the window of the last moment asked for, kept in case an earlier moment is asked for
+		private final ArrayDeque<TimedValue> evicted = new ArrayDeque<TimedValue>();
+		private double sum;
+		private long latestTimestamp = Long.MIN_VALUE;
+
+		LastDaysBaseline(final int days) {
+			windowInMillis = TimeUnit.DAYS.toMillis(days);
+		}
+
+		@Override
+		public void add(final long timestamp, final double value) {
+			values.addLast(new TimedValue(timestamp, value));
+			sum += value;
+			if (values.size() > MAX_WINDOW * 10) {
+				sum -= values.removeFirst().value;
+				evicted.clear();
+			}
+
+			// Values outside the window of the latest build are never part of the baseline again
+			latestTimestamp = Math.max(timestamp, latestTimestamp);
+			while (!evicted.isEmpty() && evicted.peekFirst().timestamp < latestTimestamp - windowInMillis) {
+				evicted.removeFirst();
+			}
+		}
+
+		@Override
+		public double getValue(final long now) {
+			final long start = now - windowInMillis;
+			// Each value moves once per change of direction, O(1) amortized for moments in order
+			while (!evicted.isEmpty() && evicted.peekLast().timestamp >= start) {
+				final TimedValue value = evicted.removeLast();
+				values.addFirst(value);
+				sum += value.value;
+			}
+			while (!values.isEmpty() && values.peekFirst().timestamp < start) {
+				final TimedValue value = values.removeFirst();
+				evicted.addLast(value);
+				sum -= value.value;
+			}
+			if (values.isEmpty()) {
+				sum = 0;
+				return -1;
+			}
+			return sum / values.size();
+		}
+	}
+
+	private static final class TimedValue {
+		private final long timestamp;
+		private final double value;
+
+		TimedValue(final long timestamp, final double value) {
+			this.timestamp = timestamp;
+			this.value = value;
+		}
+	}
+}
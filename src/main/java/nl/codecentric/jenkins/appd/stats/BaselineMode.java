@@ -0,0 +1,39 @@
+package nl.codecentric.jenkins.appd.stats;
+
+/**
+ * The ways a baseline can be calculated from the reports of previous builds.
+ * All modes except {@link #ALL_BUILDS} only take successful builds into
+ * account, so a degrading build never becomes part of the baseline.
+ */
+public enum BaselineMode {
+	ALL_BUILDS("Mean of all previous builds"),
+	LAST_BUILDS("Mean of the last N successful builds"),
+	EXPONENTIAL_MOVING_AVERAGE("Exponentially weighted moving average over N successful builds"),
+	LAST_DAYS("Mean of the successful builds of the last N days");
+
+	private final String displayName;
+
+	private BaselineMode(final String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public boolean isSuccessfulBuildsOnly() {
+		return this != ALL_BUILDS;
+	}
+
+	/**
+	 * @return the mode with the given name, or {@link #ALL_BUILDS} when unknown
+	 */
+	public static BaselineMode fromString(final String name) {
+		for (BaselineMode mode : values()) {
+			if (mode.name().equals(name)) {
+				return mode;
+			}
+		}
+		return ALL_BUILDS;
+	}
+}
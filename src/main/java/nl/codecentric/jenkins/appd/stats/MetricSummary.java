@@ -0,0 +1,231 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+
+/**
+ * Summary statistics of a single {@link MetricSeries}, calculated once when a
+ * metric is added to a report so trend and threshold calculations do not have
+ * to walk the data points again.<br />
+ * <br />
+ * Count, sum, mean and standard deviation are calculated over the 'value' of
+ * each data point; minimum and maximum over the 'min' and 'max' of each data
+ * point. The percentiles are estimated over the calls within the data points,
+ * from a {@link QuantileSketch} filled in the same pass. The sketch is kept in
+ * its encoded form, to be merged into a {@link SketchBaseline}. The
+ * {@link WeightedMoments} of the data points for the
+ * {@link RegressionAnalysis} are collected in the same pass as well.
+ */
+public class MetricSummary {
+
+	/**
+	 * Percentiles kept in every summary.
+	 */
+	public static final int[] PERCENTILES = { 50, 90, 95, 99 };
+
+	private final long count;
+	private final long sum;
+	private final long min;
+	private final long max;
+	private final double mean;
+	private final double standardDeviation;
+	private final double[] percentiles;
+	private final String sketch;
+	private final String moments;
+
+	public MetricSummary(final long count, final long sum, final long min, final long max, final double mean,
+			final double standardDeviation) {
+		this(count, sum, min, max, mean, standardDeviation, null, null, null);
+	}
+
+	/**
+	 * @param percentiles
+	 *            estimates of the {@link #PERCENTILES}, in the same order, or
+	 *            <code>null</code> when not known
+	 * @param sketch
+	 *            sketch of the calls encoded by {@link QuantileSketch#encode()},
+	 *            or <code>null</code> when not known
+	 * @param moments
+	 *            moments of the data points encoded by
+	 *            {@link WeightedMoments#encode()}, or <code>null</code> when not
+	 *            known
+	 */
+	public MetricSummary(final long count, final long sum, final long min, final long max, final double mean,
+			final double standardDeviation, final double[] percentiles, final String sketch, final String moments) {
+		this.count = count;
+		this.sum = sum;
+		this.min = min;
+		this.max = max;
+		this.mean = mean;
+		this.standardDeviation = standardDeviation;
+		this.percentiles = percentiles == null ? null : percentiles.clone();
+		this.sketch = sketch;
+		this.moments = moments;
+	}
+
+	/**
+	 * Calculates the summary in a single pass over the series.
+	 */
+	public static MetricSummary fromSeries(final MetricSeries series) {
+		final int count = series.size();
+
+		long sum = 0;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		double runningMean = 0;
+		double sumOfSquaredDifferences = 0;
+		final QuantileSketch sketch = new QuantileSketch();
+		final WeightedMoments moments = new WeightedMoments();
+		final boolean hasCount = series.hasColumn(Column.COUNT);
+		final boolean hasRange = series.hasColumn(Column.MIN) && series.hasColumn(Column.MAX);
+		final boolean hasStandardDeviation = series.hasStandardDeviation();
+		for (int i = 0; i < count; i++) {
+			final int value = series.get(Column.VALUE, i);
+			final int pointMin = series.get(Column.MIN, i);
+			final int pointMax = series.get(Column.MAX, i);
+			sum += value;
+			min = Math.min(pointMin, min);
+			max = Math.max(pointMax, max);
+
+			// Without a range or call count the point is a single observation
+			final double pointStandardDeviation = hasStandardDeviation ? series.getStandardDeviation(i) : 0;
+			final int calls = hasCount ? series.get(Column.COUNT, i) : 1;
+			sketch.addDistribution(value, pointStandardDeviation, calls, hasRange ? pointMin : value,
+					hasRange ? pointMax : value);
+			moments.add(value, pointStandardDeviation, calls);
+
+			// Welford's method, numerically stable in a single pass
+			final double delta = value - runningMean;
+			runningMean += delta / (i + 1);
+			sumOfSquaredDifferences += delta * (value - runningMean);
+		}
+
+		final double mean = count > 0 ? (double) sum / (double) count : -1;
+		final double standardDeviation = count > 0 ? Math.sqrt(sumOfSquaredDifferences / count) : 0;
+		if (sketch.isEmpty()) {
+			return new MetricSummary(count, sum, min, max, mean, standardDeviation);
+		}
+
+		final double[] percentiles = new double[PERCENTILES.length];
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			percentiles[i] = sketch.getQuantile(PERCENTILES[i] / 100.0);
+		}
+		return new MetricSummary(count, sum, min, max, mean, standardDeviation, percentiles, sketch.encode(),
+				moments.isEmpty() ? null : moments.encode());
+	}
+
+	/**
+	 * @return number of data points
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return lowest 'min' of all data points, {@link Long#MAX_VALUE} when the
+	 *         series is empty
+	 */
+	public long getMin() {
+		return min;
+	}
+
+	/**
+	 * @return highest 'max' of all data points, {@link Long#MIN_VALUE} when the
+	 *         series is empty
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return mean 'value' of all data points, -1 when the series is empty
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return population standard deviation of the 'value' of all data points
+	 */
+	public double getStandardDeviation() {
+		return standardDeviation;
+	}
+
+	/**
+	 * @param percentile
+	 *            one of the {@link #PERCENTILES}
+	 * @return estimate of the given percentile of the calls, -1 when not
+	 *         available (e.g. in reports of older versions)
+	 */
+	public double getPercentile(final int percentile) {
+		if (percentiles != null) {
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				if (PERCENTILES[i] == percentile) {
+					return percentiles[i];
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return whether the {@link #PERCENTILES} are known
+	 */
+	public boolean hasPercentiles() {
+		return percentiles != null;
+	}
+
+	/**
+	 * @return this summary without the sketch and moments, which are large
+	 *         compared to the rest of the summary
+	 */
+	public MetricSummary withoutSketchAndMoments() {
+		if (sketch == null && moments == null) {
+			return this;
+		}
+		return new MetricSummary(count, sum, min, max, mean, standardDeviation, percentiles, null, null);
+	}
+
+	/**
+	 * @return the sketch of the calls encoded by {@link QuantileSketch#encode()},
+	 *         or <code>null</code> when not available
+	 */
+	public String getEncodedSketch() {
+		return sketch;
+	}
+
+	/**
+	 * @return a new copy of the sketch of the calls, or <code>null</code> when
+	 *         not available
+	 */
+	public QuantileSketch getSketch() {
+		return sketch == null ? null : QuantileSketch.decode(sketch);
+	}
+
+	/**
+	 * @return the moments of the data points encoded by
+	 *         {@link WeightedMoments#encode()}, or <code>null</code> when not
+	 *         available
+	 */
+	public String getEncodedMoments() {
+		return moments;
+	}
+
+	/**
+	 * @return a new copy of the moments of the data points, or
+	 *         <code>null</code> when not available
+	 */
+	public WeightedMoments getMoments() {
+		return moments == null ? null : WeightedMoments.decode(moments);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count: %d, sum: %d, min: %d, max: %d, mean: %f, stddev: %f", count, sum, min, max, mean,
+				standardDeviation);
+	}
+}
@@ -0,0 +1,152 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline of a single metric as the {@link WeightedMoments} of all data
+ * points of the builds in the baseline, for the {@link RegressionAnalysis}.
+ * Like {@link SketchBaseline}, a build is merged when added and subtracted
+ * again when it leaves the window, so determining the baseline costs O(1) per
+ * build.
+ */
+public abstract class MomentsBaseline {
+
+	protected final WeightedMoments merged = new WeightedMoments();
+
+	/**
+	 * Creates an empty baseline for the given mode, with the same windows as
+	 * {@link Baseline#create(BaselineMode, int)}.
+	 */
+	public static MomentsBaseline create(final BaselineMode mode, final int window) {
+		final int boundedWindow = Math.max(1, Math.min(window, Baseline.MAX_WINDOW));
+		switch (mode) {
+		case LAST_BUILDS:
+			return new LastBuildsMomentsBaseline(boundedWindow);
+		case EXPONENTIAL_MOVING_AVERAGE:
+			return new ExponentialMovingAverageMomentsBaseline(boundedWindow);
+		case LAST_DAYS:
+			return new LastDaysMomentsBaseline(boundedWindow);
+		default:
+			return new AllBuildsMomentsBaseline();
+		}
+	}
+
+	/**
+	 * Adds the moments of a build, builds are expected to be added in order.
+	 * The moments are not modified, but may be kept to subtract them later.
+	 */
+	public abstract void add(long timestamp, WeightedMoments moments);
+
+	/**
+	 * @return a copy of the moments of the builds in the baseline at the given
+	 *         moment, <code>null</code> when no builds are part of the baseline
+	 */
+	public WeightedMoments getMoments(final long now) {
+		evict(now);
+		return merged.isEmpty() ? null : merged.copy();
+	}
+
+	/**
+	 * Removes builds that left the window at the given moment.
+	 */
+	protected void evict(final long now) {
+	}
+
+	private static final class AllBuildsMomentsBaseline extends MomentsBaseline {
+		@Override
+		public void add(final long timestamp, final WeightedMoments moments) {
+			merged.merge(moments);
+		}
+	}
+
+	private static final class LastBuildsMomentsBaseline extends MomentsBaseline {
+		private final int window;
+		private final ArrayDeque<WeightedMoments> builds = new ArrayDeque<WeightedMoments>();
+
+		LastBuildsMomentsBaseline(final int window) {
+			this.window = window;
+		}
+
+		@Override
+		public void add(final long timestamp, final WeightedMoments moments) {
+			merged.merge(moments);
+			builds.addLast(moments);
+			if (builds.size() > window) {
+				merged.subtract(builds.removeFirst());
+			}
+		}
+	}
+
+	private static final class ExponentialMovingAverageMomentsBaseline extends MomentsBaseline {
+		private final double alpha;
+
+		ExponentialMovingAverageMomentsBaseline(final int window) {
+			// Same decay as the sketch baseline
+			alpha = 2.0 / (window + 1);
+		}
+
+		@Override
+		public void add(final long timestamp, final WeightedMoments moments) {
+			merged.scale(1 - alpha);
+			merged.merge(moments);
+		}
+	}
+
+	private static final class LastDaysMomentsBaseline extends MomentsBaseline {
+		private final long windowInMillis;
+		private final ArrayDeque<TimedMoments> builds = new ArrayDeque<TimedMoments>();
+		// Builds before the window of the last moment asked for, kept in case an earlier moment is asked for
+		private final ArrayDeque<TimedMoments> evicted = new ArrayDeque<TimedMoments>();
+		private long latestTimestamp = Long.MIN_VALUE;
+
+		LastDaysMomentsBaseline(final int days) {
+			windowInMillis = TimeUnit.DAYS.toMillis(days);
+		}
+
+		@Override
+		public void add(final long timestamp, final WeightedMoments moments) {
+			merged.merge(moments);
+			builds.addLast(new TimedMoments(timestamp, moments));
+			if (builds.size() > Baseline.MAX_WINDOW * 10) {
+				merged.subtract(builds.removeFirst().moments);
+				evicted.clear();
+			}
+
+			// Builds outside the window of the latest build are never part of the baseline again
+			latestTimestamp = Math.max(timestamp, latestTimestamp);
+			while (!evicted.isEmpty() && evicted.peekFirst().timestamp < latestTimestamp - windowInMillis) {
+				evicted.removeFirst();
+			}
+		}
+
+		@Override
+		protected void evict(final long now) {
+			final long start = now - windowInMillis;
+			// Each build moves once per change of direction
+			while (!evicted.isEmpty() && evicted.peekLast().timestamp >= start) {
+				final TimedMoments build = evicted.removeLast();
+				builds.addFirst(build);
+				merged.merge(build.moments);
+			}
+			while (!builds.isEmpty() && builds.peekFirst().timestamp < start) {
+				final TimedMoments build = builds.removeFirst();
+				evicted.addLast(build);
+				merged.subtract(build.moments);
+			}
+			if (builds.isEmpty()) {
+				merged.clear();
+			}
+		}
+	}
+
+	private static final class TimedMoments {
+		private final long timestamp;
+		private final WeightedMoments moments;
+
+		TimedMoments(final long timestamp, final WeightedMoments moments) {
+			this.timestamp = timestamp;
+			this.moments = moments;
+		}
+	}
+}
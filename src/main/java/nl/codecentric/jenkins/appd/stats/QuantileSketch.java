@@ -0,0 +1,415 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Quantile sketch with logarithmic buckets, after DDSketch: a value is counted
+ * in the bucket <code>ceil(log(value) / log(gamma))</code>, with
+ * <code>gamma = (1 + a) / (1 - a)</code>, so every quantile is estimated with
+ * a relative error of at most <code>a</code>. The number of buckets only
+ * grows with the logarithm of the range of the values, about 1,400 buckets
+ * for everything between 0.001 and {@link Integer#MAX_VALUE} at 1% accuracy.
+ * <br />
+ * <br />
+ * A data point of AppDynamics is itself an aggregate of all calls within its
+ * interval. {@link #addDistribution(double, double, double, double, double)}
+ * spreads the calls of such a data point over the buckets, approximating
+ * their distribution by a normal distribution with the mean and standard
+ * deviation of the data point, limited to its minimum and maximum.<br />
+ * <br />
+ * Counts are weights rather than whole numbers, so sketches can be merged,
+ * subtracted again and scaled, see {@link SketchBaseline}. A sketch is stored
+ * as a short text, see {@link #encode()}.
+ */
+public final class QuantileSketch {
+
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+	/**
+	 * Values below this are counted as zero.
+	 */
+	private static final double MIN_INDEXABLE_VALUE = 0.001;
+
+	/**
+	 * Bounds, as cumulative probabilities, of the slices a data point is split
+	 * in. The slices are narrow around the {@link MetricSummary#PERCENTILES},
+	 * which lie in the middle of a slice.
+	 */
+	private static final double[] SLICE_BOUNDS = { 0, 0.005, 0.02, 0.05, 0.1, 0.2, 0.3, 0.4, 0.48, 0.52, 0.6, 0.7,
+			0.8, 0.88, 0.92, 0.94, 0.96, 0.985, 0.995, 1 };
+	private static final double[] SLICE_WEIGHTS = new double[SLICE_BOUNDS.length - 1];
+	private static final double[] SLICE_OFFSETS = new double[SLICE_BOUNDS.length - 1];
+
+	static {
+		for (int i = 0; i < SLICE_WEIGHTS.length; i++) {
+			SLICE_WEIGHTS[i] = SLICE_BOUNDS[i + 1] - SLICE_BOUNDS[i];
+			SLICE_OFFSETS[i] = inverseStandardNormal((SLICE_BOUNDS[i] + SLICE_BOUNDS[i + 1]) / 2);
+		}
+	}
+
+	private final double relativeAccuracy;
+	private final double gamma;
+	private final double logGamma;
+
+	private double[] counts = new double[0];
+	private int offset;
+	private double zeroCount;
+	private double count;
+	private double sum;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	public QuantileSketch() {
+		this(DEFAULT_RELATIVE_ACCURACY);
+	}
+
+	public QuantileSketch(final double relativeAccuracy) {
+		if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+			throw new IllegalArgumentException("Relative accuracy should be between 0 and 1: " + relativeAccuracy);
+		}
+		this.relativeAccuracy = relativeAccuracy;
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(gamma);
+	}
+
+	public double getRelativeAccuracy() {
+		return relativeAccuracy;
+	}
+
+	/**
+	 * Counts the given value with the given weight.
+	 */
+	public void add(final double value, final double weight) {
+		if (weight <= 0 || Double.isNaN(value)) {
+			return;
+		}
+
+		if (value < MIN_INDEXABLE_VALUE) {
+			zeroCount += weight;
+		} else {
+			final int index = index(value);
+			ensureCapacity(index, index);
+			counts[index - offset] += weight;
+		}
+		count += weight;
+		sum += value * weight;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Counts a data point aggregating <code>weight</code> calls, spread over
+	 * the buckets by a normal approximation.
+	 *
+	 * @param min
+	 *            lowest value of the data point, ignored when higher than max
+	 * @param max
+	 *            highest value of the data point
+	 */
+	public void addDistribution(final double mean, final double standardDeviation, final double weight,
+			final double min, final double max) {
+		if (weight <= 0) {
+			return;
+		}
+		if (standardDeviation <= 0 || weight <= 1) {
+			add(clamp(mean, min, max), weight);
+			return;
+		}
+
+		for (int i = 0; i < SLICE_OFFSETS.length; i++) {
+			add(clamp(mean + SLICE_OFFSETS[i] * standardDeviation, min, max), weight * SLICE_WEIGHTS[i]);
+		}
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.95
+	 * @return estimate of the quantile, -1 when the sketch is empty
+	 */
+	public double getQuantile(final double quantile) {
+		if (count <= 0) {
+			return -1;
+		}
+
+		final double rank = Math.max(0, Math.min(quantile, 1)) * count;
+		double cumulative = zeroCount;
+		if (cumulative >= rank && zeroCount > 0) {
+			return Math.max(min, 0);
+		}
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= rank && counts[i] > 0) {
+				return Math.max(min, Math.min(value(i + offset), max));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return total weight of all values counted
+	 */
+	public double getCount() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count <= 0;
+	}
+
+	/**
+	 * @return mean of all values weighted by their count, -1 when the sketch is
+	 *         empty
+	 */
+	public double getMean() {
+		return count > 0 ? sum / count : -1;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * Adds all values of the other sketch to this sketch.
+	 *
+	 * @throws IllegalArgumentException
+	 *             when the sketches have a different accuracy
+	 */
+	public void merge(final QuantileSketch other) {
+		checkCompatible(other);
+		if (other.isEmpty()) {
+			return;
+		}
+
+		if (other.counts.length > 0) {
+			ensureCapacity(other.offset, other.offset + other.counts.length - 1);
+			for (int i = 0; i < other.counts.length; i++) {
+				counts[other.offset + i - offset] += other.counts[i];
+			}
+		}
+		zeroCount += other.zeroCount;
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Removes the values of the other sketch, which should have been merged
+	 * into this sketch before. The minimum and maximum are kept, so they are
+	 * bounds rather than exact values after a subtraction.
+	 *
+	 * @throws IllegalArgumentException
+	 *             when the sketches have a different accuracy
+	 */
+	public void subtract(final QuantileSketch other) {
+		checkCompatible(other);
+
+		double remaining = 0;
+		for (int i = 0; i < other.counts.length; i++) {
+			final int index = other.offset + i - offset;
+			if (index >= 0 && index < counts.length) {
+				counts[index] = Math.max(0, counts[index] - other.counts[i]);
+			}
+		}
+		for (double bucketCount : counts) {
+			remaining += bucketCount;
+		}
+		zeroCount = Math.max(0, zeroCount - other.zeroCount);
+		remaining += zeroCount;
+
+		// Rounding errors of earlier merges leave dust in the buckets
+		if (remaining <= count * 1e-9) {
+			clear();
+			return;
+		}
+		sum = Math.max(0, sum - other.sum);
+		count = remaining;
+	}
+
+	/**
+	 * Multiplies all counts with the given factor, e.g. to let older values
+	 * decay.
+	 */
+	public void scale(final double factor) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] *= factor;
+		}
+		zeroCount *= factor;
+		count *= factor;
+		sum *= factor;
+	}
+
+	public QuantileSketch copy() {
+		final QuantileSketch copy = new QuantileSketch(relativeAccuracy);
+		copy.merge(this);
+		return copy;
+	}
+
+	/**
+	 * Encodes the sketch as text without whitespace, with counts rounded to
+	 * four significant digits:
+	 *
+	 * <pre>
+	 * relativeAccuracy;count;sum;min;max;zeroCount;offset;bucketCount,bucketCount,...
+	 * </pre>
+	 *
+	 * Empty buckets are left out, e.g. <code>3,,,5</code>.
+	 */
+	public String encode() {
+		int first = 0;
+		int last = counts.length - 1;
+		while (first <= last && counts[first] <= 0) {
+			first++;
+		}
+		while (last >= first && counts[last] <= 0) {
+			last--;
+		}
+
+		final StringBuilder encoded = new StringBuilder(32 + (last - first + 1) * 6);
+		encoded.append(relativeAccuracy).append(';').append(round(count)).append(';').append(round(sum));
+		encoded.append(';').append(count > 0 ? round(min) : "0").append(';').append(count > 0 ? round(max) : "0");
+		encoded.append(';').append(round(zeroCount)).append(';').append(first + offset).append(';');
+		for (int i = first; i <= last; i++) {
+			if (i > first) {
+				encoded.append(',');
+			}
+			if (counts[i] > 0) {
+				encoded.append(round(counts[i]));
+			}
+		}
+		return encoded.toString();
+	}
+
+	/**
+	 * @return the sketch encoded by {@link #encode()}, or <code>null</code>
+	 *         when the text is not a valid sketch
+	 */
+	public static QuantileSketch decode(final String encoded) {
+		final String[] parts = encoded.split(";", -1);
+		if (parts.length != 8) {
+			return null;
+		}
+
+		try {
+			final QuantileSketch sketch = new QuantileSketch(Double.parseDouble(parts[0]));
+			sketch.count = Double.parseDouble(parts[1]);
+			sketch.sum = Double.parseDouble(parts[2]);
+			sketch.zeroCount = Double.parseDouble(parts[5]);
+			sketch.offset = Integer.parseInt(parts[6]);
+			if (sketch.count > 0) {
+				sketch.min = Double.parseDouble(parts[3]);
+				sketch.max = Double.parseDouble(parts[4]);
+			}
+			if (!parts[7].isEmpty()) {
+				final String[] buckets = parts[7].split(",", -1);
+				sketch.counts = new double[buckets.length];
+				for (int i = 0; i < buckets.length; i++) {
+					sketch.counts[i] = buckets[i].isEmpty() ? 0 : Double.parseDouble(buckets[i]);
+				}
+			}
+			return sketch;
+		} catch (IllegalArgumentException e) {
+			// Includes NumberFormatException
+			return null;
+		}
+	}
+
+	private void clear() {
+		counts = new double[0];
+		offset = 0;
+		zeroCount = 0;
+		count = 0;
+		sum = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	private void checkCompatible(final QuantileSketch other) {
+		if (other.relativeAccuracy != relativeAccuracy) {
+			throw new IllegalArgumentException("Sketches with a different accuracy cannot be combined: "
+					+ relativeAccuracy + " and " + other.relativeAccuracy);
+		}
+	}
+
+	private static String round(final double value) {
+		return new BigDecimal(value).round(new MathContext(4)).stripTrailingZeros().toPlainString();
+	}
+
+	private int index(final double value) {
+		return (int) Math.ceil(Math.log(value) / logGamma);
+	}
+
+	/**
+	 * @return the value representing the bucket, with the same relative
+	 *         distance to both of its bounds
+	 */
+	private double value(final int index) {
+		return 2 * Math.pow(gamma, index) / (gamma + 1);
+	}
+
+	private void ensureCapacity(final int minIndex, final int maxIndex) {
+		if (counts.length == 0) {
+			counts = new double[maxIndex - minIndex + 1];
+			offset = minIndex;
+			return;
+		}
+
+		final int newMinIndex = Math.min(minIndex, offset);
+		final int newMaxIndex = Math.max(maxIndex, offset + counts.length - 1);
+		if (newMinIndex == offset && newMaxIndex == offset + counts.length - 1) {
+			return;
+		}
+
+		// Leave some room on the side that grows, most values arrive in order
+		final int margin = 16;
+		final int lowIndex = newMinIndex < offset ? newMinIndex - margin : newMinIndex;
+		final int highIndex = newMaxIndex > offset + counts.length - 1 ? newMaxIndex + margin : newMaxIndex;
+		final double[] newCounts = new double[highIndex - lowIndex + 1];
+		System.arraycopy(counts, 0, newCounts, offset - lowIndex, counts.length);
+		counts = newCounts;
+		offset = lowIndex;
+	}
+
+	private static double clamp(final double value, final double min, final double max) {
+		if (min > max) {
+			return value;
+		}
+		return Math.max(min, Math.min(value, max));
+	}
+
+	/**
+	 * Inverse of the cumulative standard normal distribution, with the
+	 * rational approximation of P. J. Acklam (relative error below 1.15e-9).
+	 */
+	static double inverseStandardNormal(final double p) {
+		final double[] a = { -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+				1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00 };
+		final double[] b = { -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+				6.680131188771972e+01, -1.328068155288572e+01 };
+		final double[] c = { -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+				-2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00 };
+		final double[] d = { 7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+				3.754408661907416e+00 };
+		final double low = 0.02425;
+
+		if (p < low) {
+			final double q = Math.sqrt(-2 * Math.log(p));
+			return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+					/ ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		if (p > 1 - low) {
+			final double q = Math.sqrt(-2 * Math.log(1 - p));
+			return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+					/ ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		final double q = p - 0.5;
+		final double r = q * q;
+		return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+				/ (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+	}
+}
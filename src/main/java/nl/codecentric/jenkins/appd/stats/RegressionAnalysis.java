@@ -0,0 +1,259 @@
+package nl.codecentric.jenkins.appd.stats;
+
+/**
+ * Significance test of the change of a metric between the baseline and the
+ * current build, so a build is only marked as degrading when the change
+ * stands out from the noise between the data points.<br />
+ * <br />
+ * Welch's t-test is applied to the means of the data points, weighted by
+ * their number of calls, with the effective number of data points as sample
+ * size (see {@link WeightedMoments}). Unlike Student's t-test it does not
+ * assume baseline and build have the same variance, and unlike a rank test
+ * (Mann-Whitney) it only needs the moments, not every data point of the
+ * baseline. Next to the confidence the effect size is reported as Cohen's d:
+ * the difference of the means relative to the standard deviation of the
+ * individual calls.<br />
+ * <br />
+ * Both inputs are moments, so the analysis itself takes constant time; the
+ * moments are collected in a single pass over the data points.
+ */
+public final class RegressionAnalysis {
+
+	private static final int MAX_ITERATIONS = 1000;
+	private static final double EPSILON = 1e-12;
+	private static final double MIN_DOUBLE = 1e-300;
+	private static final double[] LANCZOS_COEFFICIENTS = { 76.18009172947146, -86.50532032941677,
+			24.01409824083091, -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5 };
+
+	private final double baselineMean;
+	private final double currentMean;
+	private final double difference;
+	private final double tStatistic;
+	private final double degreesOfFreedom;
+	private final double confidence;
+	private final double effectSize;
+
+	private RegressionAnalysis(final double baselineMean, final double currentMean, final double difference,
+			final double tStatistic, final double degreesOfFreedom, final double confidence,
+			final double effectSize) {
+		this.baselineMean = baselineMean;
+		this.currentMean = currentMean;
+		this.difference = difference;
+		this.tStatistic = tStatistic;
+		this.degreesOfFreedom = degreesOfFreedom;
+		this.confidence = confidence;
+		this.effectSize = effectSize;
+	}
+
+	/**
+	 * Tests whether the current build is worse than the baseline.
+	 *
+	 * @param lowerIsBetter
+	 *            whether an increase of the metric is a degradation
+	 * @return the analysis, or <code>null</code> when baseline or build have
+	 *         fewer than 2 effective data points
+	 */
+	public static RegressionAnalysis compare(final WeightedMoments baseline, final WeightedMoments current,
+			final boolean lowerIsBetter) {
+		final double baselineSize = baseline.getEffectiveSize();
+		final double currentSize = current.getEffectiveSize();
+		if (baseline.isEmpty() || current.isEmpty() || baselineSize < 2 || currentSize < 2) {
+			return null;
+		}
+
+		final double baselineMean = baseline.getMean();
+		final double currentMean = current.getMean();
+		// Positive when the build is worse
+		final double difference = lowerIsBetter ? currentMean - baselineMean : baselineMean - currentMean;
+
+		final double baselineError = baseline.getVarianceOfMeans() / baselineSize;
+		final double currentError = current.getVarianceOfMeans() / currentSize;
+		final double standardError = Math.sqrt(baselineError + currentError);
+
+		final double tStatistic;
+		final double degreesOfFreedom;
+		final double confidence;
+		if (standardError > 0) {
+			tStatistic = difference / standardError;
+			// Welch-Satterthwaite
+			degreesOfFreedom = Math.pow(baselineError + currentError, 2) / (baselineError * baselineError
+					/ (baselineSize - 1) + currentError * currentError / (currentSize - 1));
+			confidence = studentTDistribution(tStatistic, degreesOfFreedom);
+		} else {
+			// Every data point has the same mean, any difference is certain
+			tStatistic = difference == 0 ? 0 : Math.signum(difference) * Double.POSITIVE_INFINITY;
+			degreesOfFreedom = baselineSize + currentSize - 2;
+			confidence = difference == 0 ? 0.5 : (difference > 0 ? 1 : 0);
+		}
+
+		final double totalWeight = baseline.getWeight() + current.getWeight();
+		final double pooledStandardDeviation = Math.sqrt((baseline.getWeight() * baseline.getVarianceOfCalls()
+				+ current.getWeight() * current.getVarianceOfCalls()) / totalWeight);
+		final double effectSize;
+		if (pooledStandardDeviation > 0) {
+			effectSize = difference / pooledStandardDeviation;
+		} else {
+			effectSize = difference == 0 ? 0 : Math.signum(difference) * Double.POSITIVE_INFINITY;
+		}
+
+		return new RegressionAnalysis(baselineMean, currentMean, difference, tStatistic, degreesOfFreedom,
+				confidence, effectSize);
+	}
+
+	public double getBaselineMean() {
+		return baselineMean;
+	}
+
+	public double getCurrentMean() {
+		return currentMean;
+	}
+
+	/**
+	 * @return difference between the means, positive when the build is worse
+	 */
+	public double getDifference() {
+		return difference;
+	}
+
+	/**
+	 * @return difference between the means as fraction of the baseline mean,
+	 *         positive when the build is worse
+	 */
+	public double getRelativeDifference() {
+		return baselineMean != 0 ? difference / baselineMean : 0;
+	}
+
+	public double getTStatistic() {
+		return tStatistic;
+	}
+
+	public double getDegreesOfFreedom() {
+		return degreesOfFreedom;
+	}
+
+	/**
+	 * @return confidence, between 0 and 1, that the build is worse than the
+	 *         baseline: one minus the one-sided p-value
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/**
+	 * @return Cohen's d, positive when the build is worse
+	 */
+	public double getEffectSize() {
+		return effectSize;
+	}
+
+	/**
+	 * @param requiredConfidence
+	 *            between 0 and 1, e.g. 0.95
+	 * @return whether the build is worse than the baseline with at least the
+	 *         given confidence
+	 */
+	public boolean isSignificant(final double requiredConfidence) {
+		return difference > 0 && confidence >= requiredConfidence;
+	}
+
+	/**
+	 * @return magnitude of the effect size by the conventions of Cohen
+	 */
+	public String getEffectSizeDescription() {
+		final double magnitude = Math.abs(effectSize);
+		if (magnitude < 0.2) {
+			return "negligible";
+		} else if (magnitude < 0.5) {
+			return "small";
+		} else if (magnitude < 0.8) {
+			return "medium";
+		}
+		return "large";
+	}
+
+	@Override
+	public String toString() {
+		return String.format("difference %+.2f (%+.1f%%), t = %.2f, df = %.1f, confidence %.2f%%, "
+				+ "effect size d = %.2f (%s)", difference, getRelativeDifference() * 100, tStatistic,
+				degreesOfFreedom, confidence * 100, effectSize, getEffectSizeDescription());
+	}
+
+	/**
+	 * @return cumulative probability of Student's t-distribution with the
+	 *         given degrees of freedom at t
+	 */
+	static double studentTDistribution(final double t, final double degreesOfFreedom) {
+		if (Double.isInfinite(t)) {
+			return t > 0 ? 1 : 0;
+		}
+		final double tail = 0.5
+				* regularizedIncompleteBeta(degreesOfFreedom / (degreesOfFreedom + t * t), degreesOfFreedom / 2, 0.5);
+		return t > 0 ? 1 - tail : tail;
+	}
+
+	/**
+	 * Regularized incomplete beta function I_x(a, b), evaluated with the
+	 * continued fraction of Numerical Recipes, section 6.4.
+	 */
+	static double regularizedIncompleteBeta(final double x, final double a, final double b) {
+		if (x <= 0) {
+			return 0;
+		}
+		if (x >= 1) {
+			return 1;
+		}
+
+		final double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x)
+				+ b * Math.log(1 - x));
+		// The continued fraction converges quickly on this side of the mean
+		if (x < (a + 1) / (a + b + 2)) {
+			return front * incompleteBetaFraction(x, a, b) / a;
+		}
+		return 1 - front * incompleteBetaFraction(1 - x, b, a) / b;
+	}
+
+	/**
+	 * Modified Lentz's method.
+	 */
+	private static double incompleteBetaFraction(final double x, final double a, final double b) {
+		double c = 1;
+		double d = nonZero(1 - (a + b) * x / (a + 1));
+		d = 1 / d;
+		double fraction = d;
+		for (int m = 1; m <= MAX_ITERATIONS; m++) {
+			final int m2 = 2 * m;
+			double numerator = m * (b - m) * x / ((a - 1 + m2) * (a + m2));
+			d = 1 / nonZero(1 + numerator * d);
+			c = nonZero(1 + numerator / c);
+			fraction *= d * c;
+
+			numerator = -(a + m) * (a + b + m) * x / ((a + m2) * (a + 1 + m2));
+			d = 1 / nonZero(1 + numerator * d);
+			c = nonZero(1 + numerator / c);
+			final double delta = d * c;
+			fraction *= delta;
+			if (Math.abs(delta - 1) < EPSILON) {
+				break;
+			}
+		}
+		return fraction;
+	}
+
+	private static double nonZero(final double value) {
+		return Math.abs(value) < MIN_DOUBLE ? MIN_DOUBLE : value;
+	}
+
+	/**
+	 * Lanczos approximation of ln(Gamma(x)) for x > 0.
+	 */
+	private static double logGamma(final double x) {
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double series = 1.000000000190015;
+		for (double coefficient : LANCZOS_COEFFICIENTS) {
+			series += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * series / x);
+	}
+}
@@ -0,0 +1,170 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline of a single metric as one {@link QuantileSketch}, merged from the
+ * sketches of the builds in the baseline. Unlike {@link Baseline}, which
+ * averages one value per build, every call counts the same, so builds with
+ * little traffic or a single outlier build hardly move the baseline, and any
+ * percentile of the baseline can be asked for.<br />
+ * <br />
+ * The merged sketch is updated incrementally: a build is merged when added
+ * and subtracted again when it leaves the window, so determining the baseline
+ * costs O(buckets) per build.
+ */
+public abstract class SketchBaseline {
+
+	protected QuantileSketch merged;
+
+	/**
+	 * Creates an empty baseline for the given mode, with the same windows as
+	 * {@link Baseline#create(BaselineMode, int)}.
+	 */
+	public static SketchBaseline create(final BaselineMode mode, final int window) {
+		final int boundedWindow = Math.max(1, Math.min(window, Baseline.MAX_WINDOW));
+		switch (mode) {
+		case LAST_BUILDS:
+			return new LastBuildsSketchBaseline(boundedWindow);
+		case EXPONENTIAL_MOVING_AVERAGE:
+			return new ExponentialMovingAverageSketchBaseline(boundedWindow);
+		case LAST_DAYS:
+			return new LastDaysSketchBaseline(boundedWindow);
+		default:
+			return new AllBuildsSketchBaseline();
+		}
+	}
+
+	/**
+	 * Adds the sketch of a build, builds are expected to be added in order. The
+	 * sketch is not modified, but may be kept to subtract it later.
+	 */
+	public abstract void add(long timestamp, QuantileSketch sketch);
+
+	/**
+	 * @return the given statistic of all calls of the builds in the baseline
+	 *         at the given moment, -1 when no builds are part of the baseline
+	 */
+	public double getValue(final ThresholdStatistic statistic, final long now) {
+		evict(now);
+		if (merged == null || merged.isEmpty()) {
+			return -1;
+		}
+		return statistic == ThresholdStatistic.MEAN ? merged.getMean()
+				: merged.getQuantile(statistic.getPercentile() / 100.0);
+	}
+
+	/**
+	 * Removes builds that left the window at the given moment.
+	 */
+	protected void evict(final long now) {
+	}
+
+	protected void merge(final QuantileSketch sketch) {
+		if (merged == null) {
+			merged = sketch.copy();
+		} else {
+			merged.merge(sketch);
+		}
+	}
+
+	private static final class AllBuildsSketchBaseline extends SketchBaseline {
+		@Override
+		public void add(final long timestamp, final QuantileSketch sketch) {
+			merge(sketch);
+		}
+	}
+
+	private static final class LastBuildsSketchBaseline extends SketchBaseline {
+		private final int window;
+		private final ArrayDeque<QuantileSketch> sketches = new ArrayDeque<QuantileSketch>();
+
+		LastBuildsSketchBaseline(final int window) {
+			this.window = window;
+		}
+
+		@Override
+		public void add(final long timestamp, final QuantileSketch sketch) {
+			merge(sketch);
+			sketches.addLast(sketch);
+			if (sketches.size() > window) {
+				merged.subtract(sketches.removeFirst());
+			}
+		}
+	}
+
+	private static final class ExponentialMovingAverageSketchBaseline extends SketchBaseline {
+		private final double alpha;
+
+		ExponentialMovingAverageSketchBaseline(final int window) {
+			// Same center of mass as the sketch of the last builds of the window
+			alpha = 2.0 / (window + 1);
+		}
+
+		@Override
+		public void add(final long timestamp, final QuantileSketch sketch) {
+			if (merged != null) {
+				merged.scale(1 - alpha);
+			}
+			merge(sketch);
+		}
+	}
+
+	private static final class LastDaysSketchBaseline extends SketchBaseline {
+		private final long windowInMillis;
+		private final ArrayDeque<TimedSketch> sketches = new ArrayDeque<TimedSketch>();
+		// Sketches before the window of the last moment asked for, kept in case an earlier moment is asked for
+		private final ArrayDeque<TimedSketch> evicted = new ArrayDeque<TimedSketch>();
+		private long latestTimestamp = Long.MIN_VALUE;
+
+		LastDaysSketchBaseline(final int days) {
+			windowInMillis = TimeUnit.DAYS.toMillis(days);
+		}
+
+		@Override
+		public void add(final long timestamp, final QuantileSketch sketch) {
+			merge(sketch);
+			sketches.addLast(new TimedSketch(timestamp, sketch));
+			if (sketches.size() > Baseline.MAX_WINDOW * 10) {
+				merged.subtract(sketches.removeFirst().sketch);
+				evicted.clear();
+			}
+
+			// Sketches outside the window of the latest build are never part of the baseline again
+			latestTimestamp = Math.max(timestamp, latestTimestamp);
+			while (!evicted.isEmpty() && evicted.peekFirst().timestamp < latestTimestamp - windowInMillis) {
+				evicted.removeFirst();
+			}
+		}
+
+		@Override
+		protected void evict(final long now) {
+			final long start = now - windowInMillis;
+			// Each sketch moves once per change of direction
+			while (!evicted.isEmpty() && evicted.peekLast().timestamp >= start) {
+				final TimedSketch sketch = evicted.removeLast();
+				sketches.addFirst(sketch);
+				merge(sketch.sketch);
+			}
+			while (!sketches.isEmpty() && sketches.peekFirst().timestamp < start) {
+				final TimedSketch sketch = sketches.removeFirst();
+				evicted.addLast(sketch);
+				merged.subtract(sketch.sketch);
+			}
+			if (sketches.isEmpty()) {
+				merged = null;
+			}
+		}
+	}
+
+	private static final class TimedSketch {
+		private final long timestamp;
+		private final QuantileSketch sketch;
+
+		TimedSketch(final long timestamp, final QuantileSketch sketch) {
+			this.timestamp = timestamp;
+			this.sketch = sketch;
+		}
+	}
+}
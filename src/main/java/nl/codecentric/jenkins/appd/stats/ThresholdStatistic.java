@@ -0,0 +1,56 @@
+package nl.codecentric.jenkins.appd.stats;
+
+/**
+ * The statistic of a metric that thresholds and graphs are based on: the mean
+ * of all data points, or a percentile estimated from the calls within the
+ * data points, see {@link MetricSummary#getPercentile(int)}.
+ */
+public enum ThresholdStatistic {
+	MEAN("Mean", 0),
+	P50("Median (50th percentile)", 50),
+	P90("90th percentile", 90),
+	P95("95th percentile", 95),
+	P99("99th percentile", 99);
+
+	private final String displayName;
+	private final int percentile;
+
+	private ThresholdStatistic(final String displayName, final int percentile) {
+		this.displayName = displayName;
+		this.percentile = percentile;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * @return the percentile of this statistic, 0 for {@link #MEAN}
+	 */
+	public int getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * @return the value of this statistic in the given summary, -1 when not
+	 *         available
+	 */
+	public double getValue(final MetricSummary summary) {
+		if (summary == null) {
+			return -1;
+		}
+		return this == MEAN ? summary.getMean() : summary.getPercentile(percentile);
+	}
+
+	/**
+	 * @return the statistic with the given name, or {@link #MEAN} when unknown
+	 */
+	public static ThresholdStatistic fromString(final String name) {
+		for (ThresholdStatistic statistic : values()) {
+			if (statistic.name().equals(name)) {
+				return statistic;
+			}
+		}
+		return MEAN;
+	}
+}
@@ -0,0 +1,189 @@
+package nl.codecentric.jenkins.appd.stats;
+
+/**
+ * Call-weighted moments of the data points of a metric: each data point
+ * contributes its 'value' (the mean of its calls), its 'standardDeviation'
+ * and its 'count' as weight. The moments are plain sums, so the moments of
+ * several builds are merged by adding them up, and a build leaves a baseline
+ * window by subtracting it again, each in O(1).<br />
+ * <br />
+ * Two kinds of spread are derived:
+ * <ul>
+ * <li>the weighted variance of the data point means, with the effective
+ * number of data points (Kish), used by the significance test of
+ * {@link RegressionAnalysis}. Data points are the observations, not the
+ * calls, as calls within the same minute are far from independent.</li>
+ * <li>the variance of the individual calls, within and between the data
+ * points, used for the effect size.</li>
+ * </ul>
+ */
+public final class WeightedMoments {
+
+	private double weight;
+	private double squaredWeight;
+	private double sum;
+	private double sumOfSquares;
+	private double withinSumOfSquares;
+
+	/**
+	 * Adds a single data point.
+	 *
+	 * @param value
+	 *            mean of the calls within the data point
+	 * @param standardDeviation
+	 *            standard deviation of the calls within the data point, 0 when
+	 *            not known
+	 * @param calls
+	 *            number of calls within the data point, data points without
+	 *            calls are ignored
+	 */
+	public void add(final double value, final double standardDeviation, final double calls) {
+		if (calls <= 0) {
+			return;
+		}
+		weight += calls;
+		squaredWeight += calls * calls;
+		sum += calls * value;
+		sumOfSquares += calls * value * value;
+		withinSumOfSquares += calls * standardDeviation * standardDeviation;
+	}
+
+	/**
+	 * Adds all data points of the other moments.
+	 */
+	public void merge(final WeightedMoments other) {
+		weight += other.weight;
+		squaredWeight += other.squaredWeight;
+		sum += other.sum;
+		sumOfSquares += other.sumOfSquares;
+		withinSumOfSquares += other.withinSumOfSquares;
+	}
+
+	/**
+	 * Removes the data points of the other moments, which must have been
+	 * merged before.
+	 */
+	public void subtract(final WeightedMoments other) {
+		weight -= other.weight;
+		squaredWeight -= other.squaredWeight;
+		sum -= other.sum;
+		sumOfSquares -= other.sumOfSquares;
+		withinSumOfSquares -= other.withinSumOfSquares;
+		// Rounding errors must not leave a few phantom calls behind
+		if (weight <= other.weight * 1e-9 || squaredWeight <= 0) {
+			clear();
+		}
+	}
+
+	/**
+	 * Multiplies the weight of every data point by the given factor, keeping
+	 * their means and standard deviations.
+	 */
+	public void scale(final double factor) {
+		weight *= factor;
+		squaredWeight *= factor * factor;
+		sum *= factor;
+		sumOfSquares *= factor;
+		withinSumOfSquares *= factor;
+	}
+
+	public void clear() {
+		weight = 0;
+		squaredWeight = 0;
+		sum = 0;
+		sumOfSquares = 0;
+		withinSumOfSquares = 0;
+	}
+
+	public WeightedMoments copy() {
+		final WeightedMoments copy = new WeightedMoments();
+		copy.merge(this);
+		return copy;
+	}
+
+	public boolean isEmpty() {
+		return weight <= 0;
+	}
+
+	/**
+	 * @return total number of calls
+	 */
+	public double getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return mean of all calls, -1 when empty
+	 */
+	public double getMean() {
+		return isEmpty() ? -1 : sum / weight;
+	}
+
+	/**
+	 * @return number of equally weighted data points that would give a mean
+	 *         as precise as these weighted ones, (sum of weights)^2 / sum of
+	 *         squared weights
+	 */
+	public double getEffectiveSize() {
+		return squaredWeight > 0 ? weight * weight / squaredWeight : 0;
+	}
+
+	/**
+	 * @return unbiased weighted variance of the means of the data points, 0
+	 *         with less than 2 effective data points
+	 */
+	public double getVarianceOfMeans() {
+		final double denominator = weight - squaredWeight / weight;
+		if (isEmpty() || denominator <= 0) {
+			return 0;
+		}
+		return Math.max(0, sumOfSquares - sum * sum / weight) / denominator;
+	}
+
+	/**
+	 * @return variance of the individual calls, -1 when empty
+	 */
+	public double getVarianceOfCalls() {
+		if (isEmpty()) {
+			return -1;
+		}
+		return Math.max(0, sumOfSquares - sum * sum / weight + withinSumOfSquares) / weight;
+	}
+
+	/**
+	 * @return the moments as short text, without tabs or line breaks, to store
+	 *         in the trend index
+	 */
+	public String encode() {
+		return weight + ";" + squaredWeight + ";" + sum + ";" + sumOfSquares + ";" + withinSumOfSquares;
+	}
+
+	/**
+	 * @return the moments encoded by {@link #encode()}, or <code>null</code>
+	 *         when the text is not valid
+	 */
+	public static WeightedMoments decode(final String encoded) {
+		final String[] parts = encoded.split(";", -1);
+		if (parts.length != 5) {
+			return null;
+		}
+
+		try {
+			final WeightedMoments moments = new WeightedMoments();
+			moments.weight = Double.parseDouble(parts[0]);
+			moments.squaredWeight = Double.parseDouble(parts[1]);
+			moments.sum = Double.parseDouble(parts[2]);
+			moments.sumOfSquares = Double.parseDouble(parts[3]);
+			moments.withinSumOfSquares = Double.parseDouble(parts[4]);
+			return moments;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("calls: %.0f, effective data points: %.1f, mean: %f", weight, getEffectiveSize(),
+				getMean());
+	}
+}
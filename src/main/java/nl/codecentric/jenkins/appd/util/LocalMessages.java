@@ -11,6 +11,7 @@ public enum LocalMessages {
   PROJECTACTION_DISPLAYNAME("AppDynamicsProjectAction.DisplayName"),
   BUILDACTION_DISPLAYNAME("AppDynamicsBuildAction.DisplayName"),
   PUBLISHER_DISPLAYNAME("AppDynamicsResultsPublisher.DisplayName"),
+  LIVEPOLLING_DISPLAYNAME("AppDynamicsLivePollingWrapper.DisplayName"),
   REPORT_DISPLAYNAME("AppDynamicsReport.DisplayName");
 
   private final static ResourceBundle MESSAGES = ResourceBundle.getBundle("nl.codecentric.jenkins.appd.Messages");
@@ -0,0 +1,49 @@
+package nl.codecentric.jenkins.appd;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+public class AppDynamicsLivePollingWrapperTest {
+  private static final long START = 1356877200000L;
+
+  private static AppDynamicsLivePollingWrapper wrapper(final int abortThreshold, final boolean lowerIsBetter) {
+    AppDynamicsLivePollingWrapper wrapper = new AppDynamicsLivePollingWrapper("http://localhost:8090/controller",
+        "user@customer1", "secret", "Application");
+    wrapper.setRollingWindow(2);
+    wrapper.setAbortThreshold(abortThreshold);
+    wrapper.setLowerIsBetter(lowerIsBetter);
+    return wrapper;
+  }
+
+  @Test
+  public void testAbortWhenRollingAverageCrossesThreshold() {
+    AppDynamicsLivePollingWrapper wrapper = wrapper(500, true);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    AppDynamicsLivePollingWrapper.LivePoller poller = wrapper.new LivePoller(null, null,
+        new LiveMetricsAction(wrapper.getMetricPath(), START), new PrintStream(output, true));
+
+    // Too few data points for the rolling average
+    assertNull(poller.process(LiveMetricsActionTest.polled(0, 900)));
+    assertNull(poller.process(LiveMetricsActionTest.polled(1, 100)));
+    // Replaces the partial minute of 100
+    String abortReason = poller.process(LiveMetricsActionTest.polled(1, 700));
+
+    assertNotNull(abortReason);
+    assertTrue(abortReason, abortReason.contains("rolling average 800.0"));
+    assertTrue(output.toString().contains("last 2 avg 500.0"));
+  }
+
+  @Test
+  public void testAbortThreshold() {
+    assertFalse(wrapper(0, true).isAbortThresholdCrossed(10000));
+    assertFalse(wrapper(500, true).isAbortThresholdCrossed(-1));
+    assertFalse(wrapper(500, true).isAbortThresholdCrossed(500));
+    assertTrue(wrapper(500, true).isAbortThresholdCrossed(501));
+    assertTrue(wrapper(500, false).isAbortThresholdCrossed(499));
+    assertFalse(wrapper(500, false).isAbortThresholdCrossed(600));
+  }
+}
@@ -0,0 +1,154 @@
+package nl.codecentric.jenkins.appd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.model.AbstractBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.util.NullStream;
+import nl.codecentric.jenkins.appd.rest.ControllerSimulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Load harness running many {@link AppDynamicsResultsPublisher#perform}
+ * calls at the same time against a {@link ControllerSimulator}, reporting the
+ * throughput, the latency of the build step and the heap use.<br />
+ * <br />
+ * Only runs when enabled, and is tuned with system properties prefixed with
+ * the name of this class, e.g.:
+ *
+ * <pre>
+ * mvn test -Dtest=AppDynamicsResultsPublisherLoadTest \
+ *   -Dnl.codecentric.jenkins.appd.AppDynamicsResultsPublisherLoadTest.enabled=true \
+ *   -Dnl.codecentric.jenkins.appd.AppDynamicsResultsPublisherLoadTest.latencyInMillis=500
+ * </pre>
+ */
+public class AppDynamicsResultsPublisherLoadTest {
+  private static final String PROPERTY_PREFIX = AppDynamicsResultsPublisherLoadTest.class.getName() + ".";
+  private static final boolean ENABLED = Boolean.getBoolean(PROPERTY_PREFIX + "enabled");
+  private static final int PROJECTS = Integer.getInteger(PROPERTY_PREFIX + "projects", 10);
+  private static final int BUILDS_PER_PROJECT = Integer.getInteger(PROPERTY_PREFIX + "buildsPerProject", 10);
+  private static final int THREADS = Integer.getInteger(PROPERTY_PREFIX + "threads", 16);
+  private static final int POINTS_PER_METRIC = Integer.getInteger(PROPERTY_PREFIX + "pointsPerMetric", 1000);
+  private static final int LATENCY_IN_MILLIS = Integer.getInteger(PROPERTY_PREFIX + "latencyInMillis", 50);
+  private static final double ERROR_RATE = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "errorRate", "0"));
+  private static final double THROTTLE_RATE = Double
+      .parseDouble(System.getProperty(PROPERTY_PREFIX + "throttleRate", "0"));
+  private static final double TRUNCATE_RATE = Double
+      .parseDouble(System.getProperty(PROPERTY_PREFIX + "truncateRate", "0"));
+  private static final String CUSTOM_METRIC_PATH = "Overall Application Performance|Stall Count";
+
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void testConcurrentCollection() throws Exception {
+    assumeTrue(ENABLED);
+
+    final ControllerSimulator simulator = new ControllerSimulator(THREADS).addMetricPath(CUSTOM_METRIC_PATH)
+        .setPointsPerMetric(POINTS_PER_METRIC).setLatencyInMillis(LATENCY_IN_MILLIS).setErrorRate(ERROR_RATE, 503)
+        .setThrottleRate(THROTTLE_RATE, 1).setTruncateRate(TRUNCATE_RATE).start();
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    final ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      final List<Callable<Long>> calls = new ArrayList<Callable<Long>>();
+      for (int p = 0; p < PROJECTS; p++) {
+        final FreeStyleProject project = j.createFreeStyleProject();
+        final AppDynamicsResultsPublisher publisher = new AppDynamicsResultsPublisher(simulator.getControllerUri(),
+            "user@customer1", "secret", ControllerSimulator.APPLICATION_NAME,
+            "Overall Application Performance|Average Response Time (ms)", CUSTOM_METRIC_PATH, true, 1, 65, 80);
+        for (int b = 0; b < BUILDS_PER_PROJECT; b++) {
+          calls.add(new PerformCall(publisher, j.buildAndAssertSuccess(project)));
+        }
+      }
+
+      final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      memory.gc();
+      final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+      final AtomicLong heapPeak = new AtomicLong(heapBefore);
+      heapSampler.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          final long used = memory.getHeapMemoryUsage().getUsed();
+          long peak;
+          while (used > (peak = heapPeak.get()) && !heapPeak.compareAndSet(peak, used)) {
+            // retry
+          }
+        }
+      }, 0, 50, TimeUnit.MILLISECONDS);
+
+      final long start = System.nanoTime();
+      final List<Future<Long>> futures = executor.invokeAll(calls);
+      final long elapsed = System.nanoTime() - start;
+      heapSampler.shutdownNow();
+
+      final long[] latencies = new long[futures.size()];
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = futures.get(i).get();
+      }
+      Arrays.sort(latencies);
+      memory.gc();
+      final long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+      System.out.println(String.format("%d perform calls on %d threads in %d ms: %.1f calls/s", latencies.length,
+          THREADS, TimeUnit.NANOSECONDS.toMillis(elapsed), latencies.length / (elapsed / 1e9)));
+      System.out.println(String.format("Build step latency: p50 %d ms, p99 %d ms, max %d ms",
+          TimeUnit.NANOSECONDS.toMillis(percentile(latencies, 50)),
+          TimeUnit.NANOSECONDS.toMillis(percentile(latencies, 99)),
+          TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length - 1])));
+      System.out.println(String.format("Heap: %d MB before, %d MB peak, %d MB retained after GC",
+          heapBefore >> 20, heapPeak.get() >> 20, heapAfter >> 20));
+      System.out.println(String.format("Controller: %d metric requests, %d application requests, %d injected failures",
+          simulator.getRequestCount("metric-data"), simulator.getRequestCount("application"),
+          simulator.getInjectedFailures()));
+
+      assertEquals(PROJECTS * BUILDS_PER_PROJECT, latencies.length);
+    } finally {
+      heapSampler.shutdownNow();
+      executor.shutdownNow();
+      simulator.stop();
+    }
+  }
+
+  private static long percentile(final long[] sorted, final int percentile) {
+    final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  /**
+   * Runs the publisher on an already completed build.
+   *
+   * @return duration of the build step in nanoseconds
+   */
+  private class PerformCall implements Callable<Long> {
+    private final AppDynamicsResultsPublisher publisher;
+    private final AbstractBuild<?, ?> build;
+
+    PerformCall(final AppDynamicsResultsPublisher publisher, final AbstractBuild<?, ?> build) {
+      this.publisher = publisher;
+      this.build = build;
+    }
+
+    public Long call() throws Exception {
+      final long start = System.nanoTime();
+      publisher.perform(build, j.createLocalLauncher(), new StreamBuildListener(new NullStream()));
+      return System.nanoTime() - start;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package nl.codecentric.jenkins.appd;
+
+import static org.junit.Assert.*;
+
+import nl.codecentric.jenkins.appd.stats.ThresholdStatistic;
+
+import org.junit.Test;
+
+public class AppDynamicsResultsPublisherTest {
+
+  private static AppDynamicsResultsPublisher publisher(final String thresholdStatistic,
+      final String baselineStatistic) {
+    AppDynamicsResultsPublisher publisher = new AppDynamicsResultsPublisher("http://localhost:8090/controller",
+        "user@customer1", "secret", "Application", "Overall Application Performance|Average Response Time (ms)",
+        "", true, 1, 65, 80);
+    publisher.setThresholdStatistic(thresholdStatistic);
+    publisher.setBaselineStatistic(baselineStatistic);
+    return publisher;
+  }
+
+  @Test
+  public void testRegressionTestOnlyForMean() {
+    assertEquals(95, publisher("MEAN", "").getRequiredConfidence());
+    assertTrue(publisher("MEAN", "").isRegressionTested(ThresholdStatistic.MEAN));
+  }
+
+  @Test
+  public void testP95ThresholdIsNotTestedAgainstTheMean() {
+    AppDynamicsResultsPublisher publisher = publisher("P95", "");
+
+    assertFalse(publisher.isRegressionTested(ThresholdStatistic.P95));
+    // Reports without percentiles fall back to the mean
+    assertTrue(publisher.isRegressionTested(ThresholdStatistic.MEAN));
+  }
+
+  @Test
+  public void testMergedBaselineIsNotTested() {
+    assertFalse(publisher("MEAN", "P95").isRegressionTested(ThresholdStatistic.MEAN));
+    assertFalse(publisher("MEAN", "MEAN").isRegressionTested(ThresholdStatistic.MEAN));
+  }
+
+  @Test
+  public void testRegressionTestDisabled() {
+    AppDynamicsResultsPublisher publisher = publisher("MEAN", "");
+    publisher.setRequiredConfidence(0);
+
+    assertFalse(publisher.isRegressionTested(ThresholdStatistic.MEAN));
+  }
+}
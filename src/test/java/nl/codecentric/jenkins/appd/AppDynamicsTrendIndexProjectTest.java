@@ -0,0 +1,51 @@
+package nl.codecentric.jenkins.appd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import hudson.model.FreeStyleProject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * {@link AppDynamicsTrendIndex#forProject} as projects are deleted, created
+ * and renamed.
+ */
+public class AppDynamicsTrendIndexProjectTest {
+
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void testRecreatedProjectGetsIndexOfItsOwn() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject("job");
+    AppDynamicsTrendIndex index = AppDynamicsTrendIndex.forProject(project);
+    assertSame(index, AppDynamicsTrendIndex.forProject(project));
+
+    project.delete();
+    FreeStyleProject recreated = j.createFreeStyleProject("job");
+    assertNotSame(index, AppDynamicsTrendIndex.forProject(recreated));
+  }
+
+  @Test
+  public void testRenamedProjectGetsIndexInItsNewDirectory() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject("job");
+    AppDynamicsTrendIndex index = AppDynamicsTrendIndex.forProject(project);
+    File oldRootDir = project.getRootDir();
+
+    project.renameTo("renamed");
+    AppDynamicsTrendIndex renamedIndex = AppDynamicsTrendIndex.forProject(project);
+    assertNotSame(index, renamedIndex);
+    assertSame(renamedIndex, AppDynamicsTrendIndex.forProject(project));
+
+    // A new project in the old directory does not get the index of the renamed one
+    FreeStyleProject recreated = j.createFreeStyleProject("job");
+    assertEquals(oldRootDir, recreated.getRootDir());
+    assertNotSame(index, AppDynamicsTrendIndex.forProject(recreated));
+  }
+}
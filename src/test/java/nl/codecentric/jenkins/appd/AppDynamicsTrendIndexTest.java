@@ -0,0 +1,170 @@
+package nl.codecentric.jenkins.appd;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.model.Result;
+import nl.codecentric.jenkins.appd.stats.BaselineMode;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+import nl.codecentric.jenkins.appd.stats.MetricSummary;
+import nl.codecentric.jenkins.appd.stats.ThresholdStatistic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link AppDynamicsTrendIndex} on an index file of its own, without a
+ * project to rebuild it from.
+ */
+public class AppDynamicsTrendIndexTest {
+  private static final String METRIC = "Overall Application Performance|Average Response Time (ms)";
+  private static final long ONE_HOUR = 3600000L;
+
+  private File indexFile;
+  private AppDynamicsTrendIndex index;
+
+  @Before
+  public void createIndex() throws IOException {
+    indexFile = File.createTempFile("appdynamics-trend-index", ".txt");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8");
+    writer.write(AppDynamicsTrendIndex.HEADER + "\n");
+    writer.close();
+    index = new AppDynamicsTrendIndex(null, indexFile);
+  }
+
+  @After
+  public void deleteIndex() {
+    indexFile.delete();
+  }
+
+  private static AppDynamicsTrendIndex.Entry entry(final int buildNumber, final Result result, final double mean) {
+    Map<String, MetricSummary> summaries = new LinkedHashMap<String, MetricSummary>();
+    summaries.put(METRIC, new MetricSummary(10, (long) mean * 10, (long) mean, (long) mean, mean, 0));
+    return new AppDynamicsTrendIndex.Entry(buildNumber, result == null ? null : result.toString(),
+        buildNumber * ONE_HOUR, 10, summaries);
+  }
+
+  private static AppDynamicsTrendIndex.Entry seriesEntry(final int buildNumber, final int value) {
+    MetricSeries series = new MetricSeries(2);
+    for (int minute = 0; minute < 2; minute++) {
+      int point = series.addPoint(buildNumber * ONE_HOUR + minute * 60000L);
+      series.set(Column.VALUE, point, value);
+      series.set(Column.MIN, point, value);
+      series.set(Column.MAX, point, value);
+      series.set(Column.COUNT, point, 100);
+    }
+    Map<String, MetricSummary> summaries = new LinkedHashMap<String, MetricSummary>();
+    summaries.put(METRIC, MetricSummary.fromSeries(series));
+    return new AppDynamicsTrendIndex.Entry(buildNumber, Result.SUCCESS.toString(), buildNumber * ONE_HOUR, 2,
+        summaries);
+  }
+
+  private double lastBuildsBaseline(final int buildNumber) {
+    return index.getBaseline(METRIC, ThresholdStatistic.MEAN, BaselineMode.LAST_BUILDS, 3, buildNumber,
+        buildNumber * ONE_HOUR);
+  }
+
+  @Test
+  public void testBuildRecordedOutOfOrderStaysInBaseline() {
+    for (int buildNumber = 1; buildNumber <= 9; buildNumber++) {
+      index.record(entry(buildNumber, Result.SUCCESS, 100));
+    }
+    assertEquals(100, lastBuildsBaseline(10), 0.0001);
+
+    // Build 11 finishes before build 10
+    index.record(entry(11, Result.SUCCESS, 400));
+    assertEquals(100, lastBuildsBaseline(10), 0.0001);
+    index.record(entry(10, Result.SUCCESS, 200));
+
+    assertEquals((100 + 200 + 400) / 3.0, lastBuildsBaseline(12), 0.0001);
+    index.record(entry(12, Result.SUCCESS, 400));
+    assertEquals((200 + 400 + 400) / 3.0, lastBuildsBaseline(13), 0.0001);
+  }
+
+  @Test
+  public void testRunningBuildJoinsBaselineOnceCompleted() {
+    index.record(entry(1, Result.SUCCESS, 100));
+    index.record(entry(2, null, 400));
+    assertEquals(100, lastBuildsBaseline(3), 0.0001);
+
+    index.updateResult(2, Result.SUCCESS);
+    assertEquals(250, lastBuildsBaseline(3), 0.0001);
+
+    // Failed by a later step
+    index.record(entry(3, null, 1000));
+    index.updateResult(3, Result.FAILURE);
+    assertEquals(250, lastBuildsBaseline(4), 0.0001);
+  }
+
+  @Test
+  public void testBuildsCompletingOutOfOrder() {
+    index.record(entry(1, Result.SUCCESS, 100));
+    index.record(entry(2, null, 200));
+    index.record(entry(3, null, 300));
+    assertEquals(100, lastBuildsBaseline(4), 0.0001);
+
+    index.updateResult(3, Result.SUCCESS);
+    assertEquals(200, lastBuildsBaseline(4), 0.0001);
+    index.updateResult(2, Result.SUCCESS);
+    assertEquals(200, lastBuildsBaseline(4), 0.0001);
+    assertEquals(150, lastBuildsBaseline(3), 0.0001);
+  }
+
+  @Test
+  public void testUpdatedResultIsReadBack() {
+    index.record(entry(1, null, 100));
+    index.updateResult(1, Result.UNSTABLE);
+
+    AppDynamicsTrendIndex readIndex = new AppDynamicsTrendIndex(null, indexFile);
+    assertEquals(Result.UNSTABLE, readIndex.getEntries().get(0).getResult());
+    assertEquals(100, readIndex.getEntries().get(0).getAverageForMetric(METRIC), 0.0001);
+  }
+
+  @Test
+  public void testSketchesAndMomentsAreReadFromFile() {
+    index.record(seriesEntry(1, 100));
+    index.record(seriesEntry(2, 200));
+    assertEquals(150, index.getMergedBaseline(METRIC, ThresholdStatistic.MEAN, BaselineMode.ALL_BUILDS, 1, 3,
+        3 * ONE_HOUR), 1.5);
+
+    AppDynamicsTrendIndex readIndex = new AppDynamicsTrendIndex(null, indexFile);
+    assertNull(readIndex.getEntries().get(0).getSummary(METRIC).getEncodedSketch());
+    assertNull(readIndex.getEntries().get(0).getSummary(METRIC).getEncodedMoments());
+    assertEquals(150, readIndex.getMergedBaseline(METRIC, ThresholdStatistic.MEAN, BaselineMode.ALL_BUILDS, 1, 3,
+        3 * ONE_HOUR), 1.5);
+    assertEquals(150, readIndex.getBaselineMoments(METRIC, BaselineMode.ALL_BUILDS, 1, 3, 3 * ONE_HOUR).getMean(),
+        0.0001);
+
+    readIndex.record(seriesEntry(3, 600));
+    assertNull(readIndex.getEntries().get(2).getSummary(METRIC).getEncodedSketch());
+    assertEquals(300, readIndex.getMergedBaseline(METRIC, ThresholdStatistic.MEAN, BaselineMode.ALL_BUILDS, 1, 4,
+        4 * ONE_HOUR), 3);
+
+    readIndex.remove(2);
+    assertEquals(350, new AppDynamicsTrendIndex(null, indexFile).getBaselineMoments(METRIC,
+        BaselineMode.ALL_BUILDS, 1, 4, 4 * ONE_HOUR).getMean(), 0.0001);
+  }
+
+  @Test
+  public void testMetricPathIsEscaped() {
+    String metricKey = "Business Transactions|Tab\tNew\r\nLine|C:\\temp|Calls per Minute";
+    assertEquals(metricKey, AppDynamicsTrendIndex.unescape(AppDynamicsTrendIndex.escape(metricKey)));
+    assertEquals(-1, AppDynamicsTrendIndex.escape(metricKey).indexOf('\t'));
+
+    Map<String, MetricSummary> summaries = new LinkedHashMap<String, MetricSummary>();
+    summaries.put(metricKey, new MetricSummary(1, 5, 5, 5, 5, 0));
+    index.record(new AppDynamicsTrendIndex.Entry(1, Result.SUCCESS.toString(), ONE_HOUR, 10, summaries));
+
+    AppDynamicsTrendIndex readIndex = new AppDynamicsTrendIndex(null, indexFile);
+    assertEquals(5, readIndex.getEntries().get(0).getAverageForMetric(metricKey), 0.0001);
+  }
+}
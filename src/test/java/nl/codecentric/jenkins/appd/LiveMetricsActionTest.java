@@ -0,0 +1,79 @@
+package nl.codecentric.jenkins.appd;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+
+import org.junit.Test;
+
+public class LiveMetricsActionTest {
+  private static final String METRIC = "Overall Application Performance|Average Response Time (ms)";
+  private static final long START = 1356877200000L;
+  private static final long ONE_MINUTE = 60000L;
+
+  static MetricData polled(final long firstMinute, final int... values) {
+    MetricSeries series = new MetricSeries(values.length);
+    for (int i = 0; i < values.length; i++) {
+      int point = series.addPoint(START + (firstMinute + i) * ONE_MINUTE);
+      series.set(Column.VALUE, point, values[i]);
+      series.set(Column.MIN, point, values[i]);
+      series.set(Column.MAX, point, values[i]);
+    }
+    MetricData metricData = new MetricData();
+    metricData.setMetricPath(METRIC);
+    metricData.setMetricSeries(series);
+    return metricData;
+  }
+
+  @Test
+  public void testPartialLastMinuteIsReplaced() {
+    LiveMetricsAction action = new LiveMetricsAction(METRIC, START);
+    assertEquals(2, action.append(polled(0, 100, 50)));
+    // The last minute was still going on at the previous poll
+    assertEquals(2, action.append(polled(1, 200, 300)));
+
+    assertEquals(3, action.getPointCount());
+    assertEquals(START + 2 * ONE_MINUTE, action.getLastTimestamp());
+    assertEquals(250, action.getRollingAverage(2), 0.0001);
+    assertEquals(100, action.getMetricData().getMetricSeries().get(Column.VALUE, 0));
+  }
+
+  @Test
+  public void testPointsBeforeLastOneAreSkipped() {
+    LiveMetricsAction action = new LiveMetricsAction(METRIC, START + ONE_MINUTE);
+    // The minute the build started in is not part of it
+    assertEquals(2, action.append(polled(0, 100, 200, 300)));
+    assertEquals(1, action.append(polled(0, 100, 200, 400)));
+
+    assertEquals(2, action.getPointCount());
+    assertEquals(300, action.getRollingAverage(2), 0.0001);
+    assertEquals(-1, action.getRollingAverage(3), 0.0001);
+  }
+
+  @Test
+  public void testStoredSeriesIsReadFromFile() throws IOException {
+    File buildDirectory = File.createTempFile("appdynamics-build", "");
+    buildDirectory.delete();
+    buildDirectory.mkdir();
+    File seriesFile = new File(buildDirectory, LiveMetricsAction.SERIES_FILE_NAME);
+    try {
+      LiveMetricsAction action = new LiveMetricsAction(METRIC, START);
+      action.append(polled(0, 100, 200, 300));
+      action.storeSeries(buildDirectory);
+
+      assertTrue(seriesFile.exists());
+      assertEquals(0, action.append(polled(3, 400)));
+      assertEquals(3, action.getPointCount());
+      assertEquals(200, action.getSummary().getMean(), 0.0001);
+      assertEquals(METRIC, action.getMetricData().getMetricPath());
+    } finally {
+      seriesFile.delete();
+      buildDirectory.delete();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 1, TimeUnit.HOURS);
+
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    assertFalse(breaker.isOpen());
+
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testSingleTrialRequestWhenHalfOpen() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 0, TimeUnit.SECONDS);
+    breaker.recordFailure();
+
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+
+    breaker.recordSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void testFailedTrialOpensAgain() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 0, TimeUnit.SECONDS);
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordFailure();
+
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+}
@@ -0,0 +1,363 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nl.codecentric.jenkins.appd.AppDynamicsDataCollector;
+
+/**
+ * Local stand-in for an AppDynamics Controller, serving the resources used by
+ * {@link RestConnection}:
+ * <ul>
+ * <li><code>/controller/rest/applications</code>, the list of applications</li>
+ * <li><code>/controller/rest/applications/{name}</code>, the application itself</li>
+ * <li><code>/controller/rest/applications/{name}/metric-data</code>, one series
+ * per requested metric, every known leaf for a wildcard</li>
+ * <li><code>/controller/rest/applications/{name}/business-transactions</code></li>
+ * </ul>
+ * The size of the series and the failures of the Controller are configurable,
+ * and can be changed while the simulator is running: latency, error
+ * responses, throttling with a <code>Retry-After</code> header and bodies cut
+ * off half-way. Failures are picked with a seeded random, so a test sees the
+ * same sequence on every run.
+ */
+public class ControllerSimulator {
+
+  public static final String APPLICATION_NAME = "Simulated Application";
+  public static final int APPLICATION_ID = 42;
+
+  private static final String APPLICATIONS_PATH = "/controller/rest/applications";
+  private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Random random = new Random(42);
+  private final Map<String, AtomicInteger> requestCounts = new HashMap<String, AtomicInteger>();
+  private final AtomicInteger injectedFailures = new AtomicInteger();
+  private final List<String> knownMetricPaths = new CopyOnWriteArrayList<String>(
+      Arrays.asList(AppDynamicsDataCollector.getAvailableMetricPaths()));
+
+  private volatile int pointsPerMetric = 10;
+  private volatile int latencyInMillis;
+  private volatile double errorRate;
+  private volatile int errorStatus = 503;
+  private volatile double throttleRate;
+  private volatile int retryAfterInSeconds = 1;
+  private volatile double truncateRate;
+
+  public ControllerSimulator() throws IOException {
+    this(16);
+  }
+
+  /**
+   * @param threads
+   *          number of requests handled at the same time
+   */
+  public ControllerSimulator(final int threads) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext(APPLICATIONS_PATH, new HttpHandler() {
+      public void handle(final HttpExchange exchange) throws IOException {
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  public ControllerSimulator start() {
+    server.start();
+    return this;
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return URI to configure in the plugin, e.g.
+   *         <code>http://localhost:1234/controller</code>
+   */
+  public String getControllerUri() {
+    return "http://localhost:" + server.getAddress().getPort() + "/controller";
+  }
+
+  /**
+   * Adds a metric path returned for a wildcard request of its parent, next to
+   * the default metric paths of the plugin.
+   */
+  public ControllerSimulator addMetricPath(final String metricPath) {
+    knownMetricPaths.add(metricPath);
+    return this;
+  }
+
+  public ControllerSimulator setPointsPerMetric(final int pointsPerMetric) {
+    this.pointsPerMetric = pointsPerMetric;
+    return this;
+  }
+
+  public ControllerSimulator setLatencyInMillis(final int latencyInMillis) {
+    this.latencyInMillis = latencyInMillis;
+    return this;
+  }
+
+  /**
+   * @param errorRate
+   *          fraction of the requests answered with the given status, 0 to 1
+   */
+  public ControllerSimulator setErrorRate(final double errorRate, final int errorStatus) {
+    this.errorRate = errorRate;
+    this.errorStatus = errorStatus;
+    return this;
+  }
+
+  /**
+   * @param throttleRate
+   *          fraction of the requests answered with <code>429</code> and the
+   *          given <code>Retry-After</code>, 0 to 1
+   */
+  public ControllerSimulator setThrottleRate(final double throttleRate, final int retryAfterInSeconds) {
+    this.throttleRate = throttleRate;
+    this.retryAfterInSeconds = retryAfterInSeconds;
+    return this;
+  }
+
+  /**
+   * @param truncateRate
+   *          fraction of the responses of which only the first half of the
+   *          body is sent, 0 to 1
+   */
+  public ControllerSimulator setTruncateRate(final double truncateRate) {
+    this.truncateRate = truncateRate;
+    return this;
+  }
+
+  /**
+   * @return number of requests received for the given resource:
+   *         <code>applications</code>, <code>application</code>,
+   *         <code>metric-data</code> or <code>business-transactions</code>
+   */
+  public int getRequestCount(final String resource) {
+    synchronized (requestCounts) {
+      final AtomicInteger count = requestCounts.get(resource);
+      return count == null ? 0 : count.get();
+    }
+  }
+
+  /**
+   * @return number of requests answered with an injected error, throttle or
+   *         truncated body
+   */
+  public int getInjectedFailures() {
+    return injectedFailures.get();
+  }
+
+  private void serve(final HttpExchange exchange) throws IOException {
+    final String[] segments = exchange.getRequestURI().getPath().substring(APPLICATIONS_PATH.length())
+        .replaceAll("^/+|/+$", "").split("/");
+    final String resource;
+    if (segments[0].isEmpty()) {
+      resource = "applications";
+    } else if (segments.length == 1) {
+      resource = "application";
+    } else {
+      resource = segments[1];
+    }
+    countRequest(resource);
+
+    if (latencyInMillis > 0) {
+      try {
+        Thread.sleep(latencyInMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+
+    if (nextFailure(throttleRate)) {
+      exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterInSeconds));
+      exchange.sendResponseHeaders(429, -1);
+      return;
+    }
+    if (nextFailure(errorRate)) {
+      exchange.sendResponseHeaders(errorStatus, -1);
+      return;
+    }
+
+    final Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+    final String body;
+    if ("applications".equals(resource)) {
+      body = "[" + applicationJson() + "]";
+    } else if (!APPLICATION_NAME.equals(segments[0])) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    } else if ("application".equals(resource)) {
+      body = "[" + applicationJson() + "]";
+    } else if ("metric-data".equals(resource)) {
+      body = metricDataJson(parameters);
+    } else if ("business-transactions".equals(resource)) {
+      body = businessTransactionsJson();
+    } else {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+
+    final byte[] bytes = body.getBytes(UTF8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    final OutputStream output = exchange.getResponseBody();
+    if (nextFailure(truncateRate)) {
+      exchange.sendResponseHeaders(200, 0);
+      output.write(bytes, 0, bytes.length / 2);
+    } else {
+      exchange.sendResponseHeaders(200, bytes.length);
+      output.write(bytes);
+    }
+    output.close();
+  }
+
+  private void countRequest(final String resource) {
+    synchronized (requestCounts) {
+      AtomicInteger count = requestCounts.get(resource);
+      if (count == null) {
+        count = new AtomicInteger();
+        requestCounts.put(resource, count);
+      }
+      count.incrementAndGet();
+    }
+  }
+
+  private boolean nextFailure(final double rate) {
+    if (rate <= 0) {
+      return false;
+    }
+    final boolean failure;
+    synchronized (random) {
+      failure = random.nextDouble() < rate;
+    }
+    if (failure) {
+      injectedFailures.incrementAndGet();
+    }
+    return failure;
+  }
+
+  private static String applicationJson() {
+    return "{\"description\":\"\",\"id\":" + APPLICATION_ID + ",\"name\":\"" + APPLICATION_NAME + "\"}";
+  }
+
+  private static String businessTransactionsJson() {
+    return "[{\"internalName\":\"/login\",\"tierId\":7,\"entryPointType\":\"SERVLET\",\"background\":false,"
+        + "\"tierName\":\"Web\",\"name\":\"Login\",\"id\":101},"
+        + "{\"internalName\":\"/checkout\",\"tierId\":7,\"entryPointType\":\"SERVLET\",\"background\":false,"
+        + "\"tierName\":\"Web\",\"name\":\"Checkout\",\"id\":102}]";
+  }
+
+  private String metricDataJson(final Map<String, String> parameters) {
+    final String metricPath = parameters.get("metric-path");
+    if (metricPath == null) {
+      return "[]";
+    }
+
+    final int duration = parseInt(parameters.get("duration-in-mins"), 1);
+    final long startTime = "AFTER_TIME".equals(parameters.get("time-range-type"))
+        ? parseLong(parameters.get("start-time"), 0)
+        : System.currentTimeMillis() - duration * ONE_MINUTE;
+    final int points = pointsPerMetric;
+
+    final List<String> metricPaths = new ArrayList<String>();
+    if (metricPath.endsWith("|*")) {
+      final String parent = metricPath.substring(0, metricPath.length() - 1);
+      for (String knownPath : knownMetricPaths) {
+        if (knownPath.startsWith(parent)) {
+          metricPaths.add(knownPath);
+        }
+      }
+    } else {
+      metricPaths.add(metricPath);
+    }
+
+    final Random values = new Random(metricPath.hashCode() ^ startTime);
+    final StringBuilder json = new StringBuilder(metricPaths.size() * (points * 190 + 200));
+    json.append('[');
+    for (int m = 0; m < metricPaths.size(); m++) {
+      if (m > 0) {
+        json.append(',');
+      }
+      json.append("{\"metricId\":").append(1000 + m);
+      json.append(",\"metricName\":\"BTM|").append(metricPaths.get(m)).append('"');
+      json.append(",\"metricPath\":\"").append(metricPaths.get(m)).append('"');
+      json.append(",\"frequency\":\"ONE_MIN\",\"metricValues\":[");
+      for (int i = 0; i < points; i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        final int value = 50 + values.nextInt(200);
+        final int count = 1 + values.nextInt(1000);
+        json.append("{\"startTimeInMillis\":").append(startTime + i * ONE_MINUTE);
+        json.append(",\"occurrences\":0,\"current\":").append(value);
+        json.append(",\"min\":").append(values.nextInt(value));
+        json.append(",\"max\":").append(value + values.nextInt(5000));
+        json.append(",\"useRange\":true,\"count\":").append(count);
+        json.append(",\"sum\":").append((long) value * count);
+        json.append(",\"value\":").append(value);
+        json.append(",\"standardDeviation\":").append(values.nextInt(50)).append('}');
+      }
+      json.append("]}");
+    }
+    return json.append(']').toString();
+  }
+
+  private static Map<String, String> parseQuery(final String query) throws UnsupportedEncodingException {
+    final Map<String, String> parameters = new HashMap<String, String>();
+    if (query == null) {
+      return parameters;
+    }
+    for (String parameter : query.split("&")) {
+      final int separator = parameter.indexOf('=');
+      if (separator > 0) {
+        parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+            URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+      }
+    }
+    return parameters;
+  }
+
+  private static int parseInt(final String value, final int defaultValue) {
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private static long parseLong(final String value, final long defaultValue) {
+    try {
+      return value == null ? defaultValue : Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
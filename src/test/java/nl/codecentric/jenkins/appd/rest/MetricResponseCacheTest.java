@@ -0,0 +1,167 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+
+import org.junit.Test;
+
+public class MetricResponseCacheTest {
+  private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
+  private static final long TWO_HOURS_AGO = (System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2))
+      / ONE_MINUTE * ONE_MINUTE;
+
+  /**
+   * Returns one data point per minute of the window, counting the loads.
+   */
+  private static class CountingLoader implements MetricResponseCache.WindowLoader {
+    private final AtomicInteger loads = new AtomicInteger();
+    private final List<long[]> windows = new ArrayList<long[]>();
+
+    public List<MetricData> load(final long startTime, final int durationInMinutes) {
+      loads.incrementAndGet();
+      windows.add(new long[] { startTime, durationInMinutes });
+      MetricSeries series = new MetricSeries(durationInMinutes);
+      for (int minute = 0; minute < durationInMinutes; minute++) {
+        series.set(Column.VALUE, series.addPoint(startTime + minute * ONE_MINUTE), minute);
+      }
+      MetricData metricData = new MetricData();
+      metricData.setMetricPath("Overall Application Performance|Calls per Minute");
+      metricData.setMetricSeries(series);
+      List<MetricData> response = new ArrayList<MetricData>();
+      response.add(metricData);
+      return response;
+    }
+  }
+
+  @Test
+  public void testEndedWindowIsShared() throws IOException {
+    CountingLoader loader = new CountingLoader();
+    List<MetricData> first = MetricResponseCache.get("shared", TWO_HOURS_AGO, 10, loader);
+    List<MetricData> second = MetricResponseCache.get("shared", TWO_HOURS_AGO, 10, loader);
+
+    assertEquals(1, loader.loads.get());
+    assertEquals(10, second.get(0).getMetricSeries().size());
+    assertNotSame(first, second);
+    assertNotSame(first.get(0), second.get(0));
+    assertNotSame(first.get(0).getMetricSeries(), second.get(0).getMetricSeries());
+  }
+
+  @Test
+  public void testChangesToResponseAreNotShared() throws IOException {
+    CountingLoader loader = new CountingLoader();
+    List<MetricData> first = MetricResponseCache.get("changed", TWO_HOURS_AGO, 10, loader);
+    first.get(0).getMetricSeries().set(Column.VALUE, 0, 1000);
+    first.get(0).setMetricPath("changed");
+    first.clear();
+
+    List<MetricData> second = MetricResponseCache.get("changed", TWO_HOURS_AGO, 10, loader);
+    assertEquals(1, second.size());
+    assertEquals("Overall Application Performance|Calls per Minute", second.get(0).getMetricPath());
+    assertEquals(0, second.get(0).getMetricSeries().get(Column.VALUE, 0));
+  }
+
+  @Test
+  public void testWindowNotEndedIsNotCached() throws IOException {
+    CountingLoader loader = new CountingLoader();
+    long start = System.currentTimeMillis() - 5 * ONE_MINUTE;
+    MetricResponseCache.get("running", start, 10, loader);
+    MetricResponseCache.get("running", start, 10, loader);
+
+    assertEquals(2, loader.loads.get());
+    // Requested as is, not aligned
+    assertEquals(start, loader.windows.get(0)[0]);
+    assertEquals(10, loader.windows.get(0)[1]);
+  }
+
+  @Test
+  public void testWindowsWithSameAlignmentShareRequest() throws IOException {
+    CountingLoader loader = new CountingLoader();
+    MetricResponseCache.get("aligned", TWO_HOURS_AGO + 10000, 5, loader);
+    List<MetricData> response = MetricResponseCache.get("aligned", TWO_HOURS_AGO + 50000, 5, loader);
+
+    assertEquals(1, loader.loads.get());
+    assertEquals(TWO_HOURS_AGO, loader.windows.get(0)[0]);
+    assertEquals(6, loader.windows.get(0)[1]);
+    // The data points the window starts and ends in are part of it
+    MetricSeries series = response.get(0).getMetricSeries();
+    assertEquals(6, series.size());
+    assertEquals(TWO_HOURS_AGO, series.getStartTimeInMillis(0));
+    assertEquals(TWO_HOURS_AGO + 5 * ONE_MINUTE, series.getStartTimeInMillis(5));
+  }
+
+  @Test
+  public void testWindowIsNotAlignedToLowerFrequency() throws IOException {
+    CountingLoader loader = new CountingLoader();
+    long start = TWO_HOURS_AGO - TimeUnit.DAYS.toMillis(1) + ONE_MINUTE / 2;
+    MetricResponseCache.get("frequency", start, 4 * 60, loader);
+
+    // Aligned to 241 minutes the Controller would return data points of ten minutes
+    assertEquals(start, loader.windows.get(0)[0]);
+    assertEquals(4 * 60, loader.windows.get(0)[1]);
+  }
+
+  @Test
+  public void testFailureIsPassedToWaitingCallers() throws Exception {
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch fail = new CountDownLatch(1);
+    final MetricResponseCache.WindowLoader failingLoader = new MetricResponseCache.WindowLoader() {
+      public List<MetricData> load(final long startTime, final int durationInMinutes) throws IOException {
+        loading.countDown();
+        try {
+          fail.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new IOException("response code 401 from the Controller");
+      }
+    };
+    final List<String> failures = new ArrayList<String>();
+    Runnable request = new Runnable() {
+      public void run() {
+        try {
+          MetricResponseCache.get("failing", TWO_HOURS_AGO, 10, failingLoader);
+        } catch (IOException e) {
+          synchronized (failures) {
+            failures.add(e.getMessage());
+          }
+        }
+      }
+    };
+
+    Thread loadingThread = new Thread(request);
+    loadingThread.start();
+    loading.await();
+    Thread waitingThread = new Thread(request);
+    waitingThread.start();
+    Thread.sleep(100);
+    fail.countDown();
+    loadingThread.join();
+    waitingThread.join();
+
+    assertEquals(2, failures.size());
+    assertEquals("response code 401 from the Controller", failures.get(0));
+    assertEquals("response code 401 from the Controller", failures.get(1));
+    // Failures are not cached
+    CountingLoader loader = new CountingLoader();
+    assertNotNull(MetricResponseCache.get("failing", TWO_HOURS_AGO, 10, loader));
+    assertEquals(1, loader.loads.get());
+  }
+
+  @Test
+  public void testAlignWindow() {
+    long[] window = MetricResponseCache.alignWindow(TimeUnit.HOURS.toMillis(1) + 7 * ONE_MINUTE, 5 * 60);
+
+    assertEquals(TimeUnit.HOURS.toMillis(1), window[0]);
+    assertEquals(5 * 60 + 10, window[1]);
+  }
+}
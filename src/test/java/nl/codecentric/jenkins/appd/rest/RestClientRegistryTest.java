@@ -0,0 +1,42 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.jersey.api.client.Client;
+
+public class RestClientRegistryTest {
+  private static final String REST_URI = "http://registry.example.com/controller/rest/applications/";
+
+  @After
+  public void shutdown() {
+    RestClientRegistry.shutdown();
+  }
+
+  @Test
+  public void testClientIsSharedPerCredentials() {
+    Client client = RestClientRegistry.getClient(REST_URI, "user@customer1", "secret");
+
+    assertSame(client, RestClientRegistry.getClient(REST_URI, "user@customer1", "secret"));
+    assertNotSame(client, RestClientRegistry.getClient(REST_URI, "user@customer1", "changed"));
+    assertEquals(2, RestClientRegistry.getClientCount());
+  }
+
+  @Test
+  public void testIdleClientIsRemoved() {
+    Client client = RestClientRegistry.getClient(REST_URI, "user@customer1", "secret");
+    long now = System.currentTimeMillis();
+
+    RestClientRegistry.evictIdleClients(now);
+    assertEquals(1, RestClientRegistry.getClientCount());
+
+    RestClientRegistry.evictIdleClients(now + RestClientRegistry.CLIENT_IDLE_TIMEOUT_IN_MILLIS);
+    assertEquals(0, RestClientRegistry.getClientCount());
+    assertNotSame(client, RestClientRegistry.getClient(REST_URI, "user@customer1", "secret"));
+    assertEquals(1, RestClientRegistry.getClientCount());
+  }
+}
@@ -0,0 +1,110 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import nl.codecentric.jenkins.appd.rest.types.ApplicationInformation;
+import nl.codecentric.jenkins.appd.rest.types.MetricData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link RestConnection} against a {@link ControllerSimulator}. Every test
+ * starts its own simulator, so the Controller state shared per URI (request
+ * scheduler, caches) starts fresh.
+ */
+public class RestConnectionSimulatorTest {
+  private static final List<String> METRIC_PATHS = Arrays.asList(
+      "Overall Application Performance|Average Response Time (ms)",
+      "Overall Application Performance|Calls per Minute");
+  private static final long BUILD_START_TIME = 1467673200000L;
+
+  private ControllerSimulator simulator;
+
+  @Before
+  public void startSimulator() throws Exception {
+    simulator = new ControllerSimulator().start();
+  }
+
+  @After
+  public void stopSimulator() {
+    simulator.stop();
+  }
+
+  private RestConnection createConnection() {
+    return new RestConnection(simulator.getControllerUri(), "user@customer1", "secret",
+        ControllerSimulator.APPLICATION_NAME);
+  }
+
+  @Test
+  public void testMetricsWithSameParentAreFetchedInOneRequest() {
+    simulator.setPointsPerMetric(500);
+
+    Map<String, MetricData> metrics = createConnection().fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME);
+
+    assertEquals(2, metrics.size());
+    assertEquals(500, metrics.get(METRIC_PATHS.get(1)).getMetricSeries().size());
+    assertEquals(1, simulator.getRequestCount("metric-data"));
+  }
+
+  @Test
+  public void testCachedResponseIsOnlySharedWithSameCredentials() {
+    createConnection().fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME);
+    createConnection().fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME);
+    assertEquals(1, simulator.getRequestCount("metric-data"));
+
+    RestConnection otherPassword = new RestConnection(simulator.getControllerUri(), "user@customer1", "wrong",
+        ControllerSimulator.APPLICATION_NAME);
+    otherPassword.fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME);
+    assertEquals(2, simulator.getRequestCount("metric-data"));
+  }
+
+  @Test
+  public void testApplicationIsFound() {
+    ApplicationInformation application = createConnection().fetchApplicationData();
+
+    assertNotNull(application);
+    assertEquals(ControllerSimulator.APPLICATION_ID, application.getId());
+  }
+
+  @Test
+  public void testUnknownApplicationIsReportedAsConnectionFailure() {
+    RestConnection connection = new RestConnection(simulator.getControllerUri(), "user@customer1", "secret",
+        "Unknown");
+
+    assertTrue(connection.fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME).isEmpty());
+    assertNotNull(connection.getConnectionFailure());
+  }
+
+  @Test
+  public void testTruncatedBodyIsNotRetried() {
+    simulator.setTruncateRate(1);
+    RestConnection connection = createConnection();
+
+    assertTrue(connection.fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME).isEmpty());
+    assertNotNull(connection.getConnectionFailure());
+    assertEquals(1, simulator.getRequestCount("metric-data"));
+  }
+
+  @Test
+  public void testThrottledRequestIsRetriedAfterDelay() {
+    simulator.setThrottleRate(1, 0);
+
+    assertTrue(createConnection().fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME).isEmpty());
+    assertEquals(3, simulator.getRequestCount("metric-data"));
+  }
+
+  @Test
+  public void testLatencyIsAddedToEveryRequest() {
+    simulator.setLatencyInMillis(200);
+
+    long start = System.currentTimeMillis();
+    assertEquals(2, createConnection().fetchMetricData(METRIC_PATHS, 10, BUILD_START_TIME).size());
+    assertTrue(System.currentTimeMillis() - start >= 200);
+  }
+}
@@ -2,15 +2,20 @@ package nl.codecentric.jenkins.appd.rest;
 
 import static org.junit.Assert.*;
 import nl.codecentric.jenkins.appd.rest.types.MetricData;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
 
 
+import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * TODO update header from template
@@ -52,4 +57,57 @@ public class RestConnectionTest {
     assertEquals(2, resultData.getMetricValues().size());
     assertEquals(5, resultData.getMetricValues().get(1).getCurrent().intValue());
   }
+
+  @Test
+  public void testJsonParsingIntoSeries() throws IOException {
+    jsonMapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    List<MetricData> metricList = jsonMapper.readValue(jsonOutput, new TypeReference<List<MetricData>>() {});
+
+    MetricSeries series = metricList.get(0).getMetricSeries();
+    assertEquals(2, series.size());
+    assertEquals(1356877800000L, series.getStartTimeInMillis(1));
+    assertEquals(54104, series.get(MetricSeries.Column.MAX, 0));
+    assertTrue(series.hasColumn(MetricSeries.Column.VALUE));
+    assertFalse(series.hasColumn(MetricSeries.Column.SUM));
+    assertNull(metricList.get(0).getMetricValues().get(0).getSum());
+    assertEquals("38357", metricList.get(0).getMetricId());
+  }
+
+  @Test
+  public void testValueOutOfRangeOfIntIsRejected() throws IOException {
+    String json = jsonOutput.replace("\"max\": 54104", "\"max\": 3000000000");
+
+    try {
+      jsonMapper.readValue(json, new TypeReference<List<MetricData>>() {});
+      fail("Expected the value of max to be rejected");
+    } catch (JsonParseException e) {
+      assertTrue(e.getMessage().contains("3000000000"));
+      assertTrue(e.getMessage().contains("\"max\""));
+    }
+  }
+
+  @Test
+  public void testMetricPathsWithSameParentAreGrouped() {
+    Map<String, List<String>> groupedPaths = RestConnection.groupMetricPaths(Arrays.asList(
+        "Overall Application Performance|Average Response Time (ms)",
+        "Overall Application Performance|Calls per Minute",
+        "Business Transaction Performance|Business Transactions|Tier|Login|Calls per Minute",
+        "Overall Application Performance|Calls per Minute"));
+
+    assertEquals(2, groupedPaths.size());
+    assertEquals(2, groupedPaths.get("Overall Application Performance|*").size());
+    assertEquals(1, groupedPaths.get(
+        "Business Transaction Performance|Business Transactions|Tier|Login|Calls per Minute").size());
+  }
+
+  @Test
+  public void testEmptyMetricPathsAreSkipped() {
+    Map<String, List<String>> groupedPaths = RestConnection.groupMetricPaths(Arrays.asList(
+        "Overall Application Performance|Calls per Minute", null, "", "  "));
+
+    assertEquals(1, groupedPaths.size());
+    assertEquals(Collections.singletonList("Overall Application Performance|Calls per Minute"),
+        groupedPaths.get("Overall Application Performance|Calls per Minute"));
+  }
 }
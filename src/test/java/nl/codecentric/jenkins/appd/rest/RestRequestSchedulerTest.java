@@ -0,0 +1,141 @@
+package nl.codecentric.jenkins.appd.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Hands out the slots of {@link RestRequestScheduler} without sending
+ * requests, each slot is taken by a thread of its own.
+ */
+public class RestRequestSchedulerTest {
+  private static final long TIMEOUT_IN_MILLIS = 5000;
+
+  private final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+
+  private Thread acquire(final RestRequestScheduler scheduler, final String requester) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          scheduler.acquire(requester);
+          granted.add(requester);
+        } catch (InterruptedException e) {
+          granted.add("interrupted " + requester);
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  private void awaitQueueDepth(final RestRequestScheduler scheduler, final int queueDepth)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_IN_MILLIS;
+    while (scheduler.getQueueDepth() != queueDepth && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(queueDepth, scheduler.getQueueDepth());
+  }
+
+  private void awaitGranted(final int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_IN_MILLIS;
+    while (granted.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, granted.size());
+  }
+
+  @Test
+  public void testSlotsAreHandedOutRoundRobinBetweenRequesters() throws InterruptedException {
+    RestRequestScheduler scheduler = new RestRequestScheduler("http://fairness.example.com/controller", 1);
+    scheduler.acquire("busy job");
+
+    for (int i = 1; i <= 3; i++) {
+      acquire(scheduler, "busy job");
+      awaitQueueDepth(scheduler, i);
+    }
+    acquire(scheduler, "other job");
+    awaitQueueDepth(scheduler, 4);
+
+    for (int i = 1; i <= 4; i++) {
+      scheduler.release();
+      awaitGranted(i);
+    }
+    assertEquals(Arrays.asList("busy job", "other job", "busy job", "busy job"), granted);
+    scheduler.release();
+    assertEquals(0, scheduler.getInFlight());
+  }
+
+  @Test
+  public void testRequestsWaitWhileLimitIsReached() throws InterruptedException {
+    RestRequestScheduler scheduler = new RestRequestScheduler("http://limit.example.com/controller", 2);
+    scheduler.acquire("job");
+    scheduler.acquire("other job");
+
+    acquire(scheduler, "job");
+    acquire(scheduler, "third job");
+    awaitQueueDepth(scheduler, 2);
+    Thread.sleep(50);
+    assertEquals(0, granted.size());
+    assertEquals(2, scheduler.getInFlight());
+
+    scheduler.release();
+    awaitGranted(1);
+    Thread.sleep(50);
+    assertEquals(1, granted.size());
+    assertEquals(2, scheduler.getInFlight());
+
+    scheduler.release();
+    awaitGranted(2);
+    assertEquals(2, scheduler.getInFlight());
+    scheduler.release();
+    scheduler.release();
+    assertEquals(0, scheduler.getInFlight());
+  }
+
+  @Test
+  public void testPauseHoldsBackWaitingRequests() throws InterruptedException {
+    RestRequestScheduler scheduler = new RestRequestScheduler("http://pause.example.com/controller", 1);
+    scheduler.acquire("job");
+    acquire(scheduler, "job");
+    awaitQueueDepth(scheduler, 1);
+
+    long start = System.currentTimeMillis();
+    scheduler.pause(300);
+    scheduler.release();
+    assertEquals(1, scheduler.getQueueDepth());
+
+    // Nothing releases a slot anymore, the request is granted once the pause is over
+    awaitGranted(1);
+    assertTrue(System.currentTimeMillis() - start >= 300);
+    scheduler.release();
+  }
+
+  @Test
+  public void testInterruptedRequestLeavesTheQueue() throws InterruptedException {
+    RestRequestScheduler scheduler = new RestRequestScheduler("http://interrupt.example.com/controller", 1);
+    scheduler.acquire("job");
+    Thread waiting = acquire(scheduler, "job");
+    awaitQueueDepth(scheduler, 1);
+    acquire(scheduler, "other job");
+    awaitQueueDepth(scheduler, 2);
+
+    waiting.interrupt();
+    awaitGranted(1);
+    assertEquals("interrupted job", granted.get(0));
+    assertEquals(1, scheduler.getQueueDepth());
+
+    scheduler.release();
+    awaitGranted(2);
+    assertEquals("other job", granted.get(1));
+    assertEquals(0, scheduler.getQueueDepth());
+    scheduler.release();
+    assertEquals(0, scheduler.getInFlight());
+  }
+}
@@ -0,0 +1,58 @@
+package nl.codecentric.jenkins.appd.rest.types;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+
+import org.junit.Test;
+
+public class MetricSeriesCodecTest {
+
+  @Test
+  public void testSeriesSurviveRoundTrip() throws Exception {
+    MetricSeries series = new MetricSeries();
+    for (int i = 0; i < 100; i++) {
+      int index = series.addPoint(1356877200000L + i * 60000L);
+      series.set(Column.VALUE, index, i % 7);
+      series.set(Column.MAX, index, -i * 1000);
+      series.setStandardDeviation(index, i / 3.0);
+    }
+
+    MetricData metricData = new MetricData();
+    metricData.setMetricPath("Overall Application Performance|Average Response Time (ms)");
+    metricData.setFrequency("ONE_MIN");
+    metricData.setMetricSeries(series);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    MetricSeriesCodec.write(new DataOutputStream(bytes), Collections.singletonList(metricData));
+    List<MetricData> read = MetricSeriesCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertEquals(1, read.size());
+    MetricData readData = read.get(0);
+    assertEquals(metricData.getMetricPath(), readData.getMetricPath());
+    assertEquals("ONE_MIN", readData.getFrequency());
+    assertNull(readData.getMetricId());
+
+    MetricSeries readSeries = readData.getMetricSeries();
+    assertEquals(100, readSeries.size());
+    assertTrue(readSeries.hasColumn(Column.VALUE));
+    assertFalse(readSeries.hasColumn(Column.MIN));
+    assertFalse(readSeries.hasUseRange());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(series.getStartTimeInMillis(i), readSeries.getStartTimeInMillis(i));
+      assertEquals(series.get(Column.VALUE, i), readSeries.get(Column.VALUE, i));
+      assertEquals(series.get(Column.MAX, i), readSeries.get(Column.MAX, i));
+      assertEquals(series.getStandardDeviation(i), readSeries.getStandardDeviation(i), 0);
+    }
+  }
+}
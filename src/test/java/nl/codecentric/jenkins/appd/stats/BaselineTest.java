@@ -0,0 +1,58 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BaselineTest {
+
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  @Test
+  public void testLastBuildsOnlyKeepsWindow() {
+    Baseline baseline = Baseline.create(BaselineMode.LAST_BUILDS, 2);
+    assertEquals(-1, baseline.getValue(0), 0.0001);
+
+    baseline.add(0, 100);
+    baseline.add(0, 10);
+    baseline.add(0, 20);
+
+    assertEquals(15, baseline.getValue(0), 0.0001);
+  }
+
+  @Test
+  public void testLastDaysEvictsOldBuilds() {
+    Baseline baseline = Baseline.create(BaselineMode.LAST_DAYS, 2);
+    baseline.add(0, 100);
+    baseline.add(2 * DAY, 10);
+    baseline.add(3 * DAY, 20);
+
+    assertEquals(15, baseline.getValue(3 * DAY), 0.0001);
+    assertEquals(20, baseline.getValue(5 * DAY), 0.0001);
+    assertEquals(-1, baseline.getValue(10 * DAY), 0.0001);
+  }
+
+  @Test
+  public void testLastDaysCanGoBackInTime() {
+    Baseline baseline = Baseline.create(BaselineMode.LAST_DAYS, 2);
+    baseline.add(0, 100);
+    baseline.add(2 * DAY, 10);
+    baseline.add(3 * DAY, 20);
+
+    assertEquals(-1, baseline.getValue(10 * DAY), 0.0001);
+    assertEquals(15, baseline.getValue(3 * DAY), 0.0001);
+    assertEquals(130 / 3.0, baseline.getValue(2 * DAY), 0.0001);
+    assertEquals(20, baseline.getValue(5 * DAY), 0.0001);
+  }
+
+  @Test
+  public void testExponentialMovingAverage() {
+    Baseline baseline = Baseline.create(BaselineMode.EXPONENTIAL_MOVING_AVERAGE, 3);
+    baseline.add(0, 10);
+    baseline.add(0, 20);
+
+    assertEquals(15, baseline.getValue(0), 0.0001);
+  }
+}
@@ -0,0 +1,135 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import static org.junit.Assert.*;
+
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries;
+import nl.codecentric.jenkins.appd.rest.types.MetricSeries.Column;
+
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+  @Test
+  public void testQuantilesWithinRelativeAccuracy() {
+    QuantileSketch sketch = new QuantileSketch();
+    for (int value = 1; value <= 1000; value++) {
+      sketch.add(value, 1);
+    }
+
+    assertEquals(500, sketch.getQuantile(0.5), 500 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    assertEquals(950, sketch.getQuantile(0.95), 950 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    assertEquals(990, sketch.getQuantile(0.99), 990 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    assertEquals(1000, sketch.getQuantile(1), 0.0001);
+    assertEquals(1, sketch.getQuantile(0), 0.0001);
+  }
+
+  @Test
+  public void testEmptySketch() {
+    assertTrue(new QuantileSketch().isEmpty());
+    assertEquals(-1, new QuantileSketch().getQuantile(0.5), 0.0001);
+  }
+
+  @Test
+  public void testDistributionFollowsNormalApproximation() {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.addDistribution(100, 10, 1000, 0, 10000);
+
+    assertEquals(1000, sketch.getCount(), 0.0001);
+    assertEquals(100, sketch.getQuantile(0.5), 2);
+    assertEquals(116.4, sketch.getQuantile(0.95), 2);
+    assertEquals(123.3, sketch.getQuantile(0.99), 2);
+  }
+
+  @Test
+  public void testDistributionLimitedToRange() {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.addDistribution(100, 50, 1000, 90, 120);
+
+    assertEquals(90, sketch.getQuantile(0.01), 0.0001);
+    assertEquals(120, sketch.getQuantile(0.99), 0.0001);
+  }
+
+  @Test
+  public void testSummaryPercentilesWeightedByCalls() {
+    MetricSeries series = new MetricSeries(61);
+    for (int i = 0; i < 60; i++) {
+      addPoint(series, i, 100, 500);
+    }
+    // One slow minute with 3% of the calls only shows in the tail
+    addPoint(series, 60, 900, 1000);
+
+    MetricSummary summary = MetricSummary.fromSeries(series);
+
+    assertTrue(summary.hasPercentiles());
+    assertEquals(100, summary.getPercentile(50), 2);
+    assertTrue(summary.getPercentile(95) < 200);
+    assertTrue(summary.getPercentile(99) > 800);
+    assertEquals(summary.getPercentile(95), ThresholdStatistic.P95.getValue(summary), 0.0001);
+    assertEquals(-1, summary.getPercentile(75), 0.0001);
+  }
+
+  @Test
+  public void testSummaryWithoutPercentiles() {
+    MetricSummary summary = new MetricSummary(1, 10, 10, 10, 10, 0);
+
+    assertFalse(summary.hasPercentiles());
+    assertEquals(-1, ThresholdStatistic.P99.getValue(summary), 0.0001);
+    assertEquals(10, ThresholdStatistic.MEAN.getValue(summary), 0.0001);
+  }
+
+  @Test
+  public void testMergeAndSubtract() {
+    QuantileSketch fast = new QuantileSketch();
+    fast.addDistribution(100, 10, 900, 50, 150);
+    QuantileSketch slow = new QuantileSketch();
+    slow.addDistribution(1000, 100, 100, 500, 1500);
+
+    QuantileSketch merged = fast.copy();
+    merged.merge(slow);
+    assertEquals(1000, merged.getCount(), 0.0001);
+    assertEquals(190, merged.getMean(), 1);
+    assertTrue(merged.getQuantile(0.95) > 500);
+
+    merged.subtract(slow);
+    assertEquals(900, merged.getCount(), 0.0001);
+    assertEquals(fast.getQuantile(0.95), merged.getQuantile(0.95), 0.0001);
+
+    merged.subtract(fast);
+    assertTrue(merged.isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeWithDifferentAccuracy() {
+    new QuantileSketch(0.01).merge(new QuantileSketch(0.02));
+  }
+
+  @Test
+  public void testEncodeAndDecode() {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.add(0, 2);
+    sketch.addDistribution(100, 10, 900, 50, 150);
+    sketch.add(5000, 1);
+
+    String encoded = sketch.encode();
+    QuantileSketch decoded = QuantileSketch.decode(encoded);
+
+    assertFalse(encoded.contains("\t"));
+    assertEquals(sketch.getCount(), decoded.getCount(), 0.01);
+    assertEquals(sketch.getMean(), decoded.getMean(), 0.1);
+    for (double quantile : new double[] { 0, 0.5, 0.9, 0.99, 1 }) {
+      assertEquals(sketch.getQuantile(quantile), decoded.getQuantile(quantile), 0.0001);
+    }
+    assertEquals(encoded, decoded.encode());
+    assertTrue(QuantileSketch.decode(new QuantileSketch().encode()).isEmpty());
+    assertNull(QuantileSketch.decode("not a sketch"));
+  }
+
+  private static void addPoint(final MetricSeries series, final int minute, final int value, final int count) {
+    int index = series.addPoint(minute * 60000L);
+    series.set(Column.VALUE, index, value);
+    series.set(Column.MIN, index, value / 10);
+    series.set(Column.MAX, index, value * 2);
+    series.set(Column.COUNT, index, count);
+    series.setStandardDeviation(index, value / 5.0);
+  }
+}
@@ -0,0 +1,132 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RegressionAnalysisTest {
+
+  private static WeightedMoments points(final double mean, final double spread, final int points,
+      final double standardDeviation, final int calls) {
+    WeightedMoments moments = new WeightedMoments();
+    for (int i = 0; i < points; i++) {
+      moments.add(i % 2 == 0 ? mean - spread : mean + spread, standardDeviation, calls);
+    }
+    return moments;
+  }
+
+  @Test
+  public void testStudentTDistribution() {
+    assertEquals(0.5, RegressionAnalysis.studentTDistribution(0, 5), 1e-9);
+    assertEquals(0.975, RegressionAnalysis.studentTDistribution(2.228, 10), 0.0005);
+    assertEquals(0.05, RegressionAnalysis.studentTDistribution(-2.015, 5), 0.0005);
+    assertEquals(0.995, RegressionAnalysis.studentTDistribution(2.576, 100000), 0.0005);
+  }
+
+  @Test
+  public void testNoiseIsNotSignificant() {
+    WeightedMoments baseline = points(100, 10, 10, 20, 100);
+    WeightedMoments current = points(104, 10, 6, 20, 100);
+
+    RegressionAnalysis analysis = RegressionAnalysis.compare(baseline, current, true);
+
+    assertEquals(4, analysis.getDifference(), 0.0001);
+    assertTrue(analysis.getConfidence() > 0.5);
+    assertFalse(analysis.isSignificant(0.95));
+    assertEquals(4 / Math.sqrt(500), analysis.getEffectSize(), 0.0001);
+    assertEquals("negligible", analysis.getEffectSizeDescription());
+  }
+
+  @Test
+  public void testClearDegradationIsSignificant() {
+    WeightedMoments baseline = points(100, 5, 60, 20, 100);
+    WeightedMoments current = points(130, 5, 10, 20, 100);
+
+    RegressionAnalysis analysis = RegressionAnalysis.compare(baseline, current, true);
+
+    assertEquals(0.3, analysis.getRelativeDifference(), 0.0001);
+    assertTrue(analysis.getConfidence() > 0.999);
+    assertTrue(analysis.isSignificant(0.99));
+    assertEquals(30 / Math.sqrt(425), analysis.getEffectSize(), 0.0001);
+    assertEquals("large", analysis.getEffectSizeDescription());
+  }
+
+  @Test
+  public void testImprovementIsNotARegression() {
+    WeightedMoments baseline = points(100, 5, 60, 20, 100);
+    WeightedMoments current = points(130, 5, 10, 20, 100);
+
+    RegressionAnalysis analysis = RegressionAnalysis.compare(baseline, current, false);
+
+    assertTrue(analysis.getDifference() < 0);
+    assertTrue(analysis.getConfidence() < 0.001);
+    assertFalse(analysis.isSignificant(0.5));
+  }
+
+  @Test
+  public void testTooFewDataPoints() {
+    assertNull(RegressionAnalysis.compare(points(100, 5, 10, 0, 100), points(200, 0, 1, 0, 100), true));
+    assertNull(RegressionAnalysis.compare(new WeightedMoments(), points(200, 5, 10, 0, 100), true));
+  }
+
+  @Test
+  public void testDataPointsWeightedByCalls() {
+    WeightedMoments moments = points(100, 0, 9, 0, 1000);
+    // Slow minute with hardly any calls
+    moments.add(1000, 0, 10);
+
+    assertEquals(100.99, moments.getMean(), 0.01);
+    assertTrue(moments.getEffectiveSize() < 9.1);
+    assertEquals(9010, moments.getWeight(), 0.0001);
+  }
+
+  @Test
+  public void testMomentsMergeSubtractAndEncode() {
+    WeightedMoments first = points(100, 10, 10, 20, 100);
+    WeightedMoments second = points(200, 10, 10, 20, 300);
+
+    WeightedMoments merged = first.copy();
+    merged.merge(second);
+    assertEquals(175, merged.getMean(), 0.0001);
+
+    merged.subtract(second);
+    assertEquals(first.getMean(), merged.getMean(), 0.0001);
+    assertEquals(first.getVarianceOfMeans(), merged.getVarianceOfMeans(), 0.0001);
+    assertEquals(first.getVarianceOfCalls(), merged.getVarianceOfCalls(), 0.0001);
+
+    merged.subtract(first);
+    assertTrue(merged.isEmpty());
+
+    WeightedMoments decoded = WeightedMoments.decode(second.encode());
+    assertEquals(second.getMean(), decoded.getMean(), 0);
+    assertEquals(second.getEffectiveSize(), decoded.getEffectiveSize(), 0);
+    assertNull(WeightedMoments.decode("1;2"));
+  }
+
+  @Test
+  public void testLastBuildsMomentsBaseline() {
+    MomentsBaseline baseline = MomentsBaseline.create(BaselineMode.LAST_BUILDS, 2);
+    assertNull(baseline.getMoments(0));
+
+    baseline.add(0, points(1000, 10, 10, 0, 100));
+    baseline.add(0, points(100, 10, 10, 0, 100));
+    baseline.add(0, points(200, 10, 10, 0, 100));
+
+    assertEquals(150, baseline.getMoments(0).getMean(), 0.0001);
+    assertEquals(20, baseline.getMoments(0).getEffectiveSize(), 0.0001);
+  }
+
+  @Test
+  public void testLastDaysMomentsBaselineCanGoBackInTime() {
+    long day = 24 * 3600000L;
+    MomentsBaseline baseline = MomentsBaseline.create(BaselineMode.LAST_DAYS, 2);
+    baseline.add(0, points(1000, 10, 10, 0, 100));
+    baseline.add(2 * day, points(100, 10, 10, 0, 100));
+    baseline.add(3 * day, points(200, 10, 10, 0, 100));
+
+    assertNull(baseline.getMoments(10 * day));
+    assertEquals(150, baseline.getMoments(3 * day).getMean(), 0.0001);
+    assertEquals(1300 / 3.0, baseline.getMoments(2 * day).getMean(), 0.0001);
+    assertEquals(200, baseline.getMoments(5 * day).getMean(), 0.0001);
+  }
+}
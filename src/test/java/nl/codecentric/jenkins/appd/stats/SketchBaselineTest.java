@@ -0,0 +1,77 @@
+package nl.codecentric.jenkins.appd.stats;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SketchBaselineTest {
+
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  private static QuantileSketch build(final double value, final double calls) {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.add(value, calls);
+    return sketch;
+  }
+
+  @Test
+  public void testEveryCallCountsTheSame() {
+    SketchBaseline baseline = SketchBaseline.create(BaselineMode.ALL_BUILDS, 10);
+    assertEquals(-1, baseline.getValue(ThresholdStatistic.MEAN, 0), 0.0001);
+
+    baseline.add(0, build(100, 980));
+    // Outlier build with hardly any traffic
+    baseline.add(0, build(5000, 20));
+
+    assertEquals(198, baseline.getValue(ThresholdStatistic.MEAN, 0), 0.5);
+    assertEquals(100, baseline.getValue(ThresholdStatistic.P90, 0), 1);
+    assertEquals(5000, baseline.getValue(ThresholdStatistic.P99, 0), 50);
+  }
+
+  @Test
+  public void testLastBuildsOnlyKeepsWindow() {
+    SketchBaseline baseline = SketchBaseline.create(BaselineMode.LAST_BUILDS, 2);
+    baseline.add(0, build(1000, 100));
+    baseline.add(0, build(10, 100));
+    baseline.add(0, build(20, 100));
+
+    assertEquals(15, baseline.getValue(ThresholdStatistic.MEAN, 0), 0.01);
+    assertEquals(20, baseline.getValue(ThresholdStatistic.P99, 0), 0.2);
+  }
+
+  @Test
+  public void testLastDaysEvictsOldBuilds() {
+    SketchBaseline baseline = SketchBaseline.create(BaselineMode.LAST_DAYS, 2);
+    baseline.add(0, build(1000, 100));
+    baseline.add(2 * DAY, build(10, 100));
+    baseline.add(3 * DAY, build(20, 100));
+
+    assertEquals(15, baseline.getValue(ThresholdStatistic.MEAN, 3 * DAY), 0.01);
+    assertEquals(-1, baseline.getValue(ThresholdStatistic.MEAN, 10 * DAY), 0.0001);
+  }
+
+  @Test
+  public void testLastDaysCanGoBackInTime() {
+    SketchBaseline baseline = SketchBaseline.create(BaselineMode.LAST_DAYS, 2);
+    baseline.add(0, build(1000, 100));
+    baseline.add(2 * DAY, build(10, 100));
+    baseline.add(3 * DAY, build(20, 100));
+
+    assertEquals(-1, baseline.getValue(ThresholdStatistic.MEAN, 10 * DAY), 0.0001);
+    assertEquals(15, baseline.getValue(ThresholdStatistic.MEAN, 3 * DAY), 0.01);
+    assertEquals(1030 / 3.0, baseline.getValue(ThresholdStatistic.MEAN, 2 * DAY), 0.01);
+    assertEquals(20, baseline.getValue(ThresholdStatistic.MEAN, 5 * DAY), 0.01);
+  }
+
+  @Test
+  public void testExponentialMovingAverageFavoursRecentBuilds() {
+    SketchBaseline baseline = SketchBaseline.create(BaselineMode.EXPONENTIAL_MOVING_AVERAGE, 3);
+    baseline.add(0, build(100, 100));
+    baseline.add(0, build(200, 100));
+
+    // alpha = 0.5, so the first build weighs half as much as the second
+    assertEquals(166.67, baseline.getValue(ThresholdStatistic.MEAN, 0), 0.01);
+  }
+}